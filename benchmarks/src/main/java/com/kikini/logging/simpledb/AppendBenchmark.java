@@ -0,0 +1,114 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+/**
+ * Throughput of {@link SimpleDBAppender#append(LoggingEvent)} with 1 to 8
+ * threads logging at once. A background thread empties the queue, as the
+ * writers would, so that the queue stays small.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppendBenchmark {
+
+    private SimpleDBAppender appender;
+    private DelayQueue<SimpleDBRow> queue;
+    private LoggingEvent event;
+    private Thread drainer;
+    private volatile boolean running;
+
+    @Setup
+    public void setUp() {
+        queue = new DelayQueue<SimpleDBRow>();
+        appender = new SimpleDBAppender(null, "benchmark", null, null, queue, "i-001");
+        appender.setContextName("benchmark");
+        Logger logger = new LoggerContext().getLogger("com.kikini.benchmark.AppendBenchmark");
+        event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "appended {} events", null,
+                new Object[] { 42 });
+        running = true;
+        drainer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (running) {
+                    queue.clear();
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        running = false;
+        drainer.join();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void append1Thread() {
+        appender.append(event);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void append2Threads() {
+        appender.append(event);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void append4Threads() {
+        appender.append(event);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void append8Threads() {
+        appender.append(event);
+    }
+}
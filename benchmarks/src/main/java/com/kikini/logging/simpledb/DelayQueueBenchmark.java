@@ -0,0 +1,82 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Throughput of the {@link DelayQueue} between the logging threads and the
+ * writers: three threads adding rows while one drains them a turn at a time,
+ * as {@link SimpleDBConsumer#drainOnce(int)} does
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DelayQueueBenchmark {
+
+    private DelayQueue<SimpleDBRow> queue;
+    private SimpleDBRow row;
+
+    @Setup
+    public void setUp() {
+        queue = new DelayQueue<SimpleDBRow>();
+        // a row with a short period, which is ready by the time it is drained
+        row = new SimpleDBRow("a log message", "i-001", "benchmark", "com.kikini.benchmark", "INFO",
+                System.currentTimeMillis(), 1, ImmutableMap.<String, String> of());
+    }
+
+    @State(Scope.Thread)
+    public static class Turn {
+
+        final List<SimpleDBRow> rows = new ArrayList<SimpleDBRow>(SimpleDBRuntime.MAX_ROWS_PER_TURN);
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(3)
+    public boolean add() {
+        return queue.add(row);
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    public int drain(Turn turn) {
+        turn.rows.clear();
+        return queue.drainTo(turn.rows, SimpleDBRuntime.MAX_ROWS_PER_TURN);
+    }
+}
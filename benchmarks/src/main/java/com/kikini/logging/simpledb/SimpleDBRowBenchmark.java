@@ -0,0 +1,60 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Cost of constructing a {@link SimpleDBRow}, which copies the MDC and
+ * computes the row's delay and estimated size
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimpleDBRowBenchmark {
+
+    private final Map<String, String> emptyMdc = ImmutableMap.of();
+    private final Map<String, String> mdc = ImmutableMap.of("user", "u-1234", "request", "r-5678", "session",
+            "s-9012");
+
+    @Benchmark
+    public SimpleDBRow noMdc() {
+        return new SimpleDBRow("a log message", "i-001", "benchmark", "com.kikini.benchmark", "INFO",
+                System.currentTimeMillis(), 10000, emptyMdc);
+    }
+
+    @Benchmark
+    public SimpleDBRow threeMdcProperties() {
+        return new SimpleDBRow("a log message", "i-001", "benchmark", "com.kikini.benchmark", "INFO",
+                System.currentTimeMillis(), 10000, mdc);
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.MDC;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.Appender;
+
+/**
+ * Sustained-load soak test of {@link SimpleDBAppender}. Producer threads log
+ * through a logback {@link LoggerContext} at a set rate, with messages and MDC
+ * of a set shape, into an {@link InMemorySimpleDB} which simulates the latency,
+ * throttling and failures of the real service.
+ * <p>
+ * Every report period, one line is printed with the events offered, accepted
+ * and delivered per second, drops, heap and GC activity, and the latency
+ * percentiles of the period. A summary of the whole run follows at the end.
+ * <p>
+ * Options are given as {@code --name value}; see {@link #DEFAULTS}.
+ */
+public class SimpleDBSoak {
+
+    /** Options and their default values */
+    static final String[][] DEFAULTS = {
+            { "seconds", "600", "length of the run" },
+            { "reportSeconds", "10", "time between reports" },
+            { "threads", "4", "producer threads" },
+            { "rate", "2000", "events per second over all producers, 0 for as fast as possible" },
+            { "messageBytes", "120", "length of each message" },
+            { "mdcKeys", "3", "MDC entries per event" },
+            { "mdcValueBytes", "16", "length of each MDC value" },
+            { "loggers", "20", "distinct logger names" },
+            { "writerThreads", "2", "appender writer threads" },
+            { "maxQueueSize", "100000", "appender queue size" },
+            { "loggingPeriodMillis", "1000", "appender logging period" },
+            { "latencyMillis", "40", "median simulated request latency" },
+            { "latencySigma", "0.5", "spread of the log-normal request latency" },
+            { "ceiling", "0", "items per second the domain accepts, 0 for no ceiling" },
+            { "throttleRate", "0", "fraction of requests refused at random" },
+            { "failureRate", "0", "fraction of writes failing after a partial write" },
+            { "keepItems", "false", "keep written items in memory instead of clearing them every report" }, };
+
+    private static final String DOMAIN = "soak";
+
+    private final Map<String, String> options;
+    private final AtomicLong offered = new AtomicLong();
+    private volatile boolean running = true;
+
+    SimpleDBSoak(Map<String, String> options) {
+        this.options = options;
+    }
+
+    private String option(String name) {
+        return options.get(name);
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(option(name));
+    }
+
+    private double doubleOption(String name) {
+        return Double.parseDouble(option(name));
+    }
+
+    private static String filler(int length, char c) {
+        StringBuilder filler = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            filler.append((char)(c + i % 26));
+        }
+        return filler.toString();
+    }
+
+    /**
+     * Producer thread body: log at a fixed interval, catching up after
+     * pauses, until told to stop
+     */
+    private class Producer implements Runnable {
+
+        private final Logger[] loggers;
+        private final long intervalNanos;
+        private final String padding;
+        private final String[] mdcKeys;
+        private final String mdcValue;
+
+        Producer(Logger[] loggers, long intervalNanos) {
+            this.loggers = loggers;
+            this.intervalNanos = intervalNanos;
+            this.padding = filler(Math.max(0, intOption("messageBytes") - 20), 'a');
+            this.mdcKeys = new String[intOption("mdcKeys")];
+            for (int i = 0; i < mdcKeys.length; i++) {
+                mdcKeys[i] = "key" + i;
+            }
+            this.mdcValue = filler(intOption("mdcValueBytes"), 'A');
+        }
+
+        @Override
+        public void run() {
+            long next = System.nanoTime();
+            long sequence = 0;
+            while (running) {
+                if (intervalNanos > 0) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                    next += intervalNanos;
+                }
+                sequence++;
+                for (int i = 0; i < mdcKeys.length; i++) {
+                    MDC.put(mdcKeys[i], sequence % 10 + mdcValue);
+                }
+                loggers[(int)(sequence % loggers.length)].info("event {} {}", sequence, padding);
+                offered.incrementAndGet();
+            }
+            MDC.clear();
+        }
+    }
+
+    /**
+     * Readings taken at each report, from which the next report's rates are
+     * computed
+     */
+    private static class Reading {
+
+        private final long nanos = System.nanoTime();
+        private final long offered;
+        private final long accepted;
+        private final long delivered;
+        private final long dropped;
+        private final long gcCount;
+        private final long gcMillis;
+        private final LatencyHistogram.Snapshot enqueue;
+        private final LatencyHistogram.Snapshot dispatch;
+        private final LatencyHistogram.Snapshot ack;
+
+        Reading(long offered, SimpleDBMetrics metrics) {
+            this.offered = offered;
+            this.accepted = metrics.getEnqueued();
+            this.delivered = metrics.getItemsWritten();
+            this.dropped = metrics.getDropped();
+            long count = 0;
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+            this.gcCount = count;
+            this.gcMillis = millis;
+            this.enqueue = metrics.getEnqueueLatency().snapshot();
+            this.dispatch = metrics.getDispatchLatency().snapshot();
+            this.ack = metrics.getAckLatency().snapshot();
+        }
+    }
+
+    private static String latency(String stage, LatencyHistogram.Snapshot interval) {
+        return String.format(" %s p50=%d p99=%d p999=%d max=%d", stage, interval.getPercentile(50),
+                interval.getPercentile(99), interval.getPercentile(99.9), interval.getPercentile(100));
+    }
+
+    private static String report(String label, Reading from, Reading to, SimpleDBMetrics metrics) {
+        double seconds = (to.nanos - from.nanos) / (double)TimeUnit.SECONDS.toNanos(1);
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        return String.format("%s offered/s=%.0f accepted/s=%.0f delivered/s=%.0f dropped=%d queue=%d "
+                + "heap=%dMB/%dMB gc=%d gcMillis=%d errors=%d |%s%s%s", label, (to.offered - from.offered) / seconds,
+                (to.accepted - from.accepted) / seconds, (to.delivered - from.delivered) / seconds, to.dropped
+                        - from.dropped, metrics.getQueueDepth(), heap.getUsed() >> 20, heap.getCommitted() >> 20,
+                to.gcCount - from.gcCount, to.gcMillis - from.gcMillis, metrics.getErrors(),
+                latency("enqueue", to.enqueue.since(from.enqueue)), latency("dispatch", to.dispatch.since(from.dispatch)),
+                latency("ack", to.ack.since(from.ack)));
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    void run() throws InterruptedException {
+        InMemorySimpleDB sdb = new InMemorySimpleDB();
+        sdb.setLatency(InMemorySimpleDB.logNormal(doubleOption("latencyMillis"), doubleOption("latencySigma")));
+        if (intOption("ceiling") > 0) sdb.setCeiling(DOMAIN, intOption("ceiling"));
+        sdb.setThrottleRate(doubleOption("throttleRate"));
+        sdb.setFailureRate(doubleOption("failureRate"));
+
+        LoggerContext context = new LoggerContext();
+        context.setName("soak");
+        SimpleDBAppender appender = new SimpleDBAppender(sdb, DOMAIN, null, null, null, "soak-host");
+        appender.setContext(context);
+        appender.setName("SIMPLEDB");
+        appender.setAccessId("soak");
+        appender.setSecretKey("soak");
+        appender.setDomainName(DOMAIN);
+        appender.setWriterThreads(intOption("writerThreads"));
+        appender.setMaxQueueSize(intOption("maxQueueSize"));
+        appender.setLoggingPeriodMillis(Long.parseLong(option("loggingPeriodMillis")));
+        appender.start();
+        Logger root = context.getLogger(Logger.ROOT_LOGGER_NAME);
+        root.setLevel(Level.INFO);
+        root.addAppender((Appender)appender);
+
+        Logger[] loggers = new Logger[intOption("loggers")];
+        for (int i = 0; i < loggers.length; i++) {
+            loggers[i] = context.getLogger("com.kikini.soak.Service" + i);
+        }
+        int threads = intOption("threads");
+        long rate = Long.parseLong(option("rate"));
+        long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) * threads / rate : 0;
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread producer = new Thread(new Producer(loggers, intervalNanos), "SoakProducer-" + i);
+            producer.setDaemon(true);
+            producers.add(producer);
+        }
+
+        SimpleDBMetrics metrics = appender.getMetrics();
+        System.out.println("SimpleDB soak: " + options);
+        Reading start = new Reading(0, metrics);
+        Reading last = start;
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        long reportMillis = TimeUnit.SECONDS.toMillis(intOption("reportSeconds"));
+        long endAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(intOption("seconds"));
+        boolean keepItems = Boolean.parseBoolean(option("keepItems"));
+        while (System.currentTimeMillis() < endAt) {
+            Thread.sleep(Math.min(reportMillis, Math.max(1, endAt - System.currentTimeMillis())));
+            Reading now = new Reading(offered.get(), metrics);
+            System.out.println(report(String.format("[%6ds]", (now.nanos - start.nanos) / 1000000000L), last, now,
+                    metrics));
+            last = now;
+            if (!keepItems) sdb.clear(DOMAIN);
+        }
+
+        running = false;
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        // let the writers catch up with what was accepted before summing up
+        long drainUntil = System.currentTimeMillis() + reportMillis;
+        while (metrics.getQueueDepth() > 0 && System.currentTimeMillis() < drainUntil) {
+            Thread.sleep(100);
+        }
+        Reading end = new Reading(offered.get(), metrics);
+        System.out.println(report("[total]", start, end, metrics));
+        System.out.println(String.format("[total] offered=%d accepted=%d delivered=%d dropped=%d requests=%d "
+                + "throttled=%d failed=%d", end.offered, end.accepted, end.delivered, end.dropped, sdb.getRequests(),
+                sdb.getThrottled(), sdb.getFailed()));
+        context.stop();
+    }
+
+    static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new TreeMap<String, String>();
+        for (String[] option : DEFAULTS) {
+            options.put(option[0], option[1]);
+        }
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i].startsWith("--") ? args[i].substring(2) : null;
+            if (name == null || !options.containsKey(name) || i + 1 == args.length) {
+                usage();
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            options.put(name, args[++i]);
+        }
+        return options;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: SimpleDBSoak [--option value]...");
+        for (String[] option : DEFAULTS) {
+            System.err.println(String.format("  --%-20s %s (default %s)", option[0], option[2], option[1]));
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        new SimpleDBSoak(parse(args)).run();
+    }
+}
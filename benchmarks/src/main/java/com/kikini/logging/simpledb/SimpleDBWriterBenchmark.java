@@ -0,0 +1,106 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Cost of the work {@link SimpleDBWriter} does before each request:
+ * truncating values, formatting times, and building a full batch of items.
+ * Requests go to a client which does nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimpleDBWriterBenchmark {
+
+    /** Message length: short, just fitting, and needing truncation */
+    @Param({ "64", "1024", "4096" })
+    public int messageLength;
+
+    private SimpleDBWriter writer;
+    private String message;
+    private String multibyteMessage;
+    private List<SimpleDBRow> batch;
+    private long time;
+
+    @Setup
+    public void setUp() {
+        AmazonSimpleDB sdb = (AmazonSimpleDB)Proxy.newProxyInstance(AmazonSimpleDB.class.getClassLoader(),
+                new Class<?>[] { AmazonSimpleDB.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return null;
+                    }
+                });
+        writer = new SimpleDBWriter(sdb, "benchmark");
+        writer.setTimeZone(DateTimeZone.UTC);
+        message = Strings.repeat("x", messageLength);
+        multibyteMessage = Strings.repeat("é", messageLength);
+        time = System.currentTimeMillis();
+        batch = new ArrayList<SimpleDBRow>();
+        for (int i = 0; i < SimpleDBWriter.MAX_BATCH_PUT; i++) {
+            batch.add(new SimpleDBRow(message, "i-001", "benchmark", "com.kikini.benchmark", "INFO", time, 1,
+                    ImmutableMap.of("user", "u-1234")));
+        }
+    }
+
+    @Benchmark
+    public String truncateToSize() {
+        return writer.truncateToSize(message);
+    }
+
+    @Benchmark
+    public String truncateToSizeMultibyte() {
+        return writer.truncateToSize(multibyteMessage);
+    }
+
+    @Benchmark
+    public String formatTime() {
+        return writer.formatTime(time);
+    }
+
+    @Benchmark
+    public void writeFullBatch() {
+        writer.writeRows(batch);
+    }
+}
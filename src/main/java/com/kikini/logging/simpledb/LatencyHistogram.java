@@ -0,0 +1,165 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in the manner of HdrHistogram: values are counted in
+ * buckets whose width grows with their magnitude, so that every value is
+ * recorded to within 1/16, or 6.25%, using a few hundred counters. Values
+ * below 32 are exact; above that, each power of two is split into 16 buckets,
+ * each as wide as a sixteenth of the power of two it starts at. Recording is a
+ * single lock-free atomic increment.
+ * <p>
+ * Percentiles are reported as the highest value of the bucket they fall in,
+ * so they err on the side of being slow.
+ */
+class LatencyHistogram implements LatencyHistogramMBean {
+
+    private static final int EXACT = 32;
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int EXACT_BITS = 5;
+    private static final long MAX_VALUE = Integer.MAX_VALUE;
+    private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    static int indexOf(long value) {
+        if (value < EXACT) return (int)Math.max(0, value);
+        if (value > MAX_VALUE) value = MAX_VALUE;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int mantissa = (int)(value >>> shift) - SUB_BUCKETS;
+        return EXACT + (exponent - EXACT_BITS) * SUB_BUCKETS + mantissa;
+    }
+
+    /**
+     * @return the highest value counted in the bucket of the given index
+     */
+    static long highestValueAt(int index) {
+        if (index < EXACT) return index;
+        int offset = index - EXACT;
+        int exponent = offset / SUB_BUCKETS + EXACT_BITS;
+        long mantissa = offset % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Count a latency
+     * 
+     * @param millis
+     *        the latency. Negative values, which happen when events are
+     *        timestamped by another clock, count as 0.
+     */
+    void record(long millis) {
+        counts.incrementAndGet(indexOf(millis));
+    }
+
+    /**
+     * @return a copy of the counts, from which percentiles may be computed
+     *         consistently
+     */
+    Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy);
+    }
+
+    @Override
+    public long getCount() {
+        return snapshot().getCount();
+    }
+
+    @Override
+    public long getMedian() {
+        return snapshot().getPercentile(50);
+    }
+
+    @Override
+    public long get90thPercentile() {
+        return snapshot().getPercentile(90);
+    }
+
+    @Override
+    public long get99thPercentile() {
+        return snapshot().getPercentile(99);
+    }
+
+    @Override
+    public long get999thPercentile() {
+        return snapshot().getPercentile(99.9);
+    }
+
+    @Override
+    public long getMax() {
+        return snapshot().getPercentile(100);
+    }
+
+    /**
+     * The counts of a histogram at one point in time
+     */
+    static class Snapshot {
+
+        private final long[] counts;
+        private final long total;
+
+        Snapshot(long[] counts) {
+            this.counts = counts;
+            long sum = 0;
+            for (long count : counts) {
+                sum += count;
+            }
+            this.total = sum;
+        }
+
+        long getCount() {
+            return total;
+        }
+
+        /**
+         * @return the counts recorded since the given earlier snapshot
+         */
+        Snapshot since(Snapshot earlier) {
+            long[] difference = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                difference[i] = counts[i] - earlier.counts[i];
+            }
+            return new Snapshot(difference);
+        }
+
+        /**
+         * @param percentile
+         *        between 0 and 100
+         * @return the latency at or below which the given percentage of the
+         *         counts fall, or 0 if nothing was counted
+         */
+        long getPercentile(double percentile) {
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long)Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return highestValueAt(i);
+            }
+            return highestValueAt(counts.length - 1);
+        }
+    }
+}
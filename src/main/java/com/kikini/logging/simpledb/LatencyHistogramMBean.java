@@ -0,0 +1,39 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+/**
+ * Management interface of one latency histogram of a {@link SimpleDBAppender},
+ * registered with the platform MBean server under
+ * {@code com.kikini.logging.simpledb:type=SimpleDBAppender,name=<appender name>,latency=<stage>}.
+ * Latencies are in milliseconds, measured from the timestamp of the logging
+ * event, and cover everything recorded since the appender started. Values are
+ * accurate to within 6.25%.
+ */
+public interface LatencyHistogramMBean {
+
+    long getCount();
+
+    long getMedian();
+
+    long get90thPercentile();
+
+    long get99thPercentile();
+
+    long get999thPercentile();
+
+    long getMax();
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Objects;
+
+/**
+ * Collapses identical {@link SimpleDBRow}s, those with the same message, host,
+ * context, logger and level, into a single row carrying the number of
+ * occurrences. The first row of each group keeps its position in the list, so
+ * the relative order of distinct rows is unchanged, and takes the time and MDC
+ * properties of the earliest occurrence.
+ */
+class RowAggregator {
+
+    /**
+     * Identity of a row for the purpose of finding duplicates. The hash is
+     * computed once, since the same key is probed for every duplicate.
+     */
+    private static class Key {
+
+        private final SimpleDBRow row;
+        private final int hash;
+
+        Key(SimpleDBRow row) {
+            this.row = row;
+            this.hash = Objects.hashCode(row.getMsg(), row.getHost(), row.getContext(), row.getLogger(), row.getLevel());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key)obj;
+            return hash == other.hash && Objects.equal(row.getMsg(), other.row.getMsg())
+                    && Objects.equal(row.getLogger(), other.row.getLogger())
+                    && Objects.equal(row.getLevel(), other.row.getLevel())
+                    && Objects.equal(row.getHost(), other.row.getHost())
+                    && Objects.equal(row.getContext(), other.row.getContext());
+        }
+    }
+
+    /**
+     * Aggregate the given rows
+     * 
+     * @param rows
+     *        the rows to aggregate. The first row of each group of duplicates
+     *        is modified to account for the others.
+     * @return the distinct rows, in order of first appearance
+     */
+    List<SimpleDBRow> aggregate(List<SimpleDBRow> rows) {
+        if (rows.size() < 2) return rows;
+        Map<Key, SimpleDBRow> firstSeen = new HashMap<Key, SimpleDBRow>(rows.size() * 2);
+        List<SimpleDBRow> distinct = new ArrayList<SimpleDBRow>();
+        for (SimpleDBRow row : rows) {
+            Key key = new Key(row);
+            SimpleDBRow first = firstSeen.get(key);
+            if (first == null) {
+                firstSeen.put(key, row);
+                distinct.add(row);
+            } else {
+                first.merge(row);
+            }
+        }
+        return distinct;
+    }
+}
@@ -19,26 +19,33 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.DelayQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 import org.joda.time.DateTimeZone;
 
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.LoggingEvent;
 import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.AppenderBase;
 import ch.qos.logback.core.status.ErrorStatus;
+import ch.qos.logback.core.status.WarnStatus;
 
 import com.amazonaws.AmazonClientException;
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.simpledb.AmazonSimpleDB;
-import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
-import com.amazonaws.services.simpledb.model.CreateDomainRequest;
-import com.amazonaws.services.simpledb.model.ListDomainsResult;
 
 import com.google.common.collect.ImmutableMap;
 
@@ -53,22 +60,101 @@ import com.google.common.collect.ImmutableMap;
  * <li>AccessId: Your AWS access ID
  * <li>SecretKey: Your AWS secret key
  * </ul>
+ * <p>
+ * Events may optionally be split into priority lanes (see
+ * {@link SimpleDBLane}) so that, for example, errors are written within a
+ * short period while debug output is batched over a longer one. When
+ * MaxQueueSize is set, lower lanes are shed first as the queues fill up.
+ * <p>
+ * Noisy loggers may be rate limited or sampled (see {@link SimpleDBRateLimit}).
+ * The number of events suppressed for each logger and level is written
+ * periodically, and when the appender stops, as a summary row.
+ * <p>
+ * If RollupDomainName is set, the number of events per logger and level is
+ * also counted over windows of RollupPeriodMillis, and written to that domain
+ * (see {@link SimpleDBRollup}).
+ * <p>
+ * If SearchDomainName is set, the words of each message are indexed in that
+ * domain as it is written, bounded by SearchMinTokenLength,
+ * SearchMaxTokenLength, SearchMaxTokensPerMessage and SearchStopWords (see
+ * {@link SimpleDBSearchIndex}).
+ * <p>
+ * If RetentionMillis is set, items older than that are deleted from the
+ * domain by a periodic sweep, at most PurgeItemsPerSecond at a time (see
+ * {@link SimpleDBRetention}). The sweep compares the timeMillis column, which
+ * items written by earlier versions lack; set RetentionLegacyTimeColumn to
+ * compare the time column instead, until those items have been purged.
+ * <p>
+ * All the appenders in a JVM share one {@link SimpleDBRuntime}, and with it
+ * their writer threads and a single shutdown hook. Appenders with the same
+ * credentials and endpoint also share a SimpleDB client and its connection
+ * pool.
+ * Stopping the appender, as logback does when it reloads its configuration,
+ * leaves the rows still queued with the runtime; if an appender of the same
+ * name and domain starts shortly after, it takes over the queues as they are.
+ * <p>
+ * While started, the appender registers an MBean exposing the statistics of
+ * its pipeline (see {@link SimpleDBMetricsMBean}), and one per latency
+ * histogram (see {@link LatencyHistogramMBean}).
  * 
  * @author Gabe Nell
  */
 public class SimpleDBAppender extends AppenderBase<LoggingEvent> {
 
+    /** MDC key of the count written in rate limiting summary rows */
+    static final String SUPPRESSED_MDC_KEY = "suppressed";
+
     private AmazonSimpleDB sdb = null;
+    /** Whether sdb came from the runtime, which shuts it down on retiring */
+    private boolean clientFromRuntime = false;
+    /** Whether the writer and consumer were built on start, around sdb */
+    private boolean pipelineBuilt = false;
     private String dom = null;
     private SimpleDBConsumer consumer = null;
     private SimpleDBWriter writer = null;
     private BlockingQueue<SimpleDBRow> queue = null;
+    private final List<SimpleDBLane> lanes = new ArrayList<SimpleDBLane>();
+    private SimpleDBLane[] routing;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final List<SimpleDBRateLimit> rateLimits = new ArrayList<SimpleDBRateLimit>();
+    private volatile SimpleDBRateLimiter rateLimiter = null;
 
     // optional properties
     private String contextName = null;
     private String host = null;
     private long loggingPeriodMillis = 10000;
     private String timeZone = null;
+    private int maxQueueSize = 0;
+    private long suppressedSummaryPeriodMillis = 60000;
+    private boolean aggregateDuplicates = false;
+    private String rollupDomainName = null;
+    private long rollupPeriodMillis = 60000;
+    private SimpleDBRollup rollup = null;
+    private SimpleDBTask suppressedSummaries = null;
+    private long retentionMillis = 0;
+    private long purgePeriodMillis = 3600000;
+    private double purgeItemsPerSecond = 100;
+    private boolean retentionLegacyTimeColumn = false;
+    private String searchDomainName = null;
+    private long searchBucketMillis = 0;
+    private String searchStopWords = null;
+    private int searchMinTokenLength = 0;
+    private int searchMaxTokenLength = 0;
+    private int searchMaxTokensPerMessage = 0;
+    private int writerThreads = 2;
+    private String endpoint = null;
+    private int maxConnections = 0;
+    private int connectionTimeoutMillis = 0;
+    private int socketTimeoutMillis = 0;
+    private int maxErrorRetry = -1;
+    private SimpleDBRuntime runtime = null;
+    private final List<SimpleDBTask> tasks = new ArrayList<SimpleDBTask>();
+    private final SimpleDBMetrics metrics = new SimpleDBMetrics();
+    private final List<ObjectName> mbeanNames = new ArrayList<ObjectName>();
+    private long latencyReportPeriodMillis = 0;
+    private int minBatchFill = 0;
+    private long maxBatchHoldMillis = 10000;
+    private final List<SimpleDBWriteListener> writeListeners = new ArrayList<SimpleDBWriteListener>();
 
     // required properties
     private String domainName;
@@ -152,6 +238,320 @@ public class SimpleDBAppender extends AppenderBase<LoggingEvent> {
         this.loggingPeriodMillis = loggingPeriodMillis;
     }
 
+    /**
+     * Set the maximum number of events which may be waiting to be written,
+     * across all lanes. Once the limit is approached, events are dropped,
+     * starting with the lowest priority lane. Each lane may fill a share of the
+     * queue proportional to its rank, so the highest lane is the last to shed
+     * events. If not set, or set to 0, the queues are unbounded.
+     * 
+     * @param maxQueueSize
+     *        the maxQueueSize to set
+     */
+    public void setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    /**
+     * Add a priority lane. Events of at least the lane's level are written
+     * through that lane rather than the default one.
+     * 
+     * @param lane
+     *        the lane to add
+     */
+    public void addLane(SimpleDBLane lane) {
+        lanes.add(lane);
+        if (routing != null) buildRouting();
+    }
+
+    /**
+     * Add a rate limiting or sampling rule. Rules are evaluated before any
+     * other work is done for an event.
+     * 
+     * @param rateLimit
+     *        the rule to add
+     */
+    public void addRateLimit(SimpleDBRateLimit rateLimit) {
+        rateLimits.add(rateLimit);
+        if (routing != null) buildRateLimiter();
+    }
+
+    /**
+     * Set how often to write summary rows counting the events suppressed by
+     * rate limiting. The default is one minute.
+     * 
+     * @param suppressedSummaryPeriodMillis
+     *        the suppressedSummaryPeriodMillis to set
+     */
+    public void setSuppressedSummaryPeriodMillis(long suppressedSummaryPeriodMillis) {
+        this.suppressedSummaryPeriodMillis = suppressedSummaryPeriodMillis;
+    }
+
+    /**
+     * Set whether identical events (same message, logger and level) written in
+     * the same logging period are collapsed into a single item. The item holds
+     * the number of occurrences, the times of the first and last occurrence,
+     * and the MDC properties of the first. The default is false.
+     * 
+     * @param aggregateDuplicates
+     *        the aggregateDuplicates to set
+     */
+    public void setAggregateDuplicates(boolean aggregateDuplicates) {
+        this.aggregateDuplicates = aggregateDuplicates;
+    }
+
+    /**
+     * Set the SimpleDB domain to which per-logger, per-level event counts are
+     * written. If not set, counts are not kept.
+     * 
+     * @param rollupDomainName
+     *        the rollupDomainName to set
+     */
+    public void setRollupDomainName(String rollupDomainName) {
+        this.rollupDomainName = rollupDomainName;
+    }
+
+    /**
+     * Set the length of the window over which events are counted for the
+     * rollup domain. The default is one minute.
+     * 
+     * @param rollupPeriodMillis
+     *        the rollupPeriodMillis to set
+     */
+    public void setRollupPeriodMillis(long rollupPeriodMillis) {
+        this.rollupPeriodMillis = rollupPeriodMillis;
+    }
+
+    /**
+     * Set how long items are kept in the domain, by their time column. Older
+     * items are deleted by a periodic sweep. If not set, or set to 0, items
+     * are kept forever.
+     * 
+     * @param retentionMillis
+     *        the retentionMillis to set
+     */
+    public void setRetentionMillis(long retentionMillis) {
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * Set how long after a sweep of expired items ends the next one starts.
+     * The default is one hour.
+     * 
+     * @param purgePeriodMillis
+     *        the purgePeriodMillis to set
+     */
+    public void setPurgePeriodMillis(long purgePeriodMillis) {
+        this.purgePeriodMillis = purgePeriodMillis;
+    }
+
+    /**
+     * Set the most expired items deleted per second. The default is 100.
+     * 
+     * @param purgeItemsPerSecond
+     *        the purgeItemsPerSecond to set
+     */
+    public void setPurgeItemsPerSecond(double purgeItemsPerSecond) {
+        this.purgeItemsPerSecond = purgeItemsPerSecond;
+    }
+
+    /**
+     * Set whether the sweep of expired items compares the time column, in the
+     * appender's time zone, rather than timeMillis. Items written before the
+     * appender wrote timeMillis are only deleted with this set. The default is
+     * false.
+     * 
+     * @param retentionLegacyTimeColumn
+     *        the retentionLegacyTimeColumn to set
+     */
+    public void setRetentionLegacyTimeColumn(boolean retentionLegacyTimeColumn) {
+        this.retentionLegacyTimeColumn = retentionLegacyTimeColumn;
+    }
+
+    /**
+     * Set the SimpleDB domain to which an index of the words of messages is
+     * written, for {@link SimpleDBReader#search(String, SimpleDBQuery, int)}.
+     * If not set, messages are not indexed.
+     * 
+     * @param searchDomainName
+     *        the searchDomainName to set
+     */
+    public void setSearchDomainName(String searchDomainName) {
+        this.searchDomainName = searchDomainName;
+    }
+
+    /**
+     * Set the length of the time buckets of the search index. The default is
+     * one hour.
+     * 
+     * @param searchBucketMillis
+     *        the searchBucketMillis to set
+     */
+    public void setSearchBucketMillis(long searchBucketMillis) {
+        this.searchBucketMillis = searchBucketMillis;
+    }
+
+    /**
+     * Set the words left out of the search index, separated by commas. The
+     * default is a list of common English words.
+     * 
+     * @param searchStopWords
+     *        the searchStopWords to set
+     */
+    public void setSearchStopWords(String searchStopWords) {
+        this.searchStopWords = searchStopWords;
+    }
+
+    /**
+     * Set the shortest word indexed. The default is 3 characters.
+     * 
+     * @param searchMinTokenLength
+     *        the searchMinTokenLength to set
+     */
+    public void setSearchMinTokenLength(int searchMinTokenLength) {
+        this.searchMinTokenLength = searchMinTokenLength;
+    }
+
+    /**
+     * Set the longest word indexed. The default is 32 characters.
+     * 
+     * @param searchMaxTokenLength
+     *        the searchMaxTokenLength to set
+     */
+    public void setSearchMaxTokenLength(int searchMaxTokenLength) {
+        this.searchMaxTokenLength = searchMaxTokenLength;
+    }
+
+    /**
+     * Set the most words indexed per message. The default is 24.
+     * 
+     * @param searchMaxTokensPerMessage
+     *        the searchMaxTokensPerMessage to set
+     */
+    public void setSearchMaxTokensPerMessage(int searchMaxTokensPerMessage) {
+        this.searchMaxTokensPerMessage = searchMaxTokensPerMessage;
+    }
+
+    /**
+     * Set the number of threads writing to SimpleDB. The threads are shared by
+     * all appenders in the JVM, so the largest number requested by any
+     * appender is used. The default is 2.
+     * 
+     * @param writerThreads
+     *        the writerThreads to set
+     */
+    public void setWriterThreads(int writerThreads) {
+        this.writerThreads = writerThreads;
+    }
+
+    /**
+     * Set the SimpleDB endpoint, such as {@code sdb.eu-west-1.amazonaws.com}.
+     * If not set, the SDK's default endpoint is used.
+     * 
+     * @param endpoint
+     *        the endpoint to set
+     */
+    public void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Set the most HTTP connections kept open to SimpleDB. If not set, the pool
+     * is sized to the number of writer threads, which is the most requests in
+     * flight at once. Appenders with the same credentials and endpoint share
+     * one pool, which is as large as the largest of them asks for.
+     * 
+     * @param maxConnections
+     *        the maxConnections to set
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Set how long to wait for a connection to SimpleDB to be established. If
+     * not set, the SDK's default is used.
+     * 
+     * @param connectionTimeoutMillis
+     *        the connectionTimeoutMillis to set
+     */
+    public void setConnectionTimeoutMillis(int connectionTimeoutMillis) {
+        this.connectionTimeoutMillis = connectionTimeoutMillis;
+    }
+
+    /**
+     * Set how long to wait for data on an established connection before
+     * giving up. If not set, the SDK's default is used.
+     * 
+     * @param socketTimeoutMillis
+     *        the socketTimeoutMillis to set
+     */
+    public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+        this.socketTimeoutMillis = socketTimeoutMillis;
+    }
+
+    /**
+     * Set how many times the SDK retries a request which failed for a
+     * retriable reason, such as throttling. If not set, the SDK's default is
+     * used.
+     * 
+     * @param maxErrorRetry
+     *        the maxErrorRetry to set
+     */
+    public void setMaxErrorRetry(int maxErrorRetry) {
+        this.maxErrorRetry = maxErrorRetry;
+    }
+
+    /**
+     * Set the fewest rows worth a BatchPutAttributes request of their own. When
+     * the last batch of a write would hold fewer rows, they are held back, for
+     * at most MaxBatchHoldMillis, to share a request with the rows of the next
+     * write. Since each request has a fixed cost in BoxUsage, this lowers the
+     * cost per event at the price of latency. If not set, or set to 0, every
+     * row is written as soon as its logging period ends.
+     * 
+     * @param minBatchFill
+     *        the number of rows, up to 25
+     */
+    public void setMinBatchFill(int minBatchFill) {
+        this.minBatchFill = minBatchFill;
+    }
+
+    /**
+     * Set the longest rows are held back to fill a batch. The default is ten
+     * seconds.
+     * 
+     * @param maxBatchHoldMillis
+     *        the maxBatchHoldMillis to set
+     */
+    public void setMaxBatchHoldMillis(long maxBatchHoldMillis) {
+        this.maxBatchHoldMillis = maxBatchHoldMillis;
+    }
+
+    /**
+     * Add a listener to be told how long each stage of each write took
+     * 
+     * @param listener
+     *        the listener to add
+     */
+    public void addListener(SimpleDBWriteListener listener) {
+        writeListeners.add(listener);
+        if (writer != null) writer.addListener(listener);
+    }
+
+    /**
+     * Set how often to report the latency percentiles of the events written
+     * since the previous report, as a logback status message. If not set, or
+     * set to 0, no reports are made; the percentiles are always available
+     * through JMX.
+     * 
+     * @param latencyReportPeriodMillis
+     *        the latencyReportPeriodMillis to set
+     */
+    public void setLatencyReportPeriodMillis(long latencyReportPeriodMillis) {
+        this.latencyReportPeriodMillis = latencyReportPeriodMillis;
+    }
+
     /**
      * Set the time zone to use when writing the time column to SimpleDB. The
      * time zone should be specified in the long format. See
@@ -193,6 +593,7 @@ public class SimpleDBAppender extends AppenderBase<LoggingEvent> {
         this.writer = writer;
         this.queue = queue;
         this.host = instanceId;
+        buildRouting();
     }
 
     /**
@@ -202,7 +603,11 @@ public class SimpleDBAppender extends AppenderBase<LoggingEvent> {
     }
 
     /**
-     * Obtain a SimpleDB instance from the Factory and get the logging domain
+     * Obtain a SimpleDB instance and start writing to the logging domain. This
+     * makes no network calls: the domain is verified, and created if needed,
+     * by the writer threads, and events are queued until that is done. Rows
+     * left queued by a stopped appender of the same name and domain are
+     * adopted.
      * 
      * @see ch.qos.logback.core.AppenderBase#start()
      */
@@ -223,63 +628,452 @@ public class SimpleDBAppender extends AppenderBase<LoggingEvent> {
         }
         if (!requiredPropsSet) return;
 
+        if (dom == null) {
+            dom = domainName;
+        }
+
+        int workers = writerThreads;
+        for (SimpleDBLane lane : lanes) {
+            workers = Math.max(workers, lane.getThreads());
+        }
+        runtime = SimpleDBRuntime.acquire(workers);
+
         if (sdb == null) {
             try {
-                final AWSCredentials credentials =
-                    new BasicAWSCredentials(accessId, secretKey);
-                sdb = new AmazonSimpleDBClient(credentials);
-
-                // See if the domain exists
-                boolean found = false;
-                ListDomainsResult result = sdb.listDomains();
-                for (String domainName : result.getDomainNames()) {
-                    if (dom.equals(domainName)) {
-                        found = true;
-                        break;
-                    }
-                }
-                // Didn't find it, so create it
-                if (!found) {
-                    sdb.createDomain(new CreateDomainRequest(dom));
-                }
+                sdb = runtime.getClients().get(accessId, secretKey, endpoint, clientConfiguration()).getClient();
+                clientFromRuntime = true;
             } catch (AmazonClientException e) {
                 addStatus(new ErrorStatus("Could not get access SimpleDB", this, e));
+                runtime.release();
+                runtime = null;
                 return;
             }
         }
 
+        SimpleDBLane[] parkedLanes = runtime.adopt(getName(), dom);
+        List<SimpleDBLane> leftovers = Collections.emptyList();
+        // the rows of this appender's own queues are still counted
+        boolean recount = parkedLanes != routing;
+        if (parkedLanes != null) {
+            leftovers = adoptQueues(parkedLanes, recount);
+        }
+
         if (queue == null) {
             this.queue = new DelayQueue<SimpleDBRow>();
         }
 
         if (writer == null) {
             this.writer = new SimpleDBWriter(sdb, dom);
+            pipelineBuilt = true;
         }
 
         if (timeZone != null) {
             writer.setTimeZone(DateTimeZone.forID(timeZone));
         }
+        writer.setMetrics(metrics);
+        writer.setStatus(this);
+        writer.setSearchIndex(searchDomainName == null ? null : buildSearchIndex());
+        for (SimpleDBWriteListener listener : writeListeners) {
+            writer.addListener(listener);
+        }
 
         if (consumer == null) {
-            consumer = new SimpleDBConsumer(queue, writer);
+            consumer = new SimpleDBConsumer(queue, writer, pending);
         }
 
-        Thread consumerThread = new Thread(consumer);
-        Runnable shutdown = new SimpleDBShutdownHook(queue, writer, consumerThread);
-        Runtime.getRuntime().addShutdownHook(new Thread(shutdown));
-        consumerThread.setDaemon(true);
-        consumerThread.start();
+        buildRouting();
+        buildRateLimiter();
+        for (SimpleDBLane leftover : leftovers) {
+            SimpleDBLane lane = routing[routing.length - 1];
+            for (SimpleDBLane candidate : routing) {
+                if (candidate.accepts(leftover.getLevel())) {
+                    lane = candidate;
+                    break;
+                }
+            }
+            // drainTo would only move the rows whose delay has expired, and
+            // nothing else drains the leftover queue any more
+            List<SimpleDBRow> moved = new ArrayList<SimpleDBRow>();
+            BlockingQueue<SimpleDBRow> leftoverQueue = leftover.getQueue();
+            SimpleDBRow row;
+            while ((row = leftoverQueue.peek()) != null) {
+                if (leftoverQueue.remove(row)) moved.add(row);
+            }
+            lane.getQueue().addAll(moved);
+            if (recount) {
+                pending.addAndGet(moved.size());
+                metrics.recordAdopted(moved);
+            }
+        }
+        for (SimpleDBLane lane : routing) {
+            registerLane(lane);
+        }
+        if (rollupDomainName != null) {
+            startRollup();
+        }
+        if (retentionMillis > 0) {
+            startRetention();
+        }
+        suppressedSummaries = new SuppressedSummaryTask();
+        runtime.register(suppressedSummaries, this);
+        if (latencyReportPeriodMillis > 0) {
+            SimpleDBLatencyReport report = new SimpleDBLatencyReport(metrics, this, latencyReportPeriodMillis);
+            tasks.add(report);
+            runtime.register(report, this);
+        }
+        metrics.setRuntime(runtime);
+        registerMBeans();
         super.start();
     }
 
-    private void queueForProcessing(String msg, String context, String logger, String level, long time, Map<String, String> mdcPropertyMap) {
-        SimpleDBRow row = new SimpleDBRow(msg, host, context, logger, level, time, loggingPeriodMillis, mdcPropertyMap);
-        queue.add(row);
+    /**
+     * Register the rollup with the runtime, which writes each window as it
+     * closes and the final one at shutdown
+     */
+    private void startRollup() {
+        rollup = new SimpleDBRollup(sdb, rollupDomainName, host, contextName, rollupPeriodMillis);
+        rollup.setDomains(runtime.getDomains(sdb));
+        rollup.setStatus(this, metrics);
+        if (timeZone != null) {
+            rollup.setTimeZone(DateTimeZone.forID(timeZone));
+        }
+        tasks.add(rollup);
+        runtime.register(rollup, this);
+    }
+
+    /**
+     * Configure the index the writer adds the words of each message to
+     */
+    private SimpleDBSearchIndex buildSearchIndex() {
+        SimpleDBSearchIndex index = new SimpleDBSearchIndex(sdb, searchDomainName);
+        index.setDomains(runtime.getDomains(sdb));
+        if (searchBucketMillis > 0) index.setBucketMillis(searchBucketMillis);
+        if (searchStopWords != null) index.setStopWords(searchStopWords);
+        if (searchMinTokenLength > 0) index.setMinTokenLength(searchMinTokenLength);
+        if (searchMaxTokenLength > 0) index.setMaxTokenLength(searchMaxTokenLength);
+        if (searchMaxTokensPerMessage > 0) index.setMaxTokensPerMessage(searchMaxTokensPerMessage);
+        return index;
+    }
+
+    /**
+     * Register the sweep of expired items with the runtime, whose workers
+     * delete them in turn with writing
+     */
+    private void startRetention() {
+        SimpleDBRetention retention = new SimpleDBRetention(sdb, dom, retentionMillis);
+        retention.setPeriodMillis(purgePeriodMillis);
+        retention.setMaxItemsPerSecond(purgeItemsPerSecond);
+        retention.setLegacyTimeColumn(retentionLegacyTimeColumn);
+        if (timeZone != null) {
+            retention.setTimeZone(DateTimeZone.forID(timeZone));
+        }
+        tasks.add(retention);
+        runtime.register(retention, this);
+    }
+
+    /**
+     * Take over the queues of the lanes of a stopped appender: the default
+     * lane's queue becomes the default queue, and each configured lane takes
+     * the queue of the parked lane of the same level. The rows are not copied.
+     * 
+     * @param recount
+     *        whether the rows must be counted, not being counted already as
+     *        this appender's own
+     * @return the parked lanes which have no counterpart, whose rows must be
+     *         moved once routing is known
+     */
+    private List<SimpleDBLane> adoptQueues(SimpleDBLane[] parkedLanes, boolean recount) {
+        List<SimpleDBLane> leftovers = new ArrayList<SimpleDBLane>();
+        List<SimpleDBLane> unmatched = new ArrayList<SimpleDBLane>(lanes);
+        for (SimpleDBLane parked : parkedLanes) {
+            BlockingQueue<SimpleDBRow> parkedQueue = parked.getQueue();
+            boolean isDefault = parked == parkedLanes[parkedLanes.length - 1];
+            if (isDefault && (queue == null || queue == parkedQueue)) {
+                queue = parkedQueue;
+                if (recount) {
+                    pending.addAndGet(parkedQueue.size());
+                    metrics.recordAdopted(parkedQueue);
+                }
+                continue;
+            }
+            SimpleDBLane match = null;
+            if (!isDefault) {
+                for (SimpleDBLane lane : unmatched) {
+                    if (lane.getLevel().equals(parked.getLevel())
+                            && (lane.getQueue() == parkedQueue || lane.getQueue().isEmpty())) {
+                        match = lane;
+                        break;
+                    }
+                }
+            }
+            if (match == null) {
+                leftovers.add(parked);
+            } else {
+                unmatched.remove(match);
+                match.adoptQueue(parkedQueue);
+                if (recount) {
+                    pending.addAndGet(parkedQueue.size());
+                    metrics.recordAdopted(parkedQueue);
+                }
+            }
+        }
+        return leftovers;
+    }
+
+    /**
+     * Register the appender's metrics and latency histograms with the platform
+     * MBean server. Failure to do so is reported but does not stop the
+     * appender.
+     */
+    private void registerMBeans() {
+        String name = ObjectName.quote(getName() != null ? getName() : dom);
+        String prefix = "com.kikini.logging.simpledb:type=SimpleDBAppender,name=" + name;
+        registerMBean(prefix, new StandardMBean(metrics, SimpleDBMetricsMBean.class, false));
+        registerMBean(prefix + ",latency=enqueue", new StandardMBean(metrics.getEnqueueLatency(),
+                LatencyHistogramMBean.class, false));
+        registerMBean(prefix + ",latency=dispatch", new StandardMBean(metrics.getDispatchLatency(),
+                LatencyHistogramMBean.class, false));
+        registerMBean(prefix + ",latency=ack", new StandardMBean(metrics.getAckLatency(),
+                LatencyHistogramMBean.class, false));
+    }
+
+    private void registerMBean(String name, StandardMBean mbean) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+            mbeanNames.add(objectName);
+        } catch (JMException e) {
+            addStatus(new WarnStatus("Could not register MBean " + name, this, e));
+        }
+    }
+
+    private void unregisterMBeans() {
+        for (ObjectName objectName : mbeanNames) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                addStatus(new WarnStatus("Could not unregister MBean " + objectName, this, e));
+            }
+        }
+        mbeanNames.clear();
+    }
+
+    /**
+     * @return the statistics of the appender's pipeline
+     */
+    SimpleDBMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Package-private getter for test */
+    AmazonSimpleDB getClient() {
+        return sdb;
+    }
+
+    /**
+     * Build the configuration of the SimpleDB client from the appender's
+     * properties, sizing the connection pool to the writer threads unless told
+     * otherwise
+     */
+    private ClientConfiguration clientConfiguration() {
+        ClientConfiguration config = new ClientConfiguration();
+        config.setMaxConnections(maxConnections > 0 ? maxConnections : runtime.getWorkerCount());
+        if (connectionTimeoutMillis > 0) config.setConnectionTimeout(connectionTimeoutMillis);
+        if (socketTimeoutMillis > 0) config.setSocketTimeout(socketTimeoutMillis);
+        if (maxErrorRetry >= 0) config.setMaxErrorRetry(maxErrorRetry);
+        return config;
+    }
+
+    /**
+     * Order the configured lanes from highest to lowest level, followed by the
+     * default lane which accepts everything
+     */
+    private void buildRouting() {
+        List<SimpleDBLane> sorted = new ArrayList<SimpleDBLane>(lanes);
+        Collections.sort(sorted, new Comparator<SimpleDBLane>() {
+
+            @Override
+            public int compare(SimpleDBLane a, SimpleDBLane b) {
+                return b.getLevel().toInt() - a.getLevel().toInt();
+            }
+        });
+        sorted.add(new SimpleDBLane(Level.ALL, loggingPeriodMillis, queue));
+        routing = sorted.toArray(new SimpleDBLane[sorted.size()]);
+        metrics.setLanes(routing);
+    }
+
+    private void buildRateLimiter() {
+        rateLimiter = rateLimits.isEmpty() ? null : new SimpleDBRateLimiter(rateLimits, suppressedSummaryPeriodMillis);
+    }
+
+    /**
+     * Register a consumer for the given lane with the shared runtime
+     */
+    private void registerLane(SimpleDBLane lane) {
+        boolean isDefault = lane.getQueue() == queue;
+        SimpleDBConsumer laneConsumer = isDefault ? consumer : new SimpleDBConsumer(lane.getQueue(), writer, pending);
+        laneConsumer.setAggregateDuplicates(aggregateDuplicates);
+        laneConsumer.setLoggingPeriodMillis(lane.getLoggingPeriodMillis());
+        laneConsumer.setConcurrency(lane.getThreads());
+        laneConsumer.setDomainCheck(runtime.getDomains(sdb), dom, this);
+        laneConsumer.setMetrics(metrics);
+        laneConsumer.setBatchPolicy(minBatchFill, maxBatchHoldMillis);
+        tasks.add(laneConsumer);
+        runtime.register(laneConsumer, this);
+    }
+
+    /**
+     * Stop accepting events and give up the shared runtime. This makes no
+     * network calls: rows still queued are left with the runtime, which keeps
+     * writing them on schedule. A restarted appender of the same name and
+     * domain adopts them; otherwise they are all written once
+     * {@link SimpleDBRuntime#LINGER_MILLIS} have passed.
+     * 
+     * @see ch.qos.logback.core.AppenderBase#stop()
+     */
+    @Override
+    public void stop() {
+        if (!isStarted()) return;
+        super.stop();
+        unregisterMBeans();
+        // not parked: the summaries owed are queued now, to be written with
+        // the rows left in the lanes
+        runtime.unregister(suppressedSummaries);
+        suppressedSummaries = null;
+        SimpleDBRateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            queueSuppressedSummaries(limiter.takeSummaries());
+        }
+        runtime.park(getName(), dom, routing, tasks);
+        tasks.clear();
+        rollup = null;
+        runtime.release();
+        runtime = null;
+        // the runtime may retire, shutting its clients down, before the
+        // appender starts again; it then gets a client, and a writer and
+        // consumer using it, from the runtime of the time
+        if (clientFromRuntime) {
+            sdb = null;
+            clientFromRuntime = false;
+        }
+        if (pipelineBuilt) {
+            writer = null;
+            consumer = null;
+            pipelineBuilt = false;
+        }
+    }
+
+    /** Package-private getter for test */
+    int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Reserve a place in the queues for an event in the lane of the given rank,
+     * where rank 0 is the highest priority lane. Lower lanes are allowed a
+     * smaller share of the maximum queue size so that they are shed first.
+     * 
+     * @return true if the event may be queued
+     */
+    private boolean admit(int rank, int laneCount) {
+        if (maxQueueSize <= 0) {
+            pending.incrementAndGet();
+            return true;
+        }
+        long limit = (long)maxQueueSize * (laneCount - rank) / laneCount;
+        while (true) {
+            int current = pending.get();
+            if (current >= limit) return false;
+            if (pending.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * Find the lane for the given level and reserve a place in it
+     * 
+     * @return the lane, or null if the event must be shed
+     */
+    private SimpleDBLane reserveLane(Level level) {
+        SimpleDBLane[] lanes = routing;
+        int rank = 0;
+        while (!lanes[rank].accepts(level)) {
+            rank++;
+        }
+        SimpleDBLane lane = lanes[rank];
+        if (!admit(rank, lanes.length)) {
+            if (lane.recordDrop() == 1) {
+                addStatus(new WarnStatus("Queue full, shedding events at level " + level, this));
+            }
+            return null;
+        }
+        return lane;
+    }
+
+    /**
+     * Runtime task queueing the summaries of suppressed events as each summary
+     * period elapses, so that they are written even when no more events come.
+     * The summaries still owed are queued when the appender stops.
+     */
+    private class SuppressedSummaryTask implements SimpleDBTask {
+
+        @Override
+        public boolean runOnce() {
+            SimpleDBRateLimiter limiter = rateLimiter;
+            if (limiter == null) return false;
+            List<SimpleDBRateLimiter.Summary> summaries = limiter.takeSummariesIfDue();
+            queueSuppressedSummaries(summaries);
+            return !summaries.isEmpty();
+        }
+
+        @Override
+        public long millisUntilReady(long now) {
+            SimpleDBRateLimiter limiter = rateLimiter;
+            return limiter == null ? suppressedSummaryPeriodMillis : limiter.millisUntilSummary();
+        }
+
+        @Override
+        public void finish() {
+            // the lanes may already be finished; stop() queues what is owed
+        }
+    }
+
+    /**
+     * Queue a summary row for each logger and level which had events
+     * suppressed
+     */
+    private void queueSuppressedSummaries(List<SimpleDBRateLimiter.Summary> summaries) {
+        for (SimpleDBRateLimiter.Summary summary : summaries) {
+            SimpleDBLane lane = reserveLane(summary.getLevel());
+            if (lane == null) continue;
+            String count = Long.toString(summary.getSuppressed());
+            SimpleDBRow row = new SimpleDBRow("Suppressed " + count + " events", host, contextName,
+                    summary.getLogger(), summary.getLevel().toString(), System.currentTimeMillis(),
+                    lane.getLoggingPeriodMillis(), ImmutableMap.of(SUPPRESSED_MDC_KEY, count));
+            lane.getQueue().add(row);
+            metrics.recordEnqueue(row);
+        }
     }
 
     @Override
     public void append(LoggingEvent event) {
+        Level level = event.getLevel();
+        if (rollup != null) {
+            rollup.record(event.getLoggerName(), level.toString(), event.getTimeStamp());
+        }
+        SimpleDBRateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            if (!limiter.tryAcquire(event.getLoggerName(), level)) {
+                metrics.recordSuppressed();
+                return;
+            }
+        }
+        SimpleDBLane lane = reserveLane(level);
+        if (lane == null) return;
         Map<String, String> mdcPropertyMap = ImmutableMap.copyOf(event.getMDCPropertyMap());
-        queueForProcessing(event.getFormattedMessage(), contextName, event.getLoggerName(), event.getLevel().toString(), event.getTimeStamp(), mdcPropertyMap);
+        SimpleDBRow row = new SimpleDBRow(event.getFormattedMessage(), host, contextName, event.getLoggerName(),
+                level.toString(), event.getTimeStamp(), lane.getLoggingPeriodMillis(), mdcPropertyMap);
+        lane.getQueue().add(row);
+        metrics.recordEnqueue(row);
+        metrics.recordEnqueueLatency(event.getTimeStamp(), System.currentTimeMillis());
     }
 }
\ No newline at end of file
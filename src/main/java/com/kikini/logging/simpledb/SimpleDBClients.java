@@ -0,0 +1,189 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Request;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.handlers.AbstractRequestHandler;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.amazonaws.util.TimingInfo;
+
+/**
+ * Factory of SimpleDB clients shared by every appender of a JVM. There is one
+ * client per set of credentials and endpoint, so appenders writing to the same
+ * account share its HTTP connection pool rather than each opening their own.
+ * <p>
+ * The pool of a client is sized to the number of writer threads which may use
+ * it at once, growing if a later appender asks for more. The first appender to
+ * create a client decides its timeouts and retries.
+ * <p>
+ * Each client counts its requests and the most it has had in flight at once.
+ * Since the pool keeps connections open between requests, no more connections
+ * are opened than that peak, so the difference is a lower bound on the number
+ * of requests which reused a connection.
+ */
+class SimpleDBClients {
+
+    /**
+     * A shared client and its statistics
+     */
+    static class Entry extends AbstractRequestHandler {
+
+        private final AmazonSimpleDB client;
+        private ClientConfiguration config;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger peakInFlight = new AtomicInteger();
+
+        Entry(AmazonSimpleDB client, ClientConfiguration config) {
+            this.client = client;
+            this.config = config;
+        }
+
+        @Override
+        public void beforeRequest(Request<?> request) {
+            requests.incrementAndGet();
+            int current = inFlight.incrementAndGet();
+            while (true) {
+                int peak = peakInFlight.get();
+                if (current <= peak || peakInFlight.compareAndSet(peak, current)) break;
+            }
+        }
+
+        @Override
+        public void afterResponse(Request<?> request, Object response, TimingInfo timingInfo) {
+            inFlight.decrementAndGet();
+        }
+
+        @Override
+        public void afterError(Request<?> request, Exception e) {
+            inFlight.decrementAndGet();
+        }
+
+        AmazonSimpleDB getClient() {
+            return client;
+        }
+
+        synchronized int getMaxConnections() {
+            return config.getMaxConnections();
+        }
+
+        /**
+         * Grow the connection pool to at least the given size
+         */
+        synchronized void ensureMaxConnections(int maxConnections) {
+            if (maxConnections <= config.getMaxConnections()) return;
+            config = new ClientConfiguration(config).withMaxConnections(maxConnections);
+            // the SDK replaces its HTTP client; the old one may still be in use
+            // by another thread, and closes its connections when collected
+            if (client instanceof AmazonSimpleDBClient) {
+                ((AmazonSimpleDBClient)client).setConfiguration(config);
+            }
+        }
+
+        long getRequests() {
+            return requests.get();
+        }
+
+        int getPeakInFlight() {
+            return peakInFlight.get();
+        }
+
+        /**
+         * @return the least number of requests which must have reused an open
+         *         connection
+         */
+        long getReusedConnections() {
+            return Math.max(0, requests.get() - peakInFlight.get());
+        }
+    }
+
+    /**
+     * Creates the clients
+     */
+    interface Factory {
+
+        AmazonSimpleDB create(String accessId, String secretKey, String endpoint, ClientConfiguration config);
+    }
+
+    private static final Factory SDK = new Factory() {
+
+        @Override
+        public AmazonSimpleDB create(String accessId, String secretKey, String endpoint, ClientConfiguration config) {
+            AmazonSimpleDBClient client = new AmazonSimpleDBClient(new BasicAWSCredentials(accessId, secretKey),
+                    config);
+            if (endpoint != null) {
+                client.setEndpoint(endpoint);
+            }
+            return client;
+        }
+    };
+
+    private static volatile Factory factory = SDK;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /** Package-private setter for test; null restores the SDK's clients */
+    static void setFactory(Factory factory) {
+        SimpleDBClients.factory = factory == null ? SDK : factory;
+    }
+
+    /**
+     * Get the shared client for the given credentials and endpoint, creating it
+     * if needed
+     * 
+     * @param endpoint
+     *        the SimpleDB endpoint, or null for the SDK's default
+     * @param config
+     *        the configuration to use if the client is created. If the client
+     *        exists, only its pool size is grown to match.
+     */
+    synchronized Entry get(String accessId, String secretKey, String endpoint, ClientConfiguration config) {
+        String key = accessId + ':' + secretKey + ':' + endpoint;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            ClientConfiguration own = new ClientConfiguration(config);
+            AmazonSimpleDB client = factory.create(accessId, secretKey, endpoint, own);
+            entry = new Entry(client, own);
+            if (client instanceof AmazonSimpleDBClient) {
+                ((AmazonSimpleDBClient)client).addRequestHandler(entry);
+            }
+            entries.put(key, entry);
+        } else {
+            entry.ensureMaxConnections(config.getMaxConnections());
+        }
+        return entry;
+    }
+
+    /**
+     * Release the connections of every client
+     */
+    synchronized void shutdown() {
+        for (Entry entry : entries.values()) {
+            if (entry.client instanceof AmazonSimpleDBClient) {
+                ((AmazonSimpleDBClient)entry.client).shutdown();
+            }
+        }
+        entries.clear();
+    }
+}
@@ -18,23 +18,440 @@ package com.kikini.logging.simpledb;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+import com.amazonaws.AmazonClientException;
 
 /**
  * {@link Runnable} to read from a {@link BlockingQueue} of {@link SimpleDBRow}
  * s, and write them to a {@link SimpleDBWriter}. The thread will wait on
  * {@link BlockingQueue#take()}, drain all the objects from the queue, then
  * write them to the writer before waiting again.
+ * <p>
+ * Alternatively, as a {@link SimpleDBTask}, the worker threads of a
+ * {@link SimpleDBRuntime} may share many consumers by calling
+ * {@link #drainOnce(int)}, which writes whatever rows are ready without
+ * waiting. At most {@link #setConcurrency(int)}
+ * threads drain a consumer at once. If the consumer was given a domain to
+ * verify, nothing is written until the domain is known to exist; rows wait in
+ * the queue meanwhile, and failed checks are retried.
+ * <p>
+ * Rows which cannot be written are reported to the status of the appender
+ * and written again after a while, a few times, before they are given up;
+ * meanwhile no other rows are written.
+ * <p>
+ * Optionally, identical rows are first collapsed into one using a
+ * {@link RowAggregator}: every row whose delay has expired is taken at once,
+ * so the duplicates of a logging period are collapsed together, then written
+ * a turn's worth at a time. Small trailing batches may also be held back for
+ * a while to be filled by the rows of the next turn.
  * 
  * @author Gabe Nell
  */
-class SimpleDBConsumer implements Runnable {
+class SimpleDBConsumer implements Runnable, SimpleDBTask {
+
+    private static final long DOMAIN_RETRY_MILLIS = 30000;
+    /** Attempts at writing rows before they are given up */
+    static final int MAX_WRITE_ATTEMPTS = 3;
 
     private BlockingQueue<SimpleDBRow> queue;
     private SimpleDBWriter writer;
+    private AtomicInteger pending;
+    private RowAggregator aggregator = null;
+    private long loggingPeriodMillis = 10000;
+    private int concurrency = 1;
+    private final AtomicInteger active = new AtomicInteger();
+    private SimpleDBDomains domains = null;
+    private String domain = null;
+    private ContextAware status = null;
+    private volatile boolean domainReady = true;
+    private volatile long retryDomainAt = 0;
+    private SimpleDBMetrics metrics = new SimpleDBMetrics();
+    private int minBatchFill = 0;
+    private long maxHoldMillis = 0;
+    private final List<SimpleDBRow> held = new ArrayList<SimpleDBRow>();
+    private long heldSince = 0;
+    /** Rows of the current window taken and aggregated, not yet written */
+    private final List<SimpleDBRow> window = new ArrayList<SimpleDBRow>();
+    private final List<SimpleDBRow> failed = new ArrayList<SimpleDBRow>();
+    private int failedAttempts = 0;
+    /** Wait before writing failed rows again, doubled after each attempt */
+    private long writeRetryMillis = 1000;
+    private long retryWriteAt = 0;
 
     SimpleDBConsumer(BlockingQueue<SimpleDBRow> queue, SimpleDBWriter writer) {
+        this(queue, writer, new AtomicInteger());
+    }
+
+    /**
+     * @param pending
+     *        count of rows not yet taken from the queue, shared with the
+     *        appender. It is decremented as rows are taken.
+     */
+    SimpleDBConsumer(BlockingQueue<SimpleDBRow> queue, SimpleDBWriter writer, AtomicInteger pending) {
         this.queue = queue;
         this.writer = writer;
+        this.pending = pending;
+    }
+
+    /**
+     * @param aggregateDuplicates
+     *        whether to collapse identical rows taken in the same window
+     */
+    void setAggregateDuplicates(boolean aggregateDuplicates) {
+        this.aggregator = aggregateDuplicates ? new RowAggregator() : null;
+    }
+
+    /**
+     * @param loggingPeriodMillis
+     *        the granularity of the delay of rows in the queue, used to
+     *        predict when rows will next be ready
+     */
+    void setLoggingPeriodMillis(long loggingPeriodMillis) {
+        this.loggingPeriodMillis = loggingPeriodMillis;
+    }
+
+    /**
+     * @param concurrency
+     *        the maximum number of threads which may drain this consumer at
+     *        once
+     */
+    void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @param metrics
+     *        where to count rows taken from the queue and errors
+     */
+    void setMetrics(SimpleDBMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Hold back the rows of a trailing batch with fewer than the given number
+     * of items, so that they may fill a batch with the rows of the next turn.
+     * Each request carries a fixed cost in BoxUsage, so fuller batches cost
+     * less per event. Rows are held for at most the given time.
+     * 
+     * @param minBatchFill
+     *        the fewest items worth a request of their own, up to 25. 0 writes
+     *        every row as soon as it is ready.
+     * @param maxHoldMillis
+     *        the longest rows are held back
+     */
+    void setBatchPolicy(int minBatchFill, long maxHoldMillis) {
+        this.minBatchFill = Math.min(minBatchFill, SimpleDBWriter.MAX_BATCH_PUT);
+        this.maxHoldMillis = maxHoldMillis;
+    }
+
+    /** Package-private setter for test */
+    void setWriteRetryMillis(long writeRetryMillis) {
+        this.writeRetryMillis = writeRetryMillis;
+    }
+
+    /**
+     * Hold writes until the given domain has been verified to exist
+     * 
+     * @param domains
+     *        the cache of domains of the writer's client
+     * @param domain
+     *        the domain the writer writes to
+     * @param status
+     *        where to report failures to reach SimpleDB
+     */
+    void setDomainCheck(SimpleDBDomains domains, String domain, ContextAware status) {
+        this.domains = domains;
+        this.domain = domain;
+        this.status = status;
+        this.domainReady = domains.isKnown(domain);
+    }
+
+    /**
+     * @return true if the domain is ready to be written
+     */
+    private boolean checkDomain() {
+        if (domainReady) return true;
+        if (System.currentTimeMillis() < retryDomainAt) return false;
+        if (retryDomainAt != 0) metrics.recordRetry();
+        try {
+            domains.ensure(domain);
+            domainReady = true;
+        } catch (AmazonClientException e) {
+            retryDomainAt = System.currentTimeMillis() + DOMAIN_RETRY_MILLIS;
+            metrics.recordError();
+            if (status != null) {
+                status.addError("Could not verify SimpleDB domain " + domain, e);
+            }
+        }
+        return domainReady;
+    }
+
+    BlockingQueue<SimpleDBRow> getQueue() {
+        return queue;
+    }
+
+    private void write(List<SimpleDBRow> rows) {
+        writeTaken(take(rows));
+    }
+
+    /**
+     * Count the rows as taken from the queue
+     * 
+     * @return the rows to write, aggregated if duplicates are
+     */
+    private List<SimpleDBRow> take(List<SimpleDBRow> rows) {
+        pending.addAndGet(-rows.size());
+        metrics.recordTaken(rows);
+        return aggregator != null ? aggregator.aggregate(rows) : rows;
+    }
+
+    private void writeTaken(List<SimpleDBRow> rows) {
+        try {
+            writer.writeRows(rows);
+        } catch (RuntimeException e) {
+            metrics.recordError();
+            throw e;
+        }
+    }
+
+    /**
+     * Keep rows which could not be written, to be written again after a
+     * while, unless they have been tried too often
+     */
+    private void writeFailed(List<SimpleDBRow> rows, int attempts, long now, RuntimeException e) {
+        if (attempts >= MAX_WRITE_ATTEMPTS) {
+            if (status != null) {
+                status.addError("Could not write " + rows.size() + " rows to SimpleDB in " + attempts
+                        + " attempts, dropping them", e);
+            }
+            return;
+        }
+        long wait = writeRetryMillis << (attempts - 1);
+        synchronized (failed) {
+            failed.addAll(rows);
+            failedAttempts = Math.max(failedAttempts, attempts);
+            retryWriteAt = now + wait;
+        }
+        if (status != null) {
+            status.addError("Could not write " + rows.size() + " rows to SimpleDB, retrying in " + wait + " ms", e);
+        }
+    }
+
+    /**
+     * @return the rows which could not be written
+     */
+    private List<SimpleDBRow> takeFailed() {
+        synchronized (failed) {
+            List<SimpleDBRow> rows = new ArrayList<SimpleDBRow>(failed);
+            failed.clear();
+            failedAttempts = 0;
+            return rows;
+        }
+    }
+
+    /**
+     * Write up to the given number of rows whose delay has expired, without
+     * waiting
+     * 
+     * @param maxRows
+     *        the most rows to take from the queue
+     * @return true if any rows were written, false if none were ready or the
+     *         consumer was already being drained by as many threads as allowed
+     */
+    boolean drainOnce(int maxRows) {
+        while (true) {
+            int current = active.get();
+            if (current >= concurrency) return false;
+            if (active.compareAndSet(current, current + 1)) break;
+        }
+        try {
+            if (!checkDomain()) return false;
+            long now = System.currentTimeMillis();
+            List<SimpleDBRow> rows = null;
+            int attempts = 0;
+            synchronized (failed) {
+                if (!failed.isEmpty()) {
+                    // nothing new is written until the failed rows are
+                    if (now < retryWriteAt) return false;
+                    rows = new ArrayList<SimpleDBRow>(failed);
+                    attempts = failedAttempts;
+                    failed.clear();
+                }
+            }
+            if (rows == null) {
+                rows = takeReady(maxRows);
+                if (minBatchFill > 1) {
+                    rows = applyBatchPolicy(rows, now);
+                }
+                if (rows.isEmpty()) return false;
+            }
+            try {
+                writeTaken(rows);
+                if (attempts > 0) {
+                    synchronized (failed) {
+                        if (failed.isEmpty()) failedAttempts = 0;
+                    }
+                }
+            } catch (RuntimeException e) {
+                writeFailed(rows, attempts + 1, now, e);
+            }
+            return true;
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Take up to the given number of rows whose delay has expired. When
+     * aggregating, every expired row is taken at once, so that the duplicates
+     * of a whole window are collapsed together however many turns it takes to
+     * write them.
+     * 
+     * @return the rows taken, aggregated if duplicates are
+     */
+    private List<SimpleDBRow> takeReady(int maxRows) {
+        List<SimpleDBRow> rows = new ArrayList<SimpleDBRow>();
+        if (aggregator == null) {
+            queue.drainTo(rows, maxRows);
+            return take(rows);
+        }
+        synchronized (window) {
+            if (window.isEmpty()) {
+                queue.drainTo(rows);
+                window.addAll(take(rows));
+                rows.clear();
+            }
+            List<SimpleDBRow> turn = window.subList(0, Math.min(maxRows, window.size()));
+            rows.addAll(turn);
+            turn.clear();
+        }
+        return rows;
+    }
+
+    /**
+     * @return the rows of the window not yet written
+     */
+    private List<SimpleDBRow> takeWindow() {
+        synchronized (window) {
+            List<SimpleDBRow> rows = new ArrayList<SimpleDBRow>(window);
+            window.clear();
+            return rows;
+        }
+    }
+
+    /**
+     * Add any held rows to those just taken, and hold back the trailing batch
+     * if it is too small and the held rows have not waited too long
+     * 
+     * @return the rows to write now
+     */
+    private List<SimpleDBRow> applyBatchPolicy(List<SimpleDBRow> taken, long now) {
+        synchronized (held) {
+            if (taken.isEmpty() && (held.isEmpty() || now - heldSince < maxHoldMillis)) return taken;
+            List<SimpleDBRow> rows = new ArrayList<SimpleDBRow>(held);
+            rows.addAll(taken);
+            boolean overdue = !held.isEmpty() && now - heldSince >= maxHoldMillis;
+            held.clear();
+            int trailing = rows.size() % SimpleDBWriter.MAX_BATCH_PUT;
+            if (overdue || trailing == 0 || trailing >= minBatchFill) return rows;
+            List<SimpleDBRow> kept = rows.subList(rows.size() - trailing, rows.size());
+            held.addAll(kept);
+            kept.clear();
+            heldSince = now;
+            return rows;
+        }
+    }
+
+    /**
+     * @return the rows held back by the batch policy
+     */
+    private List<SimpleDBRow> takeHeld() {
+        synchronized (held) {
+            List<SimpleDBRow> rows = new ArrayList<SimpleDBRow>(held);
+            held.clear();
+            return rows;
+        }
+    }
+
+    /**
+     * Put the rows taken but not written, held back by the batch policy, left
+     * in the window or waiting to be written again, back in the queue, for
+     * whoever takes the queue over
+     */
+    void returnHeld() {
+        List<SimpleDBRow> rows = takeHeld();
+        rows.addAll(takeWindow());
+        rows.addAll(takeFailed());
+        // taken once already, so counted as pending again
+        pending.addAndGet(rows.size());
+        queue.addAll(rows);
+    }
+
+    @Override
+    public boolean runOnce() {
+        return drainOnce(SimpleDBRuntime.MAX_ROWS_PER_TURN);
+    }
+
+    /**
+     * @return the number of milliseconds until rows may next be ready. When
+     *         the queue is empty, this is the end of the current logging
+     *         period, since that is when a row added now would be ready.
+     */
+    @Override
+    public long millisUntilReady(long now) {
+        if (!domainReady) {
+            return Math.max(0, retryDomainAt - now);
+        }
+        synchronized (failed) {
+            if (!failed.isEmpty()) return Math.max(0, retryWriteAt - now);
+        }
+        synchronized (window) {
+            if (!window.isEmpty()) return 0;
+        }
+        long wait;
+        SimpleDBRow head = queue.peek();
+        if (head != null) {
+            wait = Math.max(0, head.getDelay(TimeUnit.MILLISECONDS));
+        } else {
+            wait = loggingPeriodMillis - now % loggingPeriodMillis;
+        }
+        synchronized (held) {
+            if (!held.isEmpty()) {
+                wait = Math.min(wait, Math.max(0, heldSince + maxHoldMillis - now));
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * Write every row in the queue regardless of delay. Used when shutting
+     * down.
+     */
+    void drainAll() {
+        List<SimpleDBRow> rows = new ArrayList<SimpleDBRow>();
+        SimpleDBRow row;
+        while ((row = queue.peek()) != null) {
+            // removed one by one, since drainTo takes only the expired rows
+            if (queue.remove(row)) rows.add(row);
+        }
+        List<SimpleDBRow> batch = takeFailed();
+        batch.addAll(takeHeld());
+        batch.addAll(takeWindow());
+        if (!rows.isEmpty()) {
+            batch.addAll(take(rows));
+        }
+        if (!batch.isEmpty()) {
+            writeTaken(batch);
+        }
+    }
+
+    @Override
+    public void finish() {
+        drainAll();
     }
 
     @Override
@@ -49,7 +466,7 @@ class SimpleDBConsumer implements Runnable {
                 return;
             }
             queue.drainTo(rows);
-            writer.writeRows(rows);
+            write(rows);
         }
     }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsResult;
+
+/**
+ * Cache of the domains known to exist for one SimpleDB client. The first
+ * request lists every domain, following {@code NextToken} across all pages;
+ * after that, domains are only created when missing. Once a domain is known,
+ * checking it costs a lookup in a concurrent set.
+ */
+class SimpleDBDomains {
+
+    private final AmazonSimpleDB sdb;
+    private final Set<String> known = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private boolean listed = false;
+
+    SimpleDBDomains(AmazonSimpleDB sdb) {
+        this.sdb = sdb;
+    }
+
+    /**
+     * Make sure the given domain exists, creating it if necessary. This may
+     * make network calls, so should not be called from the logging thread.
+     * 
+     * @param domain
+     *        the domain name
+     * @throws com.amazonaws.AmazonClientException
+     *         if SimpleDB could not be reached
+     */
+    void ensure(String domain) {
+        if (known.contains(domain)) return;
+        synchronized (this) {
+            if (known.contains(domain)) return;
+            if (!listed) {
+                listAll();
+                listed = true;
+            }
+            if (!known.contains(domain)) {
+                sdb.createDomain(new CreateDomainRequest(domain));
+                known.add(domain);
+            }
+        }
+    }
+
+    /**
+     * @return true if the domain is known to exist, without making any calls
+     */
+    boolean isKnown(String domain) {
+        return known.contains(domain);
+    }
+
+    private void listAll() {
+        String nextToken = null;
+        do {
+            ListDomainsResult result = sdb.listDomains(new ListDomainsRequest().withNextToken(nextToken));
+            known.addAll(result.getDomainNames());
+            nextToken = result.getNextToken();
+        } while (nextToken != null);
+    }
+}
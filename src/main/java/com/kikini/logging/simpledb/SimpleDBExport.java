@@ -0,0 +1,520 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import com.amazonaws.services.simpledb.util.SimpleDBUtils;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Exports a whole domain to gzipped files of JSON lines, one item per line:
+ * 
+ * <pre>
+ * {"itemName":"...","attributes":{"msg":["..."],"level":["INFO"],...}}
+ * </pre>
+ * 
+ * The domain is split into partitions by ranges of item name, which for the
+ * random UUIDs written by {@link SimpleDBWriter} hold about the same number of
+ * items each, and several partitions are read at once. Each partition is read
+ * in order of item name and written to its own files, a new file being started
+ * every so many items.
+ * <p>
+ * Whenever a file is complete, the partition records a checkpoint of the last
+ * item written next to it. An export started again in the same directory
+ * resumes every partition from its checkpoint, rewriting only the file which
+ * was in progress.
+ */
+public class SimpleDBExport {
+
+    /** Most partitions, one per two-digit hex prefix */
+    static final int MAX_PARTITIONS = 256;
+
+    private static final int PAGE_SIZE = 2500;
+    private static final String AFTER = "after";
+    private static final String FILE = "file";
+    private static final String DONE = "done";
+
+    private final AmazonSimpleDB sdb;
+    private final String dom;
+    private final File directory;
+    private int partitions = 16;
+    private int threads = 8;
+    private long recordsPerFile = 100000;
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    private DateTimeFormatter timeFormatter = ISODateTimeFormat.dateTime();
+    private boolean legacyTimeColumn = false;
+    private boolean consistentRead = false;
+    private final AtomicLong exported = new AtomicLong();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicInteger partitionsDone = new AtomicInteger();
+
+    /**
+     * @param sdb
+     *        the client to read with
+     * @param dom
+     *        the domain to export
+     * @param directory
+     *        the directory to write the files and checkpoints in
+     */
+    public SimpleDBExport(AmazonSimpleDB sdb, String dom, File directory) {
+        this.sdb = sdb;
+        this.dom = dom;
+        this.directory = directory;
+    }
+
+    /**
+     * Set the number of partitions, at most 256. An export must be resumed
+     * with the same number.
+     */
+    public void setPartitions(int partitions) {
+        if (partitions < 1 || partitions > MAX_PARTITIONS) {
+            throw new IllegalArgumentException("partitions must be between 1 and " + MAX_PARTITIONS);
+        }
+        this.partitions = partitions;
+    }
+
+    /**
+     * Set the number of partitions read at once
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be greater than 0");
+        this.threads = threads;
+    }
+
+    /**
+     * Set the number of items after which a partition starts a new file
+     */
+    public void setRecordsPerFile(long recordsPerFile) {
+        if (recordsPerFile < 1) throw new IllegalArgumentException("records per file must be greater than 0");
+        this.recordsPerFile = recordsPerFile;
+    }
+
+    /**
+     * Only export items whose time is in the given range
+     * 
+     * @param from
+     *        the earliest time, inclusive, in milliseconds since the epoch
+     * @param to
+     *        the latest time, exclusive
+     */
+    public void setTimeRange(long from, long to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Set the time zone the appender writes the time column in, which time
+     * ranges are compared in on the legacy time column
+     */
+    public void setTimeZone(String timeZone) {
+        timeFormatter = ISODateTimeFormat.dateTime().withZone(DateTimeZone.forID(timeZone));
+    }
+
+    /**
+     * Compare time ranges on the ISO 8601 time column rather than the
+     * timeMillis column, for domains holding items written before the
+     * appender wrote timeMillis
+     */
+    public void setLegacyTimeColumn(boolean legacyTimeColumn) {
+        this.legacyTimeColumn = legacyTimeColumn;
+    }
+
+    public void setConsistentRead(boolean consistentRead) {
+        this.consistentRead = consistentRead;
+    }
+
+    /**
+     * @return the number of items written to files so far
+     */
+    public long getExported() {
+        return exported.get();
+    }
+
+    /**
+     * @return the number of files completed so far
+     */
+    public long getFiles() {
+        return files.get();
+    }
+
+    /**
+     * @return the number of partitions completely exported, including those
+     *         done by an earlier run
+     */
+    public int getPartitionsDone() {
+        return partitionsDone.get();
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * @return the lowest item name of each partition, the first being empty
+     */
+    static List<String> lowerBounds(int partitions) {
+        List<String> bounds = new ArrayList<String>();
+        bounds.add("");
+        for (int i = 1; i < partitions; i++) {
+            bounds.add(String.format("%02x", i * MAX_PARTITIONS / partitions));
+        }
+        return bounds;
+    }
+
+    /**
+     * Export every partition not yet done, waiting until they are
+     * 
+     * @throws IOException
+     *         if a file could not be written
+     * @throws AmazonClientException
+     *         if SimpleDB could not be read
+     */
+    public void run() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        List<String> bounds = lowerBounds(partitions);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setNameFormat(
+                "SimpleDBExport-%d").build());
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < partitions; i++) {
+                String upper = i + 1 < partitions ? bounds.get(i + 1) : null;
+                results.add(executor.submit(new Partition(i, bounds.get(i), upper)));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while exporting", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+            throw new AmazonClientException("Could not export", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Append an item as a JSON object
+     */
+    static void appendJson(Item item, StringBuilder json) {
+        Map<String, List<String>> attributes = new LinkedHashMap<String, List<String>>();
+        for (Attribute attribute : item.getAttributes()) {
+            List<String> values = attributes.get(attribute.getName());
+            if (values == null) {
+                values = new ArrayList<String>();
+                attributes.put(attribute.getName(), values);
+            }
+            values.add(attribute.getValue());
+        }
+        json.append("{\"itemName\":");
+        appendString(item.getName(), json);
+        json.append(",\"attributes\":{");
+        boolean first = true;
+        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            if (!first) json.append(',');
+            first = false;
+            appendString(attribute.getKey(), json);
+            json.append(":[");
+            for (int i = 0; i < attribute.getValue().size(); i++) {
+                if (i > 0) json.append(',');
+                appendString(attribute.getValue().get(i), json);
+            }
+            json.append(']');
+        }
+        json.append("}}");
+    }
+
+    private static void appendString(String s, StringBuilder json) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                json.append("\\\"");
+                break;
+            case '\\':
+                json.append("\\\\");
+                break;
+            case '\n':
+                json.append("\\n");
+                break;
+            case '\r':
+                json.append("\\r");
+                break;
+            case '\t':
+                json.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int)c));
+                } else {
+                    json.append(c);
+                }
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * Reads one range of item names into its own files
+     */
+    private class Partition implements Callable<Void> {
+
+        private final String name;
+        private final String lower;
+        private final String upper;
+        private final File checkpoint;
+        private Writer out = null;
+        private long inFile = 0;
+
+        Partition(int index, String lower, String upper) {
+            this.name = String.format("%s-p%03d", dom, index);
+            this.lower = lower;
+            this.upper = upper;
+            this.checkpoint = new File(directory, name + ".checkpoint");
+        }
+
+        private String expression(String after) {
+            List<String> predicates = new ArrayList<String>();
+            predicates.add(after == null ? "itemName() >= " + SimpleDBUtils.quoteValue(lower) : "itemName() > "
+                    + SimpleDBUtils.quoteValue(after));
+            if (upper != null) predicates.add("itemName() < " + SimpleDBUtils.quoteValue(upper));
+            SimpleDBTimeColumn time = legacyTimeColumn ? SimpleDBTimeColumn.iso(timeFormatter)
+                    : SimpleDBTimeColumn.MILLIS;
+            if (from != Long.MIN_VALUE) predicates.add(time.compare(">=", from));
+            if (to != Long.MAX_VALUE) predicates.add(time.compare("<", to));
+            StringBuilder select = new StringBuilder("select * from ").append(SimpleDBUtils.quoteName(dom));
+            for (int i = 0; i < predicates.size(); i++) {
+                select.append(i == 0 ? " where " : " and ").append(predicates.get(i));
+            }
+            return select.append(" order by itemName() asc limit ").append(PAGE_SIZE).toString();
+        }
+
+        private File file(int seq) {
+            return new File(directory, String.format("%s-%05d.jsonl.gz", name, seq));
+        }
+
+        @Override
+        public Void call() throws IOException {
+            Properties state = readCheckpoint();
+            if (Boolean.parseBoolean(state.getProperty(DONE))) {
+                partitionsDone.incrementAndGet();
+                return null;
+            }
+            String after = state.getProperty(AFTER);
+            int seq = Integer.parseInt(state.getProperty(FILE, "0"));
+            String expression = expression(after);
+            String nextToken = null;
+            StringBuilder line = new StringBuilder();
+            try {
+                do {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new AmazonClientException("Interrupted while exporting " + name);
+                    }
+                    SelectResult result = sdb.select(new SelectRequest(expression, consistentRead)
+                            .withNextToken(nextToken));
+                    for (Item item : result.getItems()) {
+                        if (out == null) out = open(file(seq));
+                        line.setLength(0);
+                        appendJson(item, line);
+                        out.write(line.append('\n').toString());
+                        after = item.getName();
+                        exported.incrementAndGet();
+                        if (++inFile >= recordsPerFile) {
+                            close();
+                            writeCheckpoint(after, ++seq, false);
+                        }
+                    }
+                    nextToken = result.getNextToken();
+                } while (nextToken != null);
+                close();
+                writeCheckpoint(after, seq + 1, true);
+                partitionsDone.incrementAndGet();
+            } finally {
+                if (out != null) out.close();
+            }
+            return null;
+        }
+
+        private Writer open(File file) throws IOException {
+            OutputStream stream = new GZIPOutputStream(new FileOutputStream(file), 64 * 1024);
+            return new BufferedWriter(new OutputStreamWriter(stream, Charsets.UTF_8), 64 * 1024);
+        }
+
+        private void close() throws IOException {
+            if (out == null) return;
+            out.close();
+            out = null;
+            inFile = 0;
+            files.incrementAndGet();
+        }
+
+        private Properties readCheckpoint() throws IOException {
+            Properties state = new Properties();
+            if (!checkpoint.exists()) return state;
+            InputStream in = new FileInputStream(checkpoint);
+            try {
+                state.load(in);
+            } finally {
+                in.close();
+            }
+            return state;
+        }
+
+        private void writeCheckpoint(String after, int seq, boolean done) throws IOException {
+            Properties state = new Properties();
+            if (after != null) state.setProperty(AFTER, after);
+            state.setProperty(FILE, Integer.toString(seq));
+            state.setProperty(DONE, Boolean.toString(done));
+            File temp = new File(directory, name + ".checkpoint.tmp");
+            OutputStream stream = new FileOutputStream(temp);
+            try {
+                state.store(stream, "export of " + dom);
+            } finally {
+                stream.close();
+            }
+            if (!temp.renameTo(checkpoint)) throw new IOException("Could not replace " + checkpoint);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: SimpleDBExport domain directory [--partitions n] [--threads n]"
+                + " [--recordsPerFile n] [--from time --to time] [--timeZone zone] [--legacyTime true|false]"
+                + " [--endpoint url]");
+        System.err.println("(credentials are read from AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY;"
+                + " times are ISO 8601)");
+    }
+
+    /** Main */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length % 2 != 0) {
+            usage();
+            return;
+        }
+        String accessId = System.getenv("AWS_ACCESS_KEY_ID");
+        String secretKey = System.getenv("AWS_SECRET_ACCESS_KEY");
+        if (accessId == null || secretKey == null) {
+            usage();
+            return;
+        }
+        AmazonSimpleDBClient sdb = new AmazonSimpleDBClient(new BasicAWSCredentials(accessId, secretKey));
+        final SimpleDBExport export = new SimpleDBExport(sdb, args[0], new File(args[1]));
+        DateTimeZone zone = DateTimeZone.getDefault();
+        String from = null;
+        String to = null;
+        for (int i = 2; i < args.length; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+            if (option.equals("--partitions")) {
+                export.setPartitions(Integer.parseInt(value));
+            } else if (option.equals("--threads")) {
+                export.setThreads(Integer.parseInt(value));
+            } else if (option.equals("--recordsPerFile")) {
+                export.setRecordsPerFile(Long.parseLong(value));
+            } else if (option.equals("--from")) {
+                from = value;
+            } else if (option.equals("--to")) {
+                to = value;
+            } else if (option.equals("--timeZone")) {
+                export.setTimeZone(value);
+                zone = DateTimeZone.forID(value);
+            } else if (option.equals("--legacyTime")) {
+                export.setLegacyTimeColumn(Boolean.parseBoolean(value));
+            } else if (option.equals("--endpoint")) {
+                sdb.setEndpoint(value);
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (from != null || to != null) {
+            DateTimeFormatter parser = ISODateTimeFormat.dateTimeParser().withZone(zone);
+            export.setTimeRange(from == null ? Long.MIN_VALUE : parser.parseMillis(from), to == null ? Long.MAX_VALUE
+                    : parser.parseMillis(to));
+        }
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("SimpleDBExport-report").build());
+        final long start = System.nanoTime();
+        Runnable report = new Runnable() {
+
+            private long last = 0;
+            private long lastNanos = start;
+
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                long total = export.getExported();
+                double seconds = (now - lastNanos) / 1e9;
+                System.err.printf("%,d items, %,.0f items/s, %,.0f items/s overall, %d files, %d/%d partitions%n",
+                        total, (total - last) / seconds, total / ((now - start) / 1e9), export.getFiles(), export
+                                .getPartitionsDone(), export.getPartitions());
+                last = total;
+                lastNanos = now;
+            }
+        };
+        reporter.scheduleAtFixedRate(report, 10, 10, TimeUnit.SECONDS);
+        try {
+            export.run();
+        } finally {
+            reporter.shutdownNow();
+            report.run();
+            sdb.shutdown();
+        }
+    }
+}
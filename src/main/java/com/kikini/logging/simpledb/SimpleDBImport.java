@@ -0,0 +1,674 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Imports existing log files into a domain, as if they had been logged
+ * through the appender. Each file is read through memory mappings of a large
+ * part at a time, split into records, each a line matching the record pattern
+ * followed by any lines which do not (such as stack traces), and parsed into
+ * rows which are written by several {@link SimpleDBWriter} threads at once.
+ * <p>
+ * The write rate adapts to SimpleDB: it grows by a fixed step with every
+ * batch written, up to a maximum, and halves whenever SimpleDB throttles a
+ * batch, which is then written again.
+ * <p>
+ * Each row is written as an item named after its file and offset, so that
+ * writing it again replaces it. The offset of the first record not yet
+ * written, below which every batch has been written, is saved in a checkpoint
+ * file as the import progresses; an import started again with the same
+ * checkpoint file resumes from there.
+ */
+public class SimpleDBImport {
+
+    /** The pattern of logback's usual {@code %d [%thread] %-5level %logger - %msg} */
+    static final String DEFAULT_PATTERN = "^(\\d{4}-\\d{2}-\\d{2}[ T]\\d{2}:\\d{2}:\\d{2}[.,]\\d{3})\\s+\\[[^\\]]*\\]"
+            + "\\s+(\\w+)\\s+(\\S+)\\s+-\\s?(.*)$";
+    static final String DEFAULT_TIME_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+
+    /** Bytes of a file mapped at once */
+    private static final long MAP_BYTES = 64L * 1024 * 1024;
+    /** Batches in flight per writer thread */
+    private static final int BATCHES_PER_THREAD = 4;
+    private static final int MAX_ATTEMPTS = 5;
+    /** Throttled writes of a batch before giving up, however slow the rate */
+    private static final int MAX_THROTTLED_ATTEMPTS = 20;
+    private static final long CHECKPOINT_PERIOD_MILLIS = 1000;
+    private static final String DONE = "done";
+
+    /**
+     * Items per second written, growing while SimpleDB keeps up and halving
+     * when it throttles
+     */
+    static class AdaptiveRate {
+
+        private final double min;
+        private final double max;
+        private final double step;
+        private double rate;
+        private long nextNanos = System.nanoTime();
+
+        AdaptiveRate(double initial, double min, double max, double step) {
+            this.rate = initial;
+            this.min = min;
+            this.max = max;
+            this.step = step;
+        }
+
+        /**
+         * Wait until the given number of items may be written
+         */
+        void acquire(int items) throws InterruptedException {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long start = Math.max(now, nextNanos);
+                nextNanos = start + (long)(items * 1e9 / rate);
+                wait = start - now;
+            }
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        }
+
+        synchronized void succeeded() {
+            rate = Math.min(max, rate + step);
+        }
+
+        synchronized void throttled() {
+            rate = Math.max(min, rate / 2);
+        }
+
+        synchronized double getRate() {
+            return rate;
+        }
+    }
+
+    /**
+     * Parses the first line of a record with a regular expression whose groups
+     * are the time, the level, the logger and the message
+     */
+    static class LineParser {
+
+        private final Pattern pattern;
+        private final DateTimeFormatter timeFormat;
+
+        LineParser(String pattern, DateTimeFormatter timeFormat) {
+            this.pattern = Pattern.compile(pattern);
+            this.timeFormat = timeFormat;
+        }
+
+        /**
+         * @return the match of a line which starts a record, or null for a
+         *         continuation
+         */
+        Matcher start(String line) {
+            Matcher matcher = pattern.matcher(line);
+            return matcher.matches() ? matcher : null;
+        }
+
+        long time(Matcher start) {
+            return timeFormat.parseMillis(start.group(1).replace(',', '.'));
+        }
+    }
+
+    /**
+     * A batch of rows, and where in the file the record after it starts
+     */
+    private static class Batch {
+
+        private final long seq;
+        private final List<SimpleDBRow> rows;
+        private final long endOffset;
+
+        Batch(long seq, List<SimpleDBRow> rows, long endOffset) {
+            this.seq = seq;
+            this.rows = rows;
+            this.endOffset = endOffset;
+        }
+    }
+
+    private final SimpleDBWriter writer;
+    private final File checkpoint;
+    private final Properties offsets = new Properties();
+    private String host;
+    private String context = "import";
+    private int threads = 8;
+    private String pattern = DEFAULT_PATTERN;
+    private DateTimeZone timeZone = DateTimeZone.getDefault();
+    private String timeFormat = DEFAULT_TIME_FORMAT;
+    private double initialItemsPerSecond = 500;
+    private double maxItemsPerSecond = 5000;
+    private AdaptiveRate rate;
+    private int maxThrottledAttempts = MAX_THROTTLED_ATTEMPTS;
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * @param sdb
+     *        the client to write with
+     * @param dom
+     *        the domain to import into, which must exist
+     * @param checkpoint
+     *        the file to keep the progress of the import in
+     */
+    public SimpleDBImport(AmazonSimpleDB sdb, String dom, File checkpoint) throws IOException {
+        this.writer = new SimpleDBWriter(sdb, dom);
+        this.checkpoint = checkpoint;
+        try {
+            this.host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            this.host = "unknown";
+        }
+        if (checkpoint.exists()) {
+            InputStream in = new FileInputStream(checkpoint);
+            try {
+                offsets.load(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Set the host column of the rows, by default the local host's name
+     */
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Set the context column of the rows, by default {@code import}
+     */
+    public void setContext(String context) {
+        this.context = context;
+    }
+
+    /**
+     * Set the number of threads writing to SimpleDB
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be greater than 0");
+        this.threads = threads;
+    }
+
+    /**
+     * Set the regular expression matching the first line of each record. Its
+     * groups must be the time, the level, the logger and the message.
+     */
+    public void setPattern(String pattern) {
+        this.pattern = pattern;
+    }
+
+    /**
+     * Set the Joda-Time pattern of the time group, in which a comma before the
+     * milliseconds is read as a point
+     */
+    public void setTimeFormat(String timeFormat) {
+        this.timeFormat = timeFormat;
+    }
+
+    /**
+     * Set the time zone of the files, which is also the one the time column
+     * is written in. The default is the system time zone.
+     */
+    public void setTimeZone(String timeZone) {
+        this.timeZone = DateTimeZone.forID(timeZone);
+    }
+
+    /**
+     * Set the rate to start writing at, in items per second
+     */
+    public void setInitialItemsPerSecond(double initialItemsPerSecond) {
+        this.initialItemsPerSecond = initialItemsPerSecond;
+    }
+
+    /**
+     * Set the rate the write rate grows to while SimpleDB keeps up, in items
+     * per second
+     */
+    public void setMaxItemsPerSecond(double maxItemsPerSecond) {
+        this.maxItemsPerSecond = maxItemsPerSecond;
+    }
+
+    /** Package-private setter for test */
+    void setMaxThrottledAttempts(int maxThrottledAttempts) {
+        this.maxThrottledAttempts = maxThrottledAttempts;
+    }
+
+    /**
+     * @return the number of rows written so far
+     */
+    public long getImported() {
+        return imported.get();
+    }
+
+    /**
+     * @return the number of batches SimpleDB throttled
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * @return the current write rate, in items per second
+     */
+    public double getItemsPerSecond() {
+        AdaptiveRate current = rate;
+        return current == null ? initialItemsPerSecond : current.getRate();
+    }
+
+    private synchronized AdaptiveRate rate() {
+        if (rate == null) {
+            double max = Math.max(initialItemsPerSecond, maxItemsPerSecond);
+            rate = new AdaptiveRate(initialItemsPerSecond, SimpleDBWriter.MAX_BATCH_PUT, max, max / 100);
+        }
+        return rate;
+    }
+
+    /**
+     * Import a file, or the rest of it if an earlier import was interrupted.
+     * Files already imported are skipped.
+     * 
+     * @throws IOException
+     *         if the file could not be read or the checkpoint written
+     * @throws AmazonClientException
+     *         if SimpleDB failed other than by throttling
+     */
+    public void importFile(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        String saved = offsets.getProperty(key);
+        if (DONE.equals(saved)) return;
+        long start = saved == null ? 0 : Long.parseLong(saved);
+        writer.setTimeZone(timeZone);
+        LineParser parser = new LineParser(pattern, DateTimeFormat.forPattern(timeFormat).withZone(timeZone));
+        FileImport fileImport = new FileImport(key, parser, rate());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        boolean read = false;
+        try {
+            fileImport.read(raf.getChannel(), start);
+            read = true;
+        } finally {
+            raf.close();
+            if (!read) {
+                try {
+                    fileImport.finish();
+                } catch (RuntimeException e) {
+                    // the failure to read is the one to report
+                }
+            }
+        }
+        fileImport.finish();
+        offsets.setProperty(key, DONE);
+        saveCheckpoint();
+    }
+
+    private synchronized void saveCheckpoint() throws IOException {
+        File temp = new File(checkpoint.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            offsets.store(out, "import offsets");
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(checkpoint)) throw new IOException("Could not replace " + checkpoint);
+    }
+
+    private static boolean isThrottling(AmazonClientException e) {
+        if (!(e instanceof AmazonServiceException)) return false;
+        AmazonServiceException service = (AmazonServiceException)e;
+        return service.getStatusCode() == 503 || "ServiceUnavailable".equals(service.getErrorCode())
+                || "Throttling".equals(service.getErrorCode());
+    }
+
+    /**
+     * The import of one file: reads records on the calling thread, and writes
+     * their batches on a pool
+     */
+    private class FileImport {
+
+        private final String key;
+        private final LineParser parser;
+        private final AdaptiveRate rate;
+        private final ExecutorService executor;
+        private final Semaphore inFlight;
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        /** End offsets of the batches written beyond the first unwritten one */
+        private final TreeMap<Long, Long> written = new TreeMap<Long, Long>();
+        private long nextToComplete = 0;
+        private long contiguousOffset = -1;
+        private long lastSaved = System.currentTimeMillis();
+        private long seq = 0;
+        private List<SimpleDBRow> rows = new ArrayList<SimpleDBRow>();
+        private Matcher record = null;
+        private long recordOffset;
+        private StringBuilder message = new StringBuilder();
+
+        FileImport(String key, LineParser parser, AdaptiveRate rate) {
+            this.key = key;
+            this.parser = parser;
+            this.rate = rate;
+            this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("SimpleDBImport-%d").build());
+            this.inFlight = new Semaphore(threads * BATCHES_PER_THREAD);
+        }
+
+        /**
+         * Read the file from the given offset, splitting it into lines
+         */
+        void read(FileChannel channel, long position) throws IOException {
+            long size = channel.size();
+            while (position < size) {
+                long length = Math.min(MAP_BYTES, size - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int lineStart = 0;
+                for (int i = 0; i < length; i++) {
+                    if (buffer.get(i) == '\n') {
+                        line(buffer, lineStart, i, position + lineStart, position + i + 1);
+                        lineStart = i + 1;
+                    }
+                }
+                if (position + length == size) {
+                    if (lineStart < length) line(buffer, lineStart, (int)length, position + lineStart, size);
+                    position = size;
+                } else if (lineStart == 0) {
+                    // a line longer than the mapping: take what there is
+                    line(buffer, 0, (int)length, position, position + length);
+                    position += length;
+                } else {
+                    position += lineStart;
+                }
+            }
+            endRecord(size);
+            submit(size);
+        }
+
+        private void line(MappedByteBuffer buffer, int from, int to, long offset, long next) {
+            if (to > from && buffer.get(to - 1) == '\r') to--;
+            byte[] bytes = new byte[to - from];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(from + i);
+            }
+            String line = new String(bytes, Charsets.UTF_8);
+            Matcher start = parser.start(line);
+            if (start == null) {
+                // a continuation, or lines before the first record
+                if (record != null) message.append('\n').append(line);
+                return;
+            }
+            endRecord(offset);
+            record = start;
+            recordOffset = offset;
+            message.setLength(0);
+            message.append(start.group(4));
+        }
+
+        /**
+         * Turn the record read so far into a row
+         * 
+         * @param next
+         *        the offset of the record after it
+         */
+        private void endRecord(long next) {
+            if (record == null) return;
+            long time;
+            try {
+                time = parser.time(record);
+            } catch (IllegalArgumentException e) {
+                record = null;
+                return;
+            }
+            SimpleDBRow row = new SimpleDBRow(message.toString(), host, context, record.group(3), record.group(2),
+                    time, 1, Collections.<String, String> emptyMap());
+            row.setItemName(UUID.nameUUIDFromBytes((key + ':' + recordOffset).getBytes(Charsets.UTF_8)).toString());
+            rows.add(row);
+            record = null;
+            if (rows.size() == SimpleDBWriter.MAX_BATCH_PUT) submit(next);
+        }
+
+        /**
+         * Hand the rows read so far to a writer thread, waiting while too many
+         * batches are in flight
+         */
+        private void submit(long endOffset) {
+            checkFailure();
+            if (rows.isEmpty()) return;
+            final Batch batch = new Batch(seq++, rows, endOffset);
+            rows = new ArrayList<SimpleDBRow>();
+            inFlight.acquireUninterruptibly();
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        write(batch);
+                        completed(batch);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        }
+
+        private void write(Batch batch) {
+            int failures = 0;
+            int throttles = 0;
+            while (true) {
+                if (failure.get() != null) throw new AmazonClientException("Import abandoned");
+                try {
+                    rate.acquire(batch.rows.size());
+                    writer.writeRows(batch.rows);
+                    rate.succeeded();
+                    imported.addAndGet(batch.rows.size());
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new AmazonClientException("Interrupted while importing", e);
+                } catch (AmazonClientException e) {
+                    if (isThrottling(e)) {
+                        throttled.incrementAndGet();
+                        rate.throttled();
+                        if (++throttles >= maxThrottledAttempts) throw e;
+                    } else if (++failures >= MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Record a batch as written, saving the checkpoint from time to time
+         */
+        private void completed(Batch batch) {
+            long save = -1;
+            synchronized (this) {
+                written.put(batch.seq, batch.endOffset);
+                boolean advanced = false;
+                while (written.containsKey(nextToComplete)) {
+                    contiguousOffset = written.remove(nextToComplete++);
+                    advanced = true;
+                }
+                long now = System.currentTimeMillis();
+                if (advanced && now - lastSaved >= CHECKPOINT_PERIOD_MILLIS) {
+                    lastSaved = now;
+                    save = contiguousOffset;
+                }
+            }
+            if (save >= 0) saveOffset(save);
+        }
+
+        private void saveOffset(long offset) {
+            synchronized (SimpleDBImport.this) {
+                offsets.setProperty(key, Long.toString(offset));
+                try {
+                    saveCheckpoint();
+                } catch (IOException e) {
+                    throw new AmazonClientException("Could not save the checkpoint", e);
+                }
+            }
+        }
+
+        private void checkFailure() {
+            RuntimeException e = failure.get();
+            if (e != null) throw e;
+        }
+
+        /**
+         * Wait for every batch to be written, saving how far the import got if
+         * one could not be
+         */
+        void finish() {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new AmazonClientException("Interrupted while importing", e);
+            }
+            long offset;
+            synchronized (this) {
+                offset = contiguousOffset;
+            }
+            if (failure.get() != null && offset >= 0) saveOffset(offset);
+            checkFailure();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: SimpleDBImport domain checkpointFile file... [--threads n] [--host name]"
+                + " [--context name] [--pattern regex] [--timeFormat pattern] [--timeZone zone]"
+                + " [--initialRate itemsPerSecond] [--maxRate itemsPerSecond] [--endpoint url]");
+        System.err.println("(credentials are read from AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY)");
+    }
+
+    /** Main */
+    public static void main(String[] args) throws IOException {
+        String accessId = System.getenv("AWS_ACCESS_KEY_ID");
+        String secretKey = System.getenv("AWS_SECRET_ACCESS_KEY");
+        if (args.length < 3 || accessId == null || secretKey == null) {
+            usage();
+            return;
+        }
+        AmazonSimpleDBClient sdb = new AmazonSimpleDBClient(new BasicAWSCredentials(accessId, secretKey));
+        final SimpleDBImport importer = new SimpleDBImport(sdb, args[0], new File(args[1]));
+        List<File> files = new ArrayList<File>();
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                files.add(new File(arg));
+                continue;
+            }
+            if (i + 1 == args.length) {
+                usage();
+                return;
+            }
+            String value = args[++i];
+            if (arg.equals("--threads")) {
+                importer.setThreads(Integer.parseInt(value));
+            } else if (arg.equals("--host")) {
+                importer.setHost(value);
+            } else if (arg.equals("--context")) {
+                importer.setContext(value);
+            } else if (arg.equals("--pattern")) {
+                importer.setPattern(value);
+            } else if (arg.equals("--timeFormat")) {
+                importer.setTimeFormat(value);
+            } else if (arg.equals("--timeZone")) {
+                importer.setTimeZone(value);
+            } else if (arg.equals("--initialRate")) {
+                importer.setInitialItemsPerSecond(Double.parseDouble(value));
+            } else if (arg.equals("--maxRate")) {
+                importer.setMaxItemsPerSecond(Double.parseDouble(value));
+            } else if (arg.equals("--endpoint")) {
+                sdb.setEndpoint(value);
+            } else {
+                usage();
+                return;
+            }
+        }
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("SimpleDBImport-report").build());
+        final long start = System.nanoTime();
+        Runnable report = new Runnable() {
+
+            private long last = 0;
+            private long lastNanos = start;
+
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                long total = importer.getImported();
+                System.err.printf("%,d items, %,.0f items/s, %,.0f items/s overall, rate %,.0f items/s,"
+                        + " %,d throttled%n", total, (total - last) / ((now - lastNanos) / 1e9), total
+                        / ((now - start) / 1e9), importer.getItemsPerSecond(), importer.getThrottled());
+                last = total;
+                lastNanos = now;
+            }
+        };
+        reporter.scheduleAtFixedRate(report, 10, 10, TimeUnit.SECONDS);
+        try {
+            for (File file : files) {
+                System.err.println("Importing " + file);
+                importer.importFile(file);
+            }
+        } finally {
+            reporter.shutdownNow();
+            report.run();
+            sdb.shutdown();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.qos.logback.classic.Level;
+
+/**
+ * A priority lane of the {@link SimpleDBAppender}. Each lane has its own queue,
+ * its own logging period and its own share of the writer threads, so that
+ * high-severity events need not wait behind a backlog of low-severity ones.
+ * <p>
+ * Lanes are configured in {@code logback.xml} as nested elements of the
+ * appender:
+ * 
+ * <pre>
+ * &lt;lane&gt;
+ *   &lt;level&gt;WARN&lt;/level&gt;
+ *   &lt;loggingPeriodMillis&gt;500&lt;/loggingPeriodMillis&gt;
+ *   &lt;threads&gt;2&lt;/threads&gt;
+ * &lt;/lane&gt;
+ * </pre>
+ * 
+ * An event is routed to the lane with the highest level which is less than or
+ * equal to the level of the event. Events matching no configured lane go to
+ * the appender's default lane.
+ */
+public class SimpleDBLane {
+
+    private Level level = Level.ALL;
+    private long loggingPeriodMillis = 10000;
+    private int threads = 1;
+
+    private BlockingQueue<SimpleDBRow> queue;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Default constructor, used by logback configuration
+     */
+    public SimpleDBLane() {
+        this.queue = new DelayQueue<SimpleDBRow>();
+    }
+
+    /** Package-private constructor for the appender's default lane */
+    SimpleDBLane(Level level, long loggingPeriodMillis, BlockingQueue<SimpleDBRow> queue) {
+        this.level = level;
+        this.loggingPeriodMillis = loggingPeriodMillis;
+        this.queue = queue;
+    }
+
+    /**
+     * Set the minimum level of events routed to this lane
+     * 
+     * @param level
+     *        the name of a logback {@link Level}
+     */
+    public void setLevel(String level) {
+        this.level = Level.toLevel(level, Level.ALL);
+    }
+
+    /**
+     * Set the length of the batching window for this lane
+     * 
+     * @param loggingPeriodMillis
+     *        the loggingPeriodMillis to set
+     */
+    public void setLoggingPeriodMillis(long loggingPeriodMillis) {
+        this.loggingPeriodMillis = loggingPeriodMillis;
+    }
+
+    /**
+     * Set the most writer threads which may write this lane to SimpleDB at
+     * once. This is the lane's share of the appender's write concurrency.
+     * 
+     * @param threads
+     *        the number of threads, at least 1
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("Must have at least one thread");
+        this.threads = threads;
+    }
+
+    Level getLevel() {
+        return level;
+    }
+
+    long getLoggingPeriodMillis() {
+        return loggingPeriodMillis;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    BlockingQueue<SimpleDBRow> getQueue() {
+        return queue;
+    }
+
+    /**
+     * Take over the queue of a lane of a stopped appender, along with the rows
+     * still waiting in it. Must be called before the appender starts.
+     * 
+     * @param queue
+     *        the queue to adopt
+     */
+    void adoptQueue(BlockingQueue<SimpleDBRow> queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * @param level
+     *        the level of an event
+     * @return true if events of the given level belong in this lane
+     */
+    boolean accepts(Level level) {
+        return level.isGreaterOrEqual(this.level);
+    }
+
+    /**
+     * Count an event shed from this lane due to overload
+     * 
+     * @return the number of events shed so far
+     */
+    long recordDrop() {
+        return dropped.incrementAndGet();
+    }
+
+    /**
+     * @return the number of events shed from this lane due to overload
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+}
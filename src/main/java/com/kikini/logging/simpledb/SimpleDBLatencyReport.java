@@ -0,0 +1,92 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+/**
+ * Periodically reports the latency percentiles of an appender as a logback
+ * status message. Each report covers the events written since the previous
+ * one, so that changes to the logging period or concurrency show up in the
+ * next report rather than being averaged away.
+ */
+class SimpleDBLatencyReport implements SimpleDBTask {
+
+    private final SimpleDBMetrics metrics;
+    private final ContextAware status;
+    private final long periodMillis;
+    private LatencyHistogram.Snapshot lastEnqueue;
+    private LatencyHistogram.Snapshot lastDispatch;
+    private LatencyHistogram.Snapshot lastAck;
+    private long nextReportAt;
+
+    SimpleDBLatencyReport(SimpleDBMetrics metrics, ContextAware status, long periodMillis) {
+        if (periodMillis < 1) throw new IllegalArgumentException("period must be greater than 0");
+        this.metrics = metrics;
+        this.status = status;
+        this.periodMillis = periodMillis;
+        this.lastEnqueue = metrics.getEnqueueLatency().snapshot();
+        this.lastDispatch = metrics.getDispatchLatency().snapshot();
+        this.lastAck = metrics.getAckLatency().snapshot();
+        this.nextReportAt = metrics.currentTimeMillis() + periodMillis;
+    }
+
+    private static void append(StringBuilder report, String stage, LatencyHistogram.Snapshot interval) {
+        report.append(' ').append(stage).append(" n=").append(interval.getCount());
+        report.append(" p50=").append(interval.getPercentile(50));
+        report.append(" p90=").append(interval.getPercentile(90));
+        report.append(" p99=").append(interval.getPercentile(99));
+        report.append(" max=").append(interval.getPercentile(100)).append(';');
+    }
+
+    /**
+     * Build the report of the events since the previous one
+     */
+    synchronized String report() {
+        LatencyHistogram.Snapshot enqueue = metrics.getEnqueueLatency().snapshot();
+        LatencyHistogram.Snapshot dispatch = metrics.getDispatchLatency().snapshot();
+        LatencyHistogram.Snapshot ack = metrics.getAckLatency().snapshot();
+        StringBuilder report = new StringBuilder("SimpleDB latency (ms):");
+        append(report, "enqueue", enqueue.since(lastEnqueue));
+        append(report, "dispatch", dispatch.since(lastDispatch));
+        append(report, "ack", ack.since(lastAck));
+        lastEnqueue = enqueue;
+        lastDispatch = dispatch;
+        lastAck = ack;
+        return report.toString();
+    }
+
+    @Override
+    public boolean runOnce() {
+        synchronized (this) {
+            long now = metrics.currentTimeMillis();
+            if (now < nextReportAt) return false;
+            nextReportAt = now + periodMillis;
+        }
+        status.addInfo(report());
+        return true;
+    }
+
+    @Override
+    public synchronized long millisUntilReady(long now) {
+        return Math.max(0, nextReportAt - now);
+    }
+
+    @Override
+    public void finish() {
+        // nothing is owed: the last interval is still visible through JMX
+    }
+}
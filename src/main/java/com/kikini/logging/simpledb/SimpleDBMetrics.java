@@ -0,0 +1,351 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of one {@link SimpleDBAppender}'s pipeline, from
+ * {@code append()} to {@code BatchPutAttributes}. Counters updated on the
+ * logging thread are {@link StripedCounter}s, so that recording costs an
+ * uncontended atomic add. Everything else is derived when read.
+ * <p>
+ * The latency of each event is also recorded, from its timestamp to being
+ * queued, to its batch being sent, and to SimpleDB acknowledging the batch,
+ * in a {@link LatencyHistogram} per stage.
+ */
+class SimpleDBMetrics implements SimpleDBMetricsMBean {
+
+    private static final double NANO_HOURS_PER_HOUR = 1e9;
+
+    /**
+     * Simple class to abstract getting the current time. Purpose is to make
+     * testing easier.
+     */
+    static class Clock {
+
+        long nanoTime() {
+            return System.nanoTime();
+        }
+
+        long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Rate of change of a counter between two readings at least a second
+     * apart
+     */
+    private static class Rate {
+
+        private long lastCount = 0;
+        private long lastNanos;
+        private double rate = 0;
+
+        Rate(long now) {
+            this.lastNanos = now;
+        }
+
+        synchronized double perSecond(long count, long now) {
+            long elapsed = now - lastNanos;
+            if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+                rate = (count - lastCount) * (double)TimeUnit.SECONDS.toNanos(1) / elapsed;
+                lastCount = count;
+                lastNanos = now;
+            }
+            return rate;
+        }
+    }
+
+    private final Clock clock;
+    private final StripedCounter enqueued = new StripedCounter();
+    private final StripedCounter queuedBytes = new StripedCounter();
+    private final StripedCounter suppressed = new StripedCounter();
+    private final StripedCounter batches = new StripedCounter();
+    private final StripedCounter itemsWritten = new StripedCounter();
+    private final StripedCounter errors = new StripedCounter();
+    private final StripedCounter retries = new StripedCounter();
+    private final StripedCounter boxUsageNanoHours = new StripedCounter();
+    private final ConcurrentMap<Integer, AtomicLong[]> boxUsageByAttributes = new ConcurrentHashMap<Integer, AtomicLong[]>();
+    private final LatencyHistogram enqueueLatency = new LatencyHistogram();
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+    private final Rate enqueueRate;
+    private final Rate dropRate;
+    private final Rate itemRate;
+    private volatile SimpleDBLane[] lanes = new SimpleDBLane[0];
+    private volatile SimpleDBRuntime runtime = null;
+
+    SimpleDBMetrics() {
+        this(new Clock());
+    }
+
+    /** Package-private constructor for test */
+    SimpleDBMetrics(Clock clock) {
+        this.clock = clock;
+        long now = clock.nanoTime();
+        this.enqueueRate = new Rate(now);
+        this.dropRate = new Rate(now);
+        this.itemRate = new Rate(now);
+    }
+
+    /**
+     * @param lanes
+     *        the lanes whose queues and drops are reported
+     */
+    void setLanes(SimpleDBLane[] lanes) {
+        this.lanes = lanes;
+    }
+
+    /**
+     * @param runtime
+     *        the runtime whose writer threads are reported
+     */
+    void setRuntime(SimpleDBRuntime runtime) {
+        this.runtime = runtime;
+    }
+
+    void recordEnqueue(SimpleDBRow row) {
+        enqueued.increment();
+        queuedBytes.add(row.getEstimatedBytes());
+    }
+
+    /**
+     * Record the time from an event to its row being queued
+     */
+    void recordEnqueueLatency(long eventTime, long now) {
+        enqueueLatency.record(now - eventTime);
+    }
+
+    /**
+     * Record the time from each event to its row being sent to SimpleDB
+     */
+    void recordDispatchLatency(Collection<SimpleDBRow> rows, long now) {
+        for (SimpleDBRow row : rows) {
+            dispatchLatency.record(now - row.getTime());
+        }
+    }
+
+    /**
+     * Record the time from each event to SimpleDB acknowledging its row
+     */
+    void recordAckLatency(Collection<SimpleDBRow> rows, long now) {
+        for (SimpleDBRow row : rows) {
+            ackLatency.record(now - row.getTime());
+        }
+    }
+
+    LatencyHistogram getEnqueueLatency() {
+        return enqueueLatency;
+    }
+
+    LatencyHistogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+
+    long currentTimeMillis() {
+        return clock.currentTimeMillis();
+    }
+
+    void recordSuppressed() {
+        suppressed.increment();
+    }
+
+    /**
+     * Account for rows which have left the queues
+     */
+    void recordTaken(Collection<SimpleDBRow> rows) {
+        long bytes = 0;
+        for (SimpleDBRow row : rows) {
+            bytes += row.getEstimatedBytes();
+        }
+        queuedBytes.add(-bytes);
+    }
+
+    /**
+     * Account for rows adopted from a stopped appender, which are queued
+     * without being enqueued
+     */
+    void recordAdopted(Collection<SimpleDBRow> rows) {
+        long bytes = 0;
+        for (SimpleDBRow row : rows) {
+            bytes += row.getEstimatedBytes();
+        }
+        queuedBytes.add(bytes);
+    }
+
+    void recordBatch(int items) {
+        batches.increment();
+        itemsWritten.add(items);
+    }
+
+    /**
+     * Record the machine time charged for a BatchPutAttributes request. The
+     * usage is kept in nano-hours, and also by the average number of
+     * attributes per item, since that is what drives the cost of a put.
+     */
+    void recordBoxUsage(int items, int attributes, float hours) {
+        if (items == 0 || hours <= 0) return;
+        long nanoHours = Math.round(hours * NANO_HOURS_PER_HOUR);
+        boxUsageNanoHours.add(nanoHours);
+        Integer perItem = Math.round((float)attributes / items);
+        AtomicLong[] usage = boxUsageByAttributes.get(perItem);
+        if (usage == null) {
+            usage = new AtomicLong[] { new AtomicLong(), new AtomicLong() };
+            AtomicLong[] existing = boxUsageByAttributes.putIfAbsent(perItem, usage);
+            if (existing != null) usage = existing;
+        }
+        usage[0].addAndGet(nanoHours);
+        usage[1].addAndGet(items);
+    }
+
+    void recordError() {
+        errors.increment();
+    }
+
+    void recordRetry() {
+        retries.increment();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        int depth = 0;
+        for (SimpleDBLane lane : lanes) {
+            depth += lane.getQueue().size();
+        }
+        return depth;
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return queuedBytes.sum();
+    }
+
+    @Override
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    @Override
+    public double getEnqueueRate() {
+        return enqueueRate.perSecond(getEnqueued(), clock.nanoTime());
+    }
+
+    @Override
+    public long getDropped() {
+        long dropped = 0;
+        for (SimpleDBLane lane : lanes) {
+            dropped += lane.getDropped();
+        }
+        return dropped;
+    }
+
+    @Override
+    public double getDropRate() {
+        return dropRate.perSecond(getDropped(), clock.nanoTime());
+    }
+
+    @Override
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public double getAverageBatchFill() {
+        long count = batches.sum();
+        return count == 0 ? 0 : (double)itemsWritten.sum() / count;
+    }
+
+    @Override
+    public long getItemsWritten() {
+        return itemsWritten.sum();
+    }
+
+    @Override
+    public double getItemsPerSecond() {
+        return itemRate.perSecond(getItemsWritten(), clock.nanoTime());
+    }
+
+    @Override
+    public double getBoxUsage() {
+        return (double)boxUsageNanoHours.sum() / NANO_HOURS_PER_HOUR;
+    }
+
+    @Override
+    public double getBoxUsagePerThousandItems() {
+        long items = itemsWritten.sum();
+        return items == 0 ? 0 : getBoxUsage() * 1000 / items;
+    }
+
+    @Override
+    public String[] getBoxUsageByAttributeCount() {
+        SortedMap<Integer, AtomicLong[]> sorted = new TreeMap<Integer, AtomicLong[]>(boxUsageByAttributes);
+        String[] lines = new String[sorted.size()];
+        int i = 0;
+        for (Map.Entry<Integer, AtomicLong[]> entry : sorted.entrySet()) {
+            long nanoHours = entry.getValue()[0].get();
+            long items = entry.getValue()[1].get();
+            lines[i++] = entry.getKey() + " attributes: " + items + " items, "
+                    + (double)nanoHours * 1000 / items / NANO_HOURS_PER_HOUR + " hours per 1000 items";
+        }
+        return lines;
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public String[] getWriterThreadStates() {
+        SimpleDBRuntime current = runtime;
+        return current == null ? new String[0] : current.getWorkerStates();
+    }
+
+    @Override
+    public long getOldestPendingAgeMillis() {
+        long oldest = Long.MAX_VALUE;
+        for (SimpleDBLane lane : lanes) {
+            BlockingQueue<SimpleDBRow> queue = lane.getQueue();
+            SimpleDBRow head = queue.peek();
+            if (head != null) oldest = Math.min(oldest, head.getTime());
+        }
+        return oldest == Long.MAX_VALUE ? 0 : Math.max(0, clock.currentTimeMillis() - oldest);
+    }
+}
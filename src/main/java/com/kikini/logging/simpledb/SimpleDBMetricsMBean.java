@@ -0,0 +1,110 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+/**
+ * Management interface of a {@link SimpleDBAppender}, registered with the
+ * platform MBean server under
+ * {@code com.kikini.logging.simpledb:type=SimpleDBAppender,name=<appender name>}.
+ * Counts are totals since the appender started; rates are per second, averaged
+ * since the previous reading of the same rate, or over the last second if read
+ * more often.
+ */
+public interface SimpleDBMetricsMBean {
+
+    /**
+     * @return the number of rows waiting to be written, across all lanes
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the approximate size of the rows waiting to be written
+     */
+    long getQueuedBytes();
+
+    /**
+     * @return the number of events queued
+     */
+    long getEnqueued();
+
+    double getEnqueueRate();
+
+    /**
+     * @return the number of events shed because the queues were full
+     */
+    long getDropped();
+
+    double getDropRate();
+
+    /**
+     * @return the number of events suppressed by rate limiting or sampling
+     */
+    long getSuppressed();
+
+    /**
+     * @return the number of BatchPutAttributes requests made
+     */
+    long getBatches();
+
+    /**
+     * @return the average number of items per BatchPutAttributes request, out
+     *         of a maximum of 25
+     */
+    double getAverageBatchFill();
+
+    /**
+     * @return the number of items written
+     */
+    long getItemsWritten();
+
+    double getItemsPerSecond();
+
+    /**
+     * @return the machine time SimpleDB charged for the writes, in hours, as
+     *         reported in the BoxUsage of each response
+     */
+    double getBoxUsage();
+
+    double getBoxUsagePerThousandItems();
+
+    /**
+     * @return for each average number of attributes per item, the number of
+     *         items written and the BoxUsage per thousand items
+     */
+    String[] getBoxUsageByAttributeCount();
+
+    /**
+     * @return the number of failed writes and domain checks
+     */
+    long getErrors();
+
+    /**
+     * @return the number of domain checks retried after a failure. Retries
+     *         made within the SDK are not visible to the appender.
+     */
+    long getRetries();
+
+    /**
+     * @return the name and state of each writer thread
+     */
+    String[] getWriterThreadStates();
+
+    /**
+     * @return how long the oldest row still queued has waited, in
+     *         milliseconds, or 0 if nothing is queued
+     */
+    long getOldestPendingAgeMillis();
+}
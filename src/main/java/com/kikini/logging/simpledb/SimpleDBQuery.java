@@ -0,0 +1,323 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.qos.logback.classic.Level;
+
+import com.amazonaws.services.simpledb.util.SimpleDBUtils;
+
+/**
+ * Criteria for reading log items back with a {@link SimpleDBReader}, over the
+ * columns written by {@link SimpleDBWriter}. Every criterion set must match.
+ * For example:
+ * 
+ * <pre>
+ * new SimpleDBQuery().withLoggerPrefix(&quot;com.example.&quot;).withMinLevel(Level.WARN)
+ *         .withTimeRange(start, end).withMDC(&quot;requestId&quot;, id).orderByTime(true)
+ * </pre>
+ * 
+ * Times are compared on the zero-padded timeMillis column, so whatever time
+ * zone the appender wrote in does not matter, unless the reader is set to read
+ * items written before that column was (see
+ * {@link SimpleDBReader#setLegacyTimeColumn(boolean)}).
+ */
+public class SimpleDBQuery {
+
+    private static final Level[] LEVELS = { Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR };
+
+    private String host = null;
+    private String context = null;
+    private String logger = null;
+    private boolean loggerPrefix = false;
+    private Level minLevel = null;
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    private final Map<String, String> mdc = new LinkedHashMap<String, String>();
+    private String messageContains = null;
+    private boolean ordered = false;
+    private boolean descending = false;
+    private int limit = 0;
+    private boolean consistentRead = false;
+
+    /**
+     * Only items written by the given host
+     */
+    public SimpleDBQuery withHost(String host) {
+        this.host = host;
+        return this;
+    }
+
+    /**
+     * Only items written from the given logback context
+     */
+    public SimpleDBQuery withContext(String context) {
+        this.context = context;
+        return this;
+    }
+
+    /**
+     * Only items of the given logger
+     */
+    public SimpleDBQuery withLogger(String logger) {
+        this.logger = logger;
+        this.loggerPrefix = false;
+        return this;
+    }
+
+    /**
+     * Only items of loggers whose names start with the given prefix, such as
+     * {@code com.example.}
+     */
+    public SimpleDBQuery withLoggerPrefix(String prefix) {
+        this.logger = prefix;
+        this.loggerPrefix = true;
+        return this;
+    }
+
+    /**
+     * Only items of the given level or above
+     */
+    public SimpleDBQuery withMinLevel(Level minLevel) {
+        this.minLevel = minLevel;
+        return this;
+    }
+
+    /**
+     * Only items whose time is in the given range
+     * 
+     * @param from
+     *        the earliest time, inclusive, in milliseconds since the epoch
+     * @param to
+     *        the latest time, exclusive
+     */
+    public SimpleDBQuery withTimeRange(long from, long to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    /**
+     * Only items with the given MDC property. May be given for several keys.
+     */
+    public SimpleDBQuery withMDC(String key, String value) {
+        mdc.put(key, value);
+        return this;
+    }
+
+    /**
+     * Only items whose message contains the given text. SimpleDB must scan
+     * every item matching the other criteria to find them.
+     */
+    public SimpleDBQuery withMessageContaining(String text) {
+        this.messageContains = text;
+        return this;
+    }
+
+    /**
+     * Return items in order of time, oldest first unless descending
+     */
+    public SimpleDBQuery orderByTime(boolean descending) {
+        this.ordered = true;
+        this.descending = descending;
+        return this;
+    }
+
+    /**
+     * Return at most the given number of items. The default, 0, is no limit.
+     */
+    public SimpleDBQuery withLimit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Read with SimpleDB's consistent read, which sees every completed write
+     * at twice the cost
+     */
+    public SimpleDBQuery withConsistentRead(boolean consistentRead) {
+        this.consistentRead = consistentRead;
+        return this;
+    }
+
+    /**
+     * @return a query with the same criteria over the given time range, in no
+     *         particular order and without limit
+     */
+    SimpleDBQuery forTimeRange(long rangeFrom, long rangeTo) {
+        SimpleDBQuery copy = new SimpleDBQuery();
+        copy.host = host;
+        copy.context = context;
+        copy.logger = logger;
+        copy.loggerPrefix = loggerPrefix;
+        copy.minLevel = minLevel;
+        copy.mdc.putAll(mdc);
+        copy.messageContains = messageContains;
+        copy.consistentRead = consistentRead;
+        copy.from = rangeFrom;
+        copy.to = rangeTo;
+        return copy;
+    }
+
+    long getFrom() {
+        return from;
+    }
+
+    long getTo() {
+        return to;
+    }
+
+    boolean isOrdered() {
+        return ordered;
+    }
+
+    boolean isDescending() {
+        return ordered && descending;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    boolean isConsistentRead() {
+        return consistentRead;
+    }
+
+    private static String name(String column) {
+        return SimpleDBUtils.quoteName(column);
+    }
+
+    private static String value(String value) {
+        return SimpleDBUtils.quoteValue(value);
+    }
+
+    /**
+     * Escape the text matched literally by a {@code like} pattern, so that a
+     * {@code %} in it is not a wildcard
+     */
+    private static String likeLiteral(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%");
+    }
+
+    /**
+     * The predicates of the query, except those on time
+     */
+    List<String> predicates() {
+        List<String> predicates = new ArrayList<String>();
+        if (host != null) predicates.add(name(SimpleDBWriter.HOST_COLUMN) + " = " + value(host));
+        if (context != null) predicates.add(name(SimpleDBWriter.CONTEXT_COLUMN) + " = " + value(context));
+        if (logger != null) {
+            predicates.add(loggerPrefix ? name(SimpleDBWriter.LOGGER_COLUMN) + " like "
+                    + value(likeLiteral(logger) + "%") : name(SimpleDBWriter.LOGGER_COLUMN) + " = " + value(logger));
+        }
+        if (minLevel != null) {
+            predicates.add(name(SimpleDBWriter.LEVEL_COLUMN) + " in (" + SimpleDBUtils.quoteValues(levels()) + ")");
+        }
+        for (Map.Entry<String, String> property : mdc.entrySet()) {
+            predicates.add(name(SimpleDBWriter.MDC_COLUMN_PREFIX + property.getKey()) + " = "
+                    + value(property.getValue()));
+        }
+        if (messageContains != null) {
+            predicates.add(name(SimpleDBWriter.MESSAGE_COLUMN) + " like "
+                    + value("%" + likeLiteral(messageContains) + "%"));
+        }
+        return predicates;
+    }
+
+    /**
+     * The criteria of the query which are equalities on a column, by column
+     */
+    Map<String, String> equalities() {
+        Map<String, String> equalities = new LinkedHashMap<String, String>();
+        if (host != null) equalities.put(SimpleDBWriter.HOST_COLUMN, host);
+        if (context != null) equalities.put(SimpleDBWriter.CONTEXT_COLUMN, context);
+        if (logger != null && !loggerPrefix) equalities.put(SimpleDBWriter.LOGGER_COLUMN, logger);
+        for (Map.Entry<String, String> property : mdc.entrySet()) {
+            equalities.put(SimpleDBWriter.MDC_COLUMN_PREFIX + property.getKey(), property.getValue());
+        }
+        return equalities;
+    }
+
+    /**
+     * @return the levels the query accepts, or null for any
+     */
+    List<String> levels() {
+        if (minLevel == null) return null;
+        List<String> levels = new ArrayList<String>();
+        for (Level level : LEVELS) {
+            if (level.isGreaterOrEqual(minLevel)) levels.add(level.toString());
+        }
+        return levels;
+    }
+
+    /**
+     * Evaluate every criterion of the query against a record, as SimpleDB
+     * would against its item
+     */
+    boolean matches(SimpleDBRecord record) {
+        for (Map.Entry<String, String> equality : equalities().entrySet()) {
+            if (!equality.getValue().equals(record.getColumn(equality.getKey()))) return false;
+        }
+        if (logger != null && loggerPrefix && (record.getLogger() == null || !record.getLogger().startsWith(logger))) {
+            return false;
+        }
+        List<String> levels = levels();
+        if (levels != null && !levels.contains(record.getLevel())) return false;
+        if (messageContains != null && (record.getMsg() == null || !record.getMsg().contains(messageContains))) {
+            return false;
+        }
+        return record.getTime() >= from && record.getTime() < to;
+    }
+
+    /**
+     * Build the select expression of the query over the given part of its
+     * time range
+     * 
+     * @param dom
+     *        the domain to read
+     * @param time
+     *        the column to compare and order times on
+     * @param pageSize
+     *        the number of items SimpleDB should return at once
+     */
+    String toSelectExpression(String dom, SimpleDBTimeColumn time, long rangeFrom, long rangeTo, int pageSize) {
+        List<String> predicates = predicates();
+        if (rangeFrom != Long.MIN_VALUE) predicates.add(time.compare(">=", rangeFrom));
+        if (rangeTo != Long.MAX_VALUE) predicates.add(time.compare("<", rangeTo));
+        if (ordered && rangeFrom == Long.MIN_VALUE && rangeTo == Long.MAX_VALUE) {
+            // SimpleDB only sorts on an attribute which has a predicate
+            predicates.add(time.quotedName() + " is not null");
+        }
+        StringBuilder select = new StringBuilder("select * from ").append(name(dom));
+        for (int i = 0; i < predicates.size(); i++) {
+            select.append(i == 0 ? " where " : " and ").append(predicates.get(i));
+        }
+        if (ordered) select.append(" order by ").append(time.quotedName()).append(descending ? " desc" : " asc");
+        select.append(" limit ").append(pageSize);
+        return select.toString();
+    }
+
+    /**
+     * Build the select expression of the whole query
+     */
+    String toSelectExpression(String dom, SimpleDBTimeColumn time, int pageSize) {
+        return toSelectExpression(dom, time, from, to, pageSize);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Caches the results of queries run through a {@link SimpleDBReader}, for
+ * callers such as dashboards which run the same queries over recent time
+ * ranges again and again.
+ * <p>
+ * The time range of a query is split into buckets of a fixed length. Once a
+ * bucket has ended and the flush window has passed, so that every appender
+ * should have written its events, the items in it can no longer change: the
+ * first query to need it reads the whole bucket, and the items are kept for
+ * every later query with the same criteria. The bucket at the head, which is
+ * still being written to, is read again each time. Buckets least recently used
+ * are evicted once the cache holds more than a given number of items.
+ * <p>
+ * Queries without a time range are not cached.
+ */
+public class SimpleDBQueryCache {
+
+    /**
+     * Simple class to abstract getting the current time. Purpose is to make
+     * testing easier.
+     */
+    static class Clock {
+
+        long getCurrentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    }
+
+    private static final Weigher<String, List<SimpleDBRecord>> RECORDS = new Weigher<String, List<SimpleDBRecord>>() {
+
+        @Override
+        public int weigh(String key, List<SimpleDBRecord> records) {
+            // empty buckets still cost an entry
+            return records.size() + 1;
+        }
+    };
+
+    private final Clock clock;
+    private final SimpleDBReader reader;
+    private final long bucketMillis;
+    private final long flushWindowMillis;
+    private final Cache<String, List<SimpleDBRecord>> buckets;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param reader
+     *        the reader to run queries with
+     * @param bucketMillis
+     *        the length of the buckets time ranges are split into
+     * @param flushWindowMillis
+     *        how long after a bucket ends its items may still be written, such
+     *        as the appenders' logging period plus their clock skew
+     * @param maxCachedRecords
+     *        the most items to keep
+     */
+    public SimpleDBQueryCache(SimpleDBReader reader, long bucketMillis, long flushWindowMillis, long maxCachedRecords) {
+        this(new Clock(), reader, bucketMillis, flushWindowMillis, maxCachedRecords);
+    }
+
+    /** Package-private constructor for test */
+    SimpleDBQueryCache(Clock clock, SimpleDBReader reader, long bucketMillis, long flushWindowMillis,
+            long maxCachedRecords) {
+        if (bucketMillis < 1) throw new IllegalArgumentException("bucket must be greater than 0");
+        if (flushWindowMillis < 0) throw new IllegalArgumentException("flush window must not be negative");
+        this.clock = clock;
+        this.reader = reader;
+        this.bucketMillis = bucketMillis;
+        this.flushWindowMillis = flushWindowMillis;
+        this.buckets = CacheBuilder.newBuilder().maximumWeight(maxCachedRecords).weigher(RECORDS).build();
+    }
+
+    /**
+     * Run a query, reading only the buckets of its time range which are not
+     * cached or still open
+     * 
+     * @param query
+     *        the criteria of the items to read
+     * @return the matching items, in time order if the query is ordered, read
+     *         a bucket at a time as they are iterated over
+     * @throws com.amazonaws.AmazonClientException
+     *         from {@code hasNext()} or {@code next()}, if SimpleDB could not
+     *         be read
+     */
+    public Iterator<SimpleDBRecord> select(SimpleDBQuery query) {
+        if (query.getFrom() == Long.MIN_VALUE || query.getTo() == Long.MAX_VALUE) return reader.select(query);
+        return new BucketIterator(query);
+    }
+
+    /**
+     * @return the number of buckets served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of closed buckets read from SimpleDB
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Forget every cached bucket, such as after items were deleted
+     */
+    public void invalidateAll() {
+        buckets.invalidateAll();
+    }
+
+    private long bucketStart(long time) {
+        long offset = time % bucketMillis;
+        return offset < 0 ? time - offset - bucketMillis : time - offset;
+    }
+
+    /**
+     * The query's criteria, in the same order however the query was built
+     */
+    private static String criteria(SimpleDBQuery query) {
+        List<String> predicates = query.predicates();
+        Collections.sort(predicates);
+        StringBuilder key = new StringBuilder();
+        for (String predicate : predicates) {
+            key.append(predicate).append(" and ");
+        }
+        return key.append(query.isConsistentRead()).toString();
+    }
+
+    private List<SimpleDBRecord> read(SimpleDBQuery query, long from, long to) {
+        List<SimpleDBRecord> records = new ArrayList<SimpleDBRecord>();
+        Iterator<SimpleDBRecord> it = reader.select(query.forTimeRange(from, to));
+        while (it.hasNext()) {
+            records.add(it.next());
+        }
+        Collections.sort(records, SimpleDBRecord.BY_TIME);
+        return records;
+    }
+
+    /**
+     * @return the items of a bucket within the given range, oldest first
+     */
+    private List<SimpleDBRecord> bucket(SimpleDBQuery query, String criteria, long start, long from, long to) {
+        long end = start + bucketMillis;
+        if (end + flushWindowMillis > clock.getCurrentTimeMillis()) {
+            return read(query, Math.max(start, from), Math.min(end, to));
+        }
+        String key = criteria + " @" + start;
+        List<SimpleDBRecord> records = buckets.getIfPresent(key);
+        if (records == null) {
+            misses.incrementAndGet();
+            records = Collections.unmodifiableList(read(query, start, end));
+            buckets.put(key, records);
+        } else {
+            hits.incrementAndGet();
+        }
+        if (from <= start && end <= to) return records;
+        List<SimpleDBRecord> within = new ArrayList<SimpleDBRecord>();
+        for (SimpleDBRecord record : records) {
+            if (record.getTime() >= from && record.getTime() < to) within.add(record);
+        }
+        return within;
+    }
+
+    /**
+     * Reads the buckets of a query one at a time, in the order of the query
+     */
+    private class BucketIterator extends AbstractIterator<SimpleDBRecord> {
+
+        private final SimpleDBQuery query;
+        private final String criteria;
+        private final boolean descending;
+        private final long first;
+        private final long last;
+        private long next;
+        private long remaining;
+        private Iterator<SimpleDBRecord> current = Collections.<SimpleDBRecord> emptyList().iterator();
+
+        BucketIterator(SimpleDBQuery query) {
+            this.query = query;
+            this.criteria = criteria(query);
+            this.descending = query.isDescending();
+            this.first = bucketStart(query.getFrom());
+            this.last = bucketStart(query.getTo() - 1);
+            this.next = descending ? last : first;
+            this.remaining = query.getLimit() > 0 ? query.getLimit() : Long.MAX_VALUE;
+        }
+
+        @Override
+        protected SimpleDBRecord computeNext() {
+            if (remaining <= 0) return endOfData();
+            while (!current.hasNext()) {
+                if (query.getFrom() >= query.getTo() || next < first || next > last) return endOfData();
+                List<SimpleDBRecord> records = bucket(query, criteria, next, query.getFrom(), query.getTo());
+                if (descending) {
+                    records = new ArrayList<SimpleDBRecord>(records);
+                    Collections.reverse(records);
+                    next -= bucketMillis;
+                } else {
+                    next += bucketMillis;
+                }
+                current = records.iterator();
+            }
+            remaining--;
+            return current.next();
+        }
+    }
+}
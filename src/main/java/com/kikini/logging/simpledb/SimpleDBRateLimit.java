@@ -0,0 +1,134 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import ch.qos.logback.classic.Level;
+
+/**
+ * A rate limiting and sampling rule for the {@link SimpleDBAppender},
+ * configured in {@code logback.xml} as a nested element of the appender:
+ * 
+ * <pre>
+ * &lt;rateLimit&gt;
+ *   &lt;logger&gt;com.example.noisy&lt;/logger&gt;
+ *   &lt;level&gt;INFO&lt;/level&gt;
+ *   &lt;eventsPerSecond&gt;10&lt;/eventsPerSecond&gt;
+ *   &lt;burst&gt;100&lt;/burst&gt;
+ *   &lt;sampleRate&gt;0.5&lt;/sampleRate&gt;
+ * &lt;/rateLimit&gt;
+ * </pre>
+ * 
+ * The rule applies to events from loggers at or below the given logger name
+ * whose level is no higher than the given level. Each logger and level covered
+ * by the rule gets its own token bucket. Where several rules apply, the one
+ * with the longest logger name wins.
+ */
+public class SimpleDBRateLimit {
+
+    private String logger = "";
+    private Level level = Level.OFF;
+    private double eventsPerSecond = 0;
+    private int burst = 0;
+    private double sampleRate = 1.0;
+
+    /**
+     * Set the logger name this rule applies to. Descendants of the logger are
+     * included. If not set, the rule applies to all loggers.
+     * 
+     * @param logger
+     *        the logger name prefix
+     */
+    public void setLogger(String logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Set the highest level this rule applies to. If not set, the rule applies
+     * to all levels.
+     * 
+     * @param level
+     *        the name of a logback {@link Level}
+     */
+    public void setLevel(String level) {
+        this.level = Level.toLevel(level, Level.OFF);
+    }
+
+    /**
+     * Set the sustained number of events per second allowed for each logger
+     * and level. If not set, or set to 0, events are not rate limited.
+     * 
+     * @param eventsPerSecond
+     *        the eventsPerSecond to set
+     */
+    public void setEventsPerSecond(double eventsPerSecond) {
+        this.eventsPerSecond = eventsPerSecond;
+    }
+
+    /**
+     * Set the number of events allowed in a burst above the sustained rate. If
+     * not set, one second's worth of events is allowed.
+     * 
+     * @param burst
+     *        the burst to set
+     */
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    /**
+     * Set the fraction of events to keep, between 0 and 1. Sampling is applied
+     * before rate limiting. If not set, all events are kept.
+     * 
+     * @param sampleRate
+     *        the sampleRate to set
+     */
+    public void setSampleRate(double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+        this.sampleRate = sampleRate;
+    }
+
+    String getLogger() {
+        return logger;
+    }
+
+    Level getLevel() {
+        return level;
+    }
+
+    double getEventsPerSecond() {
+        return eventsPerSecond;
+    }
+
+    int getBurst() {
+        if (burst > 0) return burst;
+        return (int)Math.max(1, Math.ceil(eventsPerSecond));
+    }
+
+    double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return true if this rule applies to the given logger and level
+     */
+    boolean matches(String loggerName, Level eventLevel) {
+        if (!level.isGreaterOrEqual(eventLevel)) return false;
+        if (logger.length() == 0) return true;
+        if (!loggerName.startsWith(logger)) return false;
+        return loggerName.length() == logger.length() || loggerName.charAt(logger.length()) == '.'
+                || loggerName.charAt(logger.length()) == '$';
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.qos.logback.classic.Level;
+
+/**
+ * Applies {@link SimpleDBRateLimit} rules to logging events. The rules
+ * matching a logger are resolved once and cached in a
+ * {@link ConcurrentHashMap}, so the common case costs a single lock-free
+ * lookup. Each token bucket is a single {@link AtomicLong} holding the time at
+ * which the bucket will next be empty, updated by compare-and-set.
+ * <p>
+ * Suppressed events are counted per logger and level, and handed back to the
+ * appender periodically, by a runtime task, so that it may write summary rows.
+ */
+class SimpleDBRateLimiter {
+
+    private static final Level[] LEVELS = { Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR };
+    private static final Bucket[] UNLIMITED = new Bucket[LEVELS.length];
+
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    /**
+     * Simple class to abstract getting the current time. Purpose is to make
+     * testing easier.
+     */
+    static class Clock {
+
+        long nanoTime() {
+            return System.nanoTime();
+        }
+    }
+
+    /**
+     * Token bucket for a single logger and level
+     */
+    static class Bucket {
+
+        private final String logger;
+        private final Level level;
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final double sampleRate;
+        private final AtomicLong emptyAt;
+        private final AtomicLong suppressed = new AtomicLong();
+
+        Bucket(String logger, Level level, SimpleDBRateLimit rule, long now) {
+            this.logger = logger;
+            this.level = level;
+            double rate = rule.getEventsPerSecond();
+            this.intervalNanos = rate > 0 ? (long)(TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+            this.toleranceNanos = intervalNanos * rule.getBurst();
+            this.sampleRate = rule.getSampleRate();
+            this.emptyAt = new AtomicLong(now);
+        }
+
+        boolean tryAcquire(long now) {
+            if (sampleRate < 1.0 && RANDOM.get().nextDouble() >= sampleRate) {
+                suppressed.incrementAndGet();
+                return false;
+            }
+            if (intervalNanos == 0) return true;
+            while (true) {
+                long current = emptyAt.get();
+                long next = Math.max(current, now) + intervalNanos;
+                if (next - now > toleranceNanos) {
+                    suppressed.incrementAndGet();
+                    return false;
+                }
+                if (emptyAt.compareAndSet(current, next)) return true;
+            }
+        }
+
+        String getLogger() {
+            return logger;
+        }
+
+        Level getLevel() {
+            return level;
+        }
+
+        long takeSuppressed() {
+            return suppressed.getAndSet(0);
+        }
+    }
+
+    private final List<SimpleDBRateLimit> rules;
+    private final Clock clock;
+    private final long summaryPeriodNanos;
+    private final AtomicLong nextSummary;
+    private final ConcurrentMap<String, Bucket[]> cache = new ConcurrentHashMap<String, Bucket[]>();
+
+    SimpleDBRateLimiter(List<SimpleDBRateLimit> rules, long summaryPeriodMillis) {
+        this(new Clock(), rules, summaryPeriodMillis);
+    }
+
+    /** Package-private constructor for test */
+    SimpleDBRateLimiter(Clock clock, List<SimpleDBRateLimit> rules, long summaryPeriodMillis) {
+        this.clock = clock;
+        this.rules = new ArrayList<SimpleDBRateLimit>(rules);
+        this.summaryPeriodNanos = TimeUnit.MILLISECONDS.toNanos(summaryPeriodMillis);
+        this.nextSummary = new AtomicLong(clock.nanoTime() + summaryPeriodNanos);
+    }
+
+    private static int indexOf(Level level) {
+        switch (level.toInt()) {
+        case Level.TRACE_INT:
+            return 0;
+        case Level.DEBUG_INT:
+            return 1;
+        case Level.INFO_INT:
+            return 2;
+        case Level.WARN_INT:
+            return 3;
+        default:
+            return 4;
+        }
+    }
+
+    /**
+     * Find the most specific rule for each level of the given logger
+     */
+    private Bucket[] resolve(String loggerName) {
+        Bucket[] buckets = null;
+        long now = clock.nanoTime();
+        for (int i = 0; i < LEVELS.length; i++) {
+            SimpleDBRateLimit best = null;
+            for (SimpleDBRateLimit rule : rules) {
+                if (rule.matches(loggerName, LEVELS[i])
+                        && (best == null || rule.getLogger().length() > best.getLogger().length())) {
+                    best = rule;
+                }
+            }
+            if (best != null) {
+                if (buckets == null) buckets = new Bucket[LEVELS.length];
+                buckets[i] = new Bucket(loggerName, LEVELS[i], best, now);
+            }
+        }
+        return buckets == null ? UNLIMITED : buckets;
+    }
+
+    /**
+     * Decide whether an event may be written
+     * 
+     * @param loggerName
+     *        the name of the logger of the event
+     * @param level
+     *        the level of the event
+     * @return true if the event should be written, false if it is suppressed
+     */
+    boolean tryAcquire(String loggerName, Level level) {
+        Bucket[] buckets = cache.get(loggerName);
+        if (buckets == null) {
+            buckets = resolve(loggerName);
+            Bucket[] existing = cache.putIfAbsent(loggerName, buckets);
+            if (existing != null) buckets = existing;
+        }
+        Bucket bucket = buckets[indexOf(level)];
+        return bucket == null || bucket.tryAcquire(clock.nanoTime());
+    }
+
+    /**
+     * If the summary period has elapsed, return the buckets which have
+     * suppressed events since the last summary, along with their counts. Only
+     * one caller per period receives the summaries.
+     * 
+     * @return a list of buckets and suppressed counts, possibly empty
+     */
+    List<Summary> takeSummariesIfDue() {
+        long now = clock.nanoTime();
+        long due = nextSummary.get();
+        if (now - due < 0 || !nextSummary.compareAndSet(due, now + summaryPeriodNanos)) {
+            return Collections.emptyList();
+        }
+        return takeSummaries();
+    }
+
+    /**
+     * @return the milliseconds until the summaries are next due, rounded up
+     */
+    long millisUntilSummary() {
+        long nanos = nextSummary.get() - clock.nanoTime();
+        return nanos <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+    }
+
+    /**
+     * Return the buckets which have suppressed events since the last summary,
+     * along with their counts, whether or not the summary period has elapsed.
+     * Used when the appender stops.
+     * 
+     * @return a list of buckets and suppressed counts, possibly empty
+     */
+    List<Summary> takeSummaries() {
+        List<Summary> summaries = new ArrayList<Summary>();
+        for (Bucket[] buckets : cache.values()) {
+            for (Bucket bucket : buckets) {
+                if (bucket == null) continue;
+                long count = bucket.takeSuppressed();
+                if (count > 0) summaries.add(new Summary(bucket.getLogger(), bucket.getLevel(), count));
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Count of events suppressed for a logger and level
+     */
+    static class Summary {
+
+        private final String logger;
+        private final Level level;
+        private final long suppressed;
+
+        Summary(String logger, Level level, long suppressed) {
+            this.logger = logger;
+            this.level = level;
+            this.suppressed = suppressed;
+        }
+
+        String getLogger() {
+            return logger;
+        }
+
+        Level getLevel() {
+            return level;
+        }
+
+        long getSuppressed() {
+            return suppressed;
+        }
+    }
+}
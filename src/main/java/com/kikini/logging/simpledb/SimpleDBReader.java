@@ -0,0 +1,276 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.util.SimpleDBUtils;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Reads log items written by {@link SimpleDBAppender} back from a domain. A
+ * query is given as a {@link SimpleDBQuery}, and its results are streamed as
+ * {@link SimpleDBRecord}s: pages are fetched as the caller iterates, the next
+ * page always being requested while the current one is consumed, so that
+ * large results are never held in memory whole.
+ * <p>
+ * The next pages are fetched by daemon threads owned by the reader, which
+ * {@link #shutdown()} stops. A reader may be shared by several threads.
+ * <p>
+ * For long time ranges, {@link #scan(SimpleDBQuery, int)} reads several
+ * segments of the range at once. Given a {@link SimpleDBSearchIndex},
+ * {@link #search(String, SimpleDBQuery, int)} finds messages by keyword.
+ */
+public class SimpleDBReader {
+
+    /** Most items SimpleDB returns from one select */
+    static final int MAX_PAGE_SIZE = 2500;
+    /** Most values SimpleDB compares in one {@code in} predicate */
+    static final int MAX_IN_VALUES = 20;
+
+    private final AmazonSimpleDB sdb;
+    private final String dom;
+    private final ExecutorService executor;
+    private volatile DateTimeFormatter timeFormatter = ISODateTimeFormat.dateTime();
+    private volatile boolean legacyTimeColumn = false;
+    private volatile int pageSize = MAX_PAGE_SIZE;
+    private volatile SimpleDBSearchIndex searchIndex = null;
+
+    private static final Function<Item, SimpleDBRecord> DECODE = new Function<Item, SimpleDBRecord>() {
+
+        @Override
+        public SimpleDBRecord apply(Item item) {
+            return SimpleDBRecord.decode(item);
+        }
+    };
+
+    /**
+     * @param sdb
+     *        the client to read with
+     * @param dom
+     *        the domain to read
+     */
+    public SimpleDBReader(AmazonSimpleDB sdb, String dom) {
+        this.sdb = sdb;
+        this.dom = dom;
+        this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("SimpleDBReader-%d").build());
+    }
+
+    /**
+     * Set the time zone the appender writes the time column in, which time
+     * ranges are given in on the legacy time column. The default is the
+     * system time zone, as for the appender.
+     * 
+     * @param timeZone
+     *        a time zone ID, such as {@code UTC}
+     */
+    public void setTimeZone(String timeZone) {
+        timeFormatter = ISODateTimeFormat.dateTime().withZone(DateTimeZone.forID(timeZone));
+    }
+
+    /**
+     * Compare and order times on the ISO 8601 time column, in the time zone
+     * set, rather than on the timeMillis column. Only needed for items
+     * written before the appender wrote timeMillis, which the default
+     * misses from time ranges and ordered queries.
+     */
+    public void setLegacyTimeColumn(boolean legacyTimeColumn) {
+        this.legacyTimeColumn = legacyTimeColumn;
+    }
+
+    private SimpleDBTimeColumn timeColumn() {
+        return legacyTimeColumn ? SimpleDBTimeColumn.iso(timeFormatter) : SimpleDBTimeColumn.MILLIS;
+    }
+
+    /**
+     * Set the index of the domain's messages, which
+     * {@link #search(String, SimpleDBQuery, int)} looks keywords up in
+     */
+    public void setSearchIndex(SimpleDBSearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    /** Package-private setter for test */
+    void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return the number of items to ask SimpleDB for at once, for a query
+     *         which wants at most the given number
+     */
+    int pageSizeFor(int limit) {
+        return limit > 0 ? Math.min(limit, pageSize) : pageSize;
+    }
+
+    /**
+     * Run a query
+     * 
+     * @param query
+     *        the criteria of the items to read
+     * @return the matching items, decoded, read a page at a time as they are
+     *         iterated over
+     * @throws com.amazonaws.AmazonClientException
+     *         from {@code hasNext()} or {@code next()}, if SimpleDB could not
+     *         be read
+     */
+    public Iterator<SimpleDBRecord> select(SimpleDBQuery query) {
+        String expression = query.toSelectExpression(dom, timeColumn(), pageSizeFor(query.getLimit()));
+        return Iterators.transform(new SimpleDBResultIterator(sdb, expression, query.isConsistentRead(), executor,
+                query.getLimit()), DECODE);
+    }
+
+    /**
+     * Run a query over a time range as a number of consecutive segments read
+     * in parallel, which is much faster than {@link #select(SimpleDBQuery)}
+     * for long ranges. The results are in time order, newest first if the
+     * query is ordered descending, and oldest first otherwise.
+     * 
+     * @param query
+     *        the criteria of the items to read, which must have a time range
+     * @param parallelism
+     *        the most segments to read at once
+     * @return the matching items, decoded, read ahead of the caller by up to
+     *         the given number of segments
+     * @throws IllegalArgumentException
+     *         if the query has no time range
+     */
+    public Iterator<SimpleDBRecord> scan(SimpleDBQuery query, int parallelism) {
+        return new SimpleDBSegmentedScan(sdb, dom, timeColumn(), executor, query, parallelism, pageSize);
+    }
+
+    /**
+     * Find the items whose messages have every word of the keywords, through
+     * the search index, and which match the query. The matching item names
+     * are looked up in the index, and the items fetched by name, up to the
+     * given number of requests at once. Unlike {@link #select(SimpleDBQuery)}, the results
+     * are read whole before they are returned, though fetching stops once an
+     * unordered query has its limit.
+     * 
+     * @param keywords
+     *        the words to find, in any case; those the index leaves out, such
+     *        as stop words, are ignored
+     * @param query
+     *        further criteria of the items to find
+     * @param parallelism
+     *        the most fetches by name to run at once
+     * @return the matching items, in time order if the query is ordered
+     * @throws IllegalStateException
+     *         if no search index is set
+     * @throws IllegalArgumentException
+     *         if none of the keywords are indexed, or the parallelism is not
+     *         positive
+     * @throws com.amazonaws.AmazonClientException
+     *         if SimpleDB could not be read
+     */
+    public Iterator<SimpleDBRecord> search(String keywords, SimpleDBQuery query, int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be greater than 0");
+        SimpleDBSearchIndex index = searchIndex;
+        if (index == null) throw new IllegalStateException("no search index set");
+        final boolean consistentRead = query.isConsistentRead();
+        List<String> names = new ArrayList<String>(index.find(keywords, query.getFrom(), query.getTo(),
+                consistentRead));
+        List<String> expressions = new ArrayList<String>();
+        for (int i = 0; i < names.size(); i += MAX_IN_VALUES) {
+            expressions.add("select * from " + SimpleDBUtils.quoteName(dom) + " where itemName() in ("
+                    + SimpleDBUtils.quoteValues(names.subList(i, Math.min(names.size(), i + MAX_IN_VALUES))) + ")");
+        }
+        LinkedList<FutureTask<List<SimpleDBRecord>>> inFlight = new LinkedList<FutureTask<List<SimpleDBRecord>>>();
+        List<SimpleDBRecord> found = new ArrayList<SimpleDBRecord>();
+        // unordered, any matches will do, so fetching stops at the limit
+        int enough = query.isOrdered() || query.getLimit() <= 0 ? Integer.MAX_VALUE : query.getLimit();
+        int next = 0;
+        try {
+            while ((next < expressions.size() || !inFlight.isEmpty()) && found.size() < enough) {
+                while (inFlight.size() < parallelism && next < expressions.size()) {
+                    FutureTask<List<SimpleDBRecord>> fetch = fetch(expressions.get(next++), consistentRead);
+                    inFlight.add(fetch);
+                    executor.execute(fetch);
+                }
+                for (SimpleDBRecord record : await(inFlight.poll())) {
+                    if (query.matches(record)) found.add(record);
+                }
+            }
+        } finally {
+            for (FutureTask<List<SimpleDBRecord>> fetch : inFlight) {
+                fetch.cancel(true);
+            }
+        }
+        if (query.isOrdered()) {
+            Collections.sort(found, query.isDescending() ? Collections.reverseOrder(SimpleDBRecord.BY_TIME)
+                    : SimpleDBRecord.BY_TIME);
+        }
+        if (query.getLimit() > 0 && found.size() > query.getLimit()) {
+            found = found.subList(0, query.getLimit());
+        }
+        return found.iterator();
+    }
+
+    private FutureTask<List<SimpleDBRecord>> fetch(final String expression, final boolean consistentRead) {
+        return new FutureTask<List<SimpleDBRecord>>(new Callable<List<SimpleDBRecord>>() {
+
+            @Override
+            public List<SimpleDBRecord> call() {
+                List<SimpleDBRecord> records = new ArrayList<SimpleDBRecord>();
+                Iterator<Item> items = new SimpleDBResultIterator(sdb, expression, consistentRead, MoreExecutors
+                        .sameThreadExecutor(), 0);
+                while (items.hasNext()) {
+                    records.add(SimpleDBRecord.decode(items.next()));
+                }
+                return records;
+            }
+        });
+    }
+
+    private static List<SimpleDBRecord> await(FutureTask<List<SimpleDBRecord>> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while waiting for SimpleDB", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+            throw new AmazonClientException("Could not read from SimpleDB", e.getCause());
+        }
+    }
+
+    /**
+     * Stop the threads fetching pages. Iterators still in use fail.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.util.SimpleDBUtils;
+
+/**
+ * A log item read back from SimpleDB, with the columns written by
+ * {@link SimpleDBWriter} decoded into their types. Times are in milliseconds
+ * since the epoch, whatever time zone they were written in.
+ */
+public class SimpleDBRecord {
+
+    private static final DateTimeFormatter TIME_PARSER = ISODateTimeFormat.dateTimeParser();
+
+    /** Orders records by time, oldest first */
+    static final Comparator<SimpleDBRecord> BY_TIME = new Comparator<SimpleDBRecord>() {
+
+        @Override
+        public int compare(SimpleDBRecord a, SimpleDBRecord b) {
+            return a.time < b.time ? -1 : a.time == b.time ? 0 : 1;
+        }
+    };
+
+    private final String itemName;
+    private final String msg;
+    private final String host;
+    private final String context;
+    private final String logger;
+    private final String level;
+    private final long time;
+    private final int count;
+    private final long lastTime;
+    private final Map<String, String> mdc;
+
+    SimpleDBRecord(String itemName, String msg, String host, String context, String logger, String level, long time,
+            int count, long lastTime, Map<String, String> mdc) {
+        this.itemName = itemName;
+        this.msg = msg;
+        this.host = host;
+        this.context = context;
+        this.logger = logger;
+        this.level = level;
+        this.time = time;
+        this.count = count;
+        this.lastTime = lastTime;
+        this.mdc = Collections.unmodifiableMap(mdc);
+    }
+
+    private static long parseTime(String value) {
+        if (value == null) return 0;
+        try {
+            return TIME_PARSER.parseMillis(value);
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    private static long parseTimeMillis(String value, String fallback) {
+        if (value == null) return parseTime(fallback);
+        try {
+            return SimpleDBUtils.decodeZeroPaddingLong(value);
+        } catch (NumberFormatException e) {
+            return parseTime(fallback);
+        }
+    }
+
+    /**
+     * Decode an item returned by a select. Should an attribute have several
+     * values, the first is kept.
+     */
+    static SimpleDBRecord decode(Item item) {
+        Map<String, String> columns = new HashMap<String, String>();
+        Map<String, String> mdc = new HashMap<String, String>();
+        for (Attribute attribute : item.getAttributes()) {
+            String name = attribute.getName();
+            if (name.startsWith(SimpleDBWriter.MDC_COLUMN_PREFIX)) {
+                String key = name.substring(SimpleDBWriter.MDC_COLUMN_PREFIX.length());
+                if (!mdc.containsKey(key)) mdc.put(key, attribute.getValue());
+            } else if (!columns.containsKey(name)) {
+                columns.put(name, attribute.getValue());
+            }
+        }
+        long time = parseTimeMillis(columns.get(SimpleDBWriter.TIME_MILLIS_COLUMN),
+                columns.get(SimpleDBWriter.TIME_COLUMN));
+        int count = 1;
+        long lastTime = time;
+        String countValue = columns.get(SimpleDBWriter.COUNT_COLUMN);
+        if (countValue != null) {
+            try {
+                count = Integer.parseInt(countValue);
+            } catch (NumberFormatException e) {
+                // written by something else; treat it as a single event
+            }
+            String lastTimeValue = columns.get(SimpleDBWriter.LAST_TIME_COLUMN);
+            if (lastTimeValue != null) lastTime = parseTime(lastTimeValue);
+        }
+        return new SimpleDBRecord(item.getName(), columns.get(SimpleDBWriter.MESSAGE_COLUMN),
+                columns.get(SimpleDBWriter.HOST_COLUMN), columns.get(SimpleDBWriter.CONTEXT_COLUMN),
+                columns.get(SimpleDBWriter.LOGGER_COLUMN), columns.get(SimpleDBWriter.LEVEL_COLUMN), time, count,
+                lastTime, mdc);
+    }
+
+    /**
+     * @return the SimpleDB item name of the record
+     */
+    public String getItemName() {
+        return itemName;
+    }
+
+    public String getMsg() {
+        return msg;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public String getLogger() {
+        return logger;
+    }
+
+    public String getLevel() {
+        return level;
+    }
+
+    /**
+     * @return the time of the event, or of the first of several identical
+     *         events, in milliseconds since the epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the number of identical events the record stands for
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the time of the last of several identical events, or the time
+     *         of the event if there was only one
+     */
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    /**
+     * @return the MDC properties of the event, without their column prefix
+     */
+    public Map<String, String> getMDCPropertyMap() {
+        return mdc;
+    }
+
+    /**
+     * @return the value of one of the columns written by
+     *         {@link SimpleDBWriter} other than the times, such as
+     *         {@code level} or an MDC column, or null if the record has none
+     */
+    String getColumn(String column) {
+        if (column.startsWith(SimpleDBWriter.MDC_COLUMN_PREFIX)) {
+            return mdc.get(column.substring(SimpleDBWriter.MDC_COLUMN_PREFIX.length()));
+        }
+        if (column.equals(SimpleDBWriter.HOST_COLUMN)) return host;
+        if (column.equals(SimpleDBWriter.CONTEXT_COLUMN)) return context;
+        if (column.equals(SimpleDBWriter.LOGGER_COLUMN)) return logger;
+        if (column.equals(SimpleDBWriter.LEVEL_COLUMN)) return level;
+        if (column.equals(SimpleDBWriter.MESSAGE_COLUMN)) return msg;
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "SimpleDBRecord [itemName=" + itemName + ", time=" + time + ", level=" + level + ", logger=" + logger
+                + ", host=" + host + ", context=" + context + ", count=" + count + ", msg=" + msg + ", mdc=" + mdc
+                + "]";
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * A local copy of a log domain, which answers queries in milliseconds and at
+ * no cost. The records are appended to a file as they are copied and read
+ * back from it when the replica is opened; in memory, their times are held as
+ * a column and every value of the host, context, logger, level and MDC
+ * columns has a bitmap of the records holding it, so that a query only looks
+ * at the records matching all of its equalities.
+ * <p>
+ * {@link #sync(SimpleDBReader)} catches up with the domain, reading the items
+ * at or after the newest time copied so far, less the look-back, and skipping
+ * those already copied by their item names.
+ * {@link #follow(SimpleDBTail, SimpleDBReader)} then keeps the replica up to
+ * date as the domain is written. Should the file fail to be written while
+ * following, the replica goes on in memory and the next sync or
+ * {@link #flush()} throws the failure.
+ */
+public class SimpleDBReplica implements SimpleDBTailListener {
+
+    private static final int MAGIC = 0x53444252;
+    private static final int VERSION = 1;
+    private static final String[] INDEXED_COLUMNS = { SimpleDBWriter.HOST_COLUMN, SimpleDBWriter.CONTEXT_COLUMN,
+            SimpleDBWriter.LOGGER_COLUMN, SimpleDBWriter.LEVEL_COLUMN };
+
+    private final File file;
+    private final List<SimpleDBRecord> records = new ArrayList<SimpleDBRecord>();
+    private long[] times = new long[1024];
+    /** Records holding each value, by column */
+    private final Map<String, Map<String, BitSet>> index = new HashMap<String, Map<String, BitSet>>();
+    private final Set<String> itemNames = new HashSet<String>();
+    private long watermark = Long.MIN_VALUE;
+    private DataOutputStream out;
+    private IOException failure;
+    private volatile long lookBackMillis = 0;
+
+    /**
+     * Open a replica, loading the records already in its file. A record cut
+     * short when the file was last written is dropped.
+     * 
+     * @param file
+     *        the file of the replica, created if it does not exist
+     * @throws IOException
+     *         if the file could not be read, or is not a replica
+     */
+    public SimpleDBReplica(File file) throws IOException {
+        this.file = file;
+        boolean exists = file.length() > 0;
+        if (exists) load();
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (!exists) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.flush();
+        }
+    }
+
+    private void load() throws IOException {
+        CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataInputStream in = new DataInputStream(counting);
+        long complete;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException(file + " is not a replica");
+            complete = counting.getCount();
+            while (true) {
+                try {
+                    add(read(in));
+                } catch (EOFException e) {
+                    break;
+                }
+                complete = counting.getCount();
+            }
+        } finally {
+            in.close();
+        }
+        if (complete < file.length()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(complete);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static SimpleDBRecord read(DataInputStream in) throws IOException {
+        String itemName = in.readUTF();
+        String msg = readString(in);
+        String host = readString(in);
+        String context = readString(in);
+        String logger = readString(in);
+        String level = readString(in);
+        long time = in.readLong();
+        int count = in.readInt();
+        long lastTime = in.readLong();
+        int properties = in.readInt();
+        Map<String, String> mdc = new HashMap<String, String>();
+        for (int i = 0; i < properties; i++) {
+            mdc.put(in.readUTF(), in.readUTF());
+        }
+        return new SimpleDBRecord(itemName, msg, host, context, logger, level, time, count, lastTime, mdc);
+    }
+
+    private static void write(DataOutputStream out, SimpleDBRecord record) throws IOException {
+        out.writeUTF(record.getItemName());
+        writeString(out, record.getMsg());
+        writeString(out, record.getHost());
+        writeString(out, record.getContext());
+        writeString(out, record.getLogger());
+        writeString(out, record.getLevel());
+        out.writeLong(record.getTime());
+        out.writeInt(record.getCount());
+        out.writeLong(record.getLastTime());
+        out.writeInt(record.getMDCPropertyMap().size());
+        for (Map.Entry<String, String> property : record.getMDCPropertyMap().entrySet()) {
+            out.writeUTF(property.getKey());
+            out.writeUTF(property.getValue());
+        }
+    }
+
+    /**
+     * Index a record, unless it is already in the replica
+     * 
+     * @return true if the record was new
+     */
+    private boolean add(SimpleDBRecord record) {
+        if (!itemNames.add(record.getItemName())) return false;
+        int row = records.size();
+        records.add(record);
+        if (row == times.length) {
+            long[] grown = new long[times.length * 2];
+            System.arraycopy(times, 0, grown, 0, row);
+            times = grown;
+        }
+        times[row] = record.getTime();
+        for (String column : INDEXED_COLUMNS) {
+            post(column, record.getColumn(column), row);
+        }
+        for (Map.Entry<String, String> property : record.getMDCPropertyMap().entrySet()) {
+            post(SimpleDBWriter.MDC_COLUMN_PREFIX + property.getKey(), property.getValue(), row);
+        }
+        if (record.getTime() > watermark) watermark = record.getTime();
+        return true;
+    }
+
+    private void post(String column, String value, int row) {
+        if (value == null) return;
+        Map<String, BitSet> values = index.get(column);
+        if (values == null) {
+            values = new HashMap<String, BitSet>();
+            index.put(column, values);
+        }
+        BitSet rows = values.get(value);
+        if (rows == null) {
+            rows = new BitSet();
+            values.put(value, rows);
+        }
+        rows.set(row);
+    }
+
+    /**
+     * Add a record and append it to the file, unless it is already in the
+     * replica
+     */
+    private synchronized boolean store(SimpleDBRecord record) {
+        if (!add(record)) return false;
+        if (failure == null) {
+            try {
+                write(out, record);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set how far before the newest time copied each sync reads again, for
+     * items which the appenders write late. The default is none.
+     */
+    public void setLookBackMillis(long lookBackMillis) {
+        this.lookBackMillis = lookBackMillis;
+    }
+
+    /**
+     * Copy the items of the domain written since the last sync
+     * 
+     * @param reader
+     *        the reader of the domain to copy
+     * @return the number of new items
+     * @throws IOException
+     *         if the file could not be written
+     * @throws AmazonClientException
+     *         if SimpleDB could not be read; the items read until then are
+     *         kept
+     */
+    public int sync(SimpleDBReader reader) throws IOException {
+        long from = getWatermark() == Long.MIN_VALUE ? Long.MIN_VALUE : getWatermark() - lookBackMillis;
+        Iterator<SimpleDBRecord> copied = reader.select(new SimpleDBQuery().withTimeRange(from, Long.MAX_VALUE)
+                .orderByTime(false));
+        int added = 0;
+        try {
+            while (copied.hasNext()) {
+                if (store(copied.next())) added++;
+            }
+        } finally {
+            flush();
+        }
+        return added;
+    }
+
+    /**
+     * Keep the replica up to date as the domain is written, from the newest
+     * time copied so far, or from now if the replica is empty
+     * 
+     * @return the follower, to cancel
+     */
+    public SimpleDBTail.Follower follow(SimpleDBTail tail, SimpleDBReader reader) {
+        long from = getWatermark() == Long.MIN_VALUE ? System.currentTimeMillis() : getWatermark() - lookBackMillis;
+        return tail.follow(reader, new SimpleDBQuery().withTimeRange(from, Long.MAX_VALUE), this);
+    }
+
+    @Override
+    public void recordArrived(SimpleDBRecord record) {
+        if (!store(record)) return;
+        try {
+            flush();
+        } catch (IOException e) {
+            // kept to be thrown by the next sync or flush
+        }
+    }
+
+    @Override
+    public void pollFailed(AmazonClientException e) {
+        // the next poll catches up
+    }
+
+    /**
+     * Write the records copied so far to the file
+     * 
+     * @throws IOException
+     *         if the file could not be written, now or while following
+     */
+    public synchronized void flush() throws IOException {
+        if (failure == null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * @return the unsorted records matching every criterion of the query,
+     *         except its limit
+     */
+    private List<SimpleDBRecord> matching(SimpleDBQuery query) {
+        BitSet rows = new BitSet();
+        rows.set(0, records.size());
+        for (Map.Entry<String, String> equality : query.equalities().entrySet()) {
+            rows.and(postings(equality.getKey(), equality.getValue()));
+        }
+        List<String> levels = query.levels();
+        if (levels != null) {
+            BitSet anyLevel = new BitSet();
+            for (String level : levels) {
+                anyLevel.or(postings(SimpleDBWriter.LEVEL_COLUMN, level));
+            }
+            rows.and(anyLevel);
+        }
+        long from = query.getFrom();
+        long to = query.getTo();
+        List<SimpleDBRecord> matching = new ArrayList<SimpleDBRecord>();
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+            if (times[row] < from || times[row] >= to) continue;
+            SimpleDBRecord record = records.get(row);
+            if (query.matches(record)) matching.add(record);
+        }
+        return matching;
+    }
+
+    private BitSet postings(String column, String value) {
+        Map<String, BitSet> values = index.get(column);
+        BitSet rows = values == null ? null : values.get(value);
+        return rows == null ? new BitSet() : rows;
+    }
+
+    /**
+     * Run a query on the replica
+     * 
+     * @return the matching records, in time order if the query is ordered, and
+     *         in the order they were copied otherwise
+     */
+    public synchronized List<SimpleDBRecord> select(SimpleDBQuery query) {
+        List<SimpleDBRecord> matching = matching(query);
+        if (query.isOrdered()) {
+            Collections.sort(matching, query.isDescending() ? Collections.reverseOrder(SimpleDBRecord.BY_TIME)
+                    : SimpleDBRecord.BY_TIME);
+        }
+        if (query.getLimit() > 0 && matching.size() > query.getLimit()) {
+            return new ArrayList<SimpleDBRecord>(matching.subList(0, query.getLimit()));
+        }
+        return matching;
+    }
+
+    /**
+     * Count the events matching a query by the value of a column. Records
+     * standing for several identical events count for each.
+     * 
+     * @param column
+     *        the column to group by, such as {@code level}, {@code logger},
+     *        {@code host}, {@code context} or {@code mdc.}<i>key</i>
+     * @return the number of events by value; records without the column are
+     *         not counted
+     */
+    public synchronized SortedMap<String, Long> countBy(SimpleDBQuery query, String column) {
+        SortedMap<String, Long> counts = new TreeMap<String, Long>();
+        for (SimpleDBRecord record : matching(query)) {
+            String value = record.getColumn(column);
+            if (value == null) continue;
+            Long count = counts.get(value);
+            counts.put(value, (count == null ? 0 : count) + record.getCount());
+        }
+        return counts;
+    }
+
+    /**
+     * Count the events matching a query by time bucket
+     * 
+     * @param bucketMillis
+     *        the length of the buckets, aligned on the epoch
+     * @return the number of events by the start of their bucket
+     */
+    public synchronized SortedMap<Long, Long> countByTime(SimpleDBQuery query, long bucketMillis) {
+        if (bucketMillis < 1) throw new IllegalArgumentException("bucket must be greater than 0");
+        SortedMap<Long, Long> counts = new TreeMap<Long, Long>();
+        for (SimpleDBRecord record : matching(query)) {
+            long bucket = record.getTime() - (((record.getTime() % bucketMillis) + bucketMillis) % bucketMillis);
+            Long count = counts.get(bucket);
+            counts.put(bucket, (count == null ? 0 : count) + record.getCount());
+        }
+        return counts;
+    }
+
+    /**
+     * @return the number of records in the replica
+     */
+    public synchronized int getSize() {
+        return records.size();
+    }
+
+    /**
+     * @return the newest time copied, or {@link Long#MIN_VALUE} if the replica
+     *         is empty
+     */
+    public synchronized long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * Write the records copied so far and close the file. Followers must be
+     * cancelled first.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: SimpleDBReplica domain file [--follow true|false] [--lookBack millis]"
+                + " [--timeZone zone] [--legacyTime true|false] [--endpoint url]");
+        System.err.println("(credentials are read from AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY)");
+    }
+
+    /** Main */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String accessId = System.getenv("AWS_ACCESS_KEY_ID");
+        String secretKey = System.getenv("AWS_SECRET_ACCESS_KEY");
+        if (args.length < 2 || args.length % 2 != 0 || accessId == null || secretKey == null) {
+            usage();
+            return;
+        }
+        AmazonSimpleDBClient sdb = new AmazonSimpleDBClient(new BasicAWSCredentials(accessId, secretKey));
+        SimpleDBReader reader = new SimpleDBReader(sdb, args[0]);
+        SimpleDBReplica replica = new SimpleDBReplica(new File(args[1]));
+        boolean follow = false;
+        long lookBackMillis = 0;
+        for (int i = 2; i < args.length; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+            if (option.equals("--follow")) {
+                follow = Boolean.parseBoolean(value);
+            } else if (option.equals("--lookBack")) {
+                lookBackMillis = Long.parseLong(value);
+            } else if (option.equals("--timeZone")) {
+                reader.setTimeZone(value);
+            } else if (option.equals("--legacyTime")) {
+                reader.setLegacyTimeColumn(Boolean.parseBoolean(value));
+            } else if (option.equals("--endpoint")) {
+                sdb.setEndpoint(value);
+            } else {
+                usage();
+                return;
+            }
+        }
+        replica.setLookBackMillis(lookBackMillis);
+        try {
+            int added = replica.sync(reader);
+            System.err.printf("%,d new items, %,d items in the replica%n", added, replica.getSize());
+            if (!follow) return;
+            SimpleDBTail tail = new SimpleDBTail();
+            tail.setLookBackMillis(lookBackMillis);
+            replica.follow(tail, reader);
+            while (true) {
+                Thread.sleep(10000);
+                replica.flush();
+                System.err.printf("%,d items in the replica%n", replica.getSize());
+            }
+        } finally {
+            replica.close();
+            reader.shutdown();
+            sdb.shutdown();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Streams the items of a select expression, following {@code NextToken}
+ * across pages. As soon as a page arrives, the next one is requested in the
+ * background, so that SimpleDB's latency overlaps with the caller's work on
+ * the current page, unless the limit will be reached within it. At most two
+ * pages are held at once.
+ */
+class SimpleDBResultIterator extends AbstractIterator<Item> {
+
+    private final AmazonSimpleDB sdb;
+    private final String expression;
+    private final boolean consistentRead;
+    private final Executor executor;
+    private Iterator<Item> page = Collections.<Item> emptyList().iterator();
+    private FutureTask<SelectResult> next;
+    private long remaining;
+
+    /**
+     * Start reading the first page
+     * 
+     * @param limit
+     *        the most items to return, or 0 for all of them
+     */
+    SimpleDBResultIterator(AmazonSimpleDB sdb, String expression, boolean consistentRead, Executor executor, int limit) {
+        this.sdb = sdb;
+        this.expression = expression;
+        this.consistentRead = consistentRead;
+        this.executor = executor;
+        this.remaining = limit > 0 ? limit : Long.MAX_VALUE;
+        this.next = fetch(null);
+    }
+
+    private FutureTask<SelectResult> fetch(final String nextToken) {
+        FutureTask<SelectResult> task = new FutureTask<SelectResult>(new Callable<SelectResult>() {
+
+            @Override
+            public SelectResult call() {
+                return sdb.select(new SelectRequest(expression, consistentRead).withNextToken(nextToken));
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+
+    private static SelectResult await(FutureTask<SelectResult> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while waiting for SimpleDB", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+            throw new AmazonClientException("Could not read from SimpleDB", e.getCause());
+        }
+    }
+
+    @Override
+    protected Item computeNext() {
+        if (remaining <= 0) {
+            close();
+            return endOfData();
+        }
+        while (!page.hasNext()) {
+            if (next == null) return endOfData();
+            SelectResult result = await(next);
+            // no need for the next page if the limit runs out within this one
+            boolean last = result.getNextToken() == null || remaining <= result.getItems().size();
+            next = last ? null : fetch(result.getNextToken());
+            page = result.getItems().iterator();
+        }
+        remaining--;
+        return page.next();
+    }
+
+    /**
+     * Stop reading, abandoning any page being fetched
+     */
+    void close() {
+        if (next != null) {
+            next.cancel(true);
+            next = null;
+        }
+        page = Collections.<Item> emptyList().iterator();
+    }
+}
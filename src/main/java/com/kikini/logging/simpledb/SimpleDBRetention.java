@@ -0,0 +1,387 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.amazonaws.services.simpledb.model.BatchDeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.DeletableItem;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import com.amazonaws.services.simpledb.util.SimpleDBUtils;
+
+/**
+ * Deletes the items of a domain older than the retention period. Each sweep
+ * finds the expired items a page at a time, with a select of their names only,
+ * and deletes each page with BatchDeleteAttributes requests of 25 items. The
+ * next page is selected once the previous one is deleted, from the start,
+ * since the deleted items no longer match; the selects are consistent reads so
+ * that they do not see those items again. A failed select is retried after a
+ * second, then after twice as long each time up to 30 seconds.
+ * <p>
+ * The batches of a page are deleted by every thread which runs the task at
+ * once, together at most at a given number of items per second. As a
+ * {@link SimpleDBTask}, the workers of the {@link SimpleDBRuntime} sweep the
+ * domain of an appender periodically, in turn with its other tasks. Run
+ * standalone, {@link #purge(int)} sweeps once with its own threads.
+ */
+public class SimpleDBRetention implements SimpleDBTask {
+
+    /** Most item names SimpleDB returns from one select */
+    private static final int PAGE_SIZE = 2500;
+    private static final int MAX_CONSECUTIVE_ERRORS = 10;
+    /** Wait after the first failed select, doubled after each one after it */
+    static final long MIN_RETRY_MILLIS = 1000;
+    static final long MAX_RETRY_MILLIS = 30000;
+    /** Wait while another thread is deleting or selecting */
+    static final long IN_FLIGHT_WAIT_MILLIS = 50;
+
+    /**
+     * Simple class to abstract getting the current time. Purpose is to make
+     * testing easier.
+     */
+    static class Clock {
+
+        long getCurrentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    }
+
+    private final Clock clock;
+    private final AmazonSimpleDB sdb;
+    private final String dom;
+    private final long retentionMillis;
+    private DateTimeFormatter timeFormatter = ISODateTimeFormat.dateTime();
+    private boolean legacyTimeColumn = false;
+    private volatile long periodMillis = TimeUnit.HOURS.toMillis(1);
+    private volatile double maxItemsPerSecond = 100;
+
+    private final ConcurrentLinkedQueue<String> expired = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger deleting = new AtomicInteger();
+    private final AtomicBoolean selecting = new AtomicBoolean();
+    private volatile boolean sweeping = false;
+    private volatile long cutoff;
+    private long nextSweepAt;
+    private double nextFreeMillis;
+    private long retryMillis = 0;
+    private long selectAt;
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong sweeps = new AtomicLong();
+
+    /**
+     * @param sdb
+     *        the client to delete with
+     * @param dom
+     *        the domain to purge
+     * @param retentionMillis
+     *        how long to keep items, by their time column
+     */
+    public SimpleDBRetention(AmazonSimpleDB sdb, String dom, long retentionMillis) {
+        this(new Clock(), sdb, dom, retentionMillis);
+    }
+
+    /** Package-private constructor for test */
+    SimpleDBRetention(Clock clock, AmazonSimpleDB sdb, String dom, long retentionMillis) {
+        if (retentionMillis < 1) throw new IllegalArgumentException("retention must be greater than 0");
+        this.clock = clock;
+        this.sdb = sdb;
+        this.dom = dom;
+        this.retentionMillis = retentionMillis;
+        this.nextSweepAt = clock.getCurrentTimeMillis();
+        this.nextFreeMillis = nextSweepAt;
+    }
+
+    /**
+     * Set the time zone the appender writes the time column in, which the
+     * legacy time column is compared in
+     */
+    public void setTimeZone(DateTimeZone timeZone) {
+        timeFormatter = ISODateTimeFormat.dateTime().withZone(timeZone);
+    }
+
+    /**
+     * Find expired items by the ISO 8601 time column rather than the
+     * timeMillis column, for domains holding items written before the
+     * appender wrote timeMillis
+     */
+    public void setLegacyTimeColumn(boolean legacyTimeColumn) {
+        this.legacyTimeColumn = legacyTimeColumn;
+    }
+
+    /**
+     * Set how long after a sweep ends the next one starts. The default is an
+     * hour.
+     */
+    public void setPeriodMillis(long periodMillis) {
+        if (periodMillis < 1) throw new IllegalArgumentException("period must be greater than 0");
+        this.periodMillis = periodMillis;
+    }
+
+    /**
+     * Set the most items deleted per second, by all threads together. The
+     * default is 100.
+     */
+    public void setMaxItemsPerSecond(double maxItemsPerSecond) {
+        if (maxItemsPerSecond <= 0) throw new IllegalArgumentException("rate must be greater than 0");
+        this.maxItemsPerSecond = maxItemsPerSecond;
+    }
+
+    /**
+     * @return the number of items deleted so far
+     */
+    public long getDeleted() {
+        return deleted.get();
+    }
+
+    /**
+     * @return the number of sweeps completed
+     */
+    public long getSweeps() {
+        return sweeps.get();
+    }
+
+    /**
+     * Start a sweep if one is due
+     * 
+     * @return true if a sweep is in progress
+     */
+    private synchronized boolean sweeping(long now) {
+        if (!sweeping && now >= nextSweepAt) {
+            cutoff = now - retentionMillis;
+            sweeping = true;
+        }
+        return sweeping;
+    }
+
+    /**
+     * Take the allowance for a batch of deletes, if the rate allows one now
+     */
+    private synchronized boolean tryAcquire(long now) {
+        if (now < nextFreeMillis) return false;
+        // an idle period allows no more than one second's burst
+        nextFreeMillis = Math.max(nextFreeMillis, now - 1000) + SimpleDBWriter.MAX_BATCH_PUT * 1000
+                / maxItemsPerSecond;
+        return true;
+    }
+
+    String expression() {
+        SimpleDBTimeColumn time = legacyTimeColumn ? SimpleDBTimeColumn.iso(timeFormatter) : SimpleDBTimeColumn.MILLIS;
+        return "select itemName() from " + SimpleDBUtils.quoteName(dom) + " where " + time.compare("<", cutoff)
+                + " limit " + PAGE_SIZE;
+    }
+
+    @Override
+    public boolean runOnce() {
+        long now = clock.getCurrentTimeMillis();
+        if (!sweeping(now)) return false;
+        if (!expired.isEmpty()) {
+            if (!tryAcquire(now)) return false;
+            // counted before taking the names, so that no page is selected
+            // while they are being deleted
+            deleting.incrementAndGet();
+            try {
+                List<DeletableItem> batch = new ArrayList<DeletableItem>();
+                String name;
+                while (batch.size() < SimpleDBWriter.MAX_BATCH_PUT && (name = expired.poll()) != null) {
+                    batch.add(new DeletableItem().withName(name));
+                }
+                if (batch.isEmpty()) return false;
+                sdb.batchDeleteAttributes(new BatchDeleteAttributesRequest(dom, batch));
+                deleted.addAndGet(batch.size());
+                return true;
+            } finally {
+                deleting.decrementAndGet();
+            }
+        }
+        synchronized (this) {
+            if (now < selectAt) return false;
+        }
+        if (deleting.get() > 0 || !selecting.compareAndSet(false, true)) return false;
+        try {
+            if (!expired.isEmpty()) return false;
+            SelectResult result;
+            try {
+                result = sdb.select(new SelectRequest(expression(), true));
+            } catch (AmazonClientException e) {
+                // back off rather than select again at once, taking the
+                // workers from writing
+                synchronized (this) {
+                    retryMillis = retryMillis == 0 ? MIN_RETRY_MILLIS : Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+                    selectAt = now + retryMillis;
+                }
+                throw e;
+            }
+            synchronized (this) {
+                retryMillis = 0;
+            }
+            if (result.getItems().isEmpty()) {
+                synchronized (this) {
+                    sweeping = false;
+                    nextSweepAt = now + periodMillis;
+                }
+                sweeps.incrementAndGet();
+            } else {
+                for (Item item : result.getItems()) {
+                    expired.add(item.getName());
+                }
+            }
+            return true;
+        } finally {
+            selecting.set(false);
+        }
+    }
+
+    @Override
+    public synchronized long millisUntilReady(long now) {
+        if (!sweeping) return Math.max(0, nextSweepAt - now);
+        if (!expired.isEmpty()) return Math.max(0, (long)Math.ceil(nextFreeMillis - now));
+        if (now < selectAt) return selectAt - now;
+        // the deletes in flight, or a select, end before the next page
+        if (deleting.get() > 0 || selecting.get()) {
+            return Math.max(IN_FLIGHT_WAIT_MILLIS, (long)Math.ceil(nextFreeMillis - now));
+        }
+        return 0;
+    }
+
+    @Override
+    public void finish() {
+        // a sweep cut short is picked up by the next one
+        expired.clear();
+    }
+
+    /**
+     * Sweep the domain now, with the given number of threads, until no item
+     * is older than the retention period
+     * 
+     * @throws AmazonClientException
+     *         if SimpleDB failed too many times in a row
+     */
+    public void purge(int threads) {
+        synchronized (this) {
+            nextSweepAt = clock.getCurrentTimeMillis();
+        }
+        final long target = sweeps.get() + 1;
+        final AtomicInteger errors = new AtomicInteger();
+        final List<RuntimeException> failures = new ArrayList<RuntimeException>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        while (sweeps.get() < target && failures.isEmpty()) {
+                            try {
+                                if (runOnce()) {
+                                    errors.set(0);
+                                    continue;
+                                }
+                            } catch (AmazonClientException e) {
+                                if (errors.incrementAndGet() >= MAX_CONSECUTIVE_ERRORS) throw e;
+                            }
+                            long wait = millisUntilReady(clock.getCurrentTimeMillis());
+                            Thread.sleep(Math.max(1, Math.min(wait, 100)));
+                        }
+                    } catch (InterruptedException e) {
+                        // stop
+                    } catch (RuntimeException e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            }, "SimpleDBRetention-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while purging", e);
+        }
+        synchronized (failures) {
+            if (!failures.isEmpty()) throw failures.get(0);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: SimpleDBRetention domain retentionDays [--threads n] [--rate itemsPerSecond]"
+                + " [--timeZone zone] [--legacyTime true|false] [--endpoint url]");
+        System.err.println("(credentials are read from AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY)");
+    }
+
+    /** Main */
+    public static void main(String[] args) {
+        String accessId = System.getenv("AWS_ACCESS_KEY_ID");
+        String secretKey = System.getenv("AWS_SECRET_ACCESS_KEY");
+        if (args.length < 2 || args.length % 2 != 0 || accessId == null || secretKey == null) {
+            usage();
+            return;
+        }
+        AmazonSimpleDBClient sdb = new AmazonSimpleDBClient(new BasicAWSCredentials(accessId, secretKey));
+        SimpleDBRetention retention = new SimpleDBRetention(sdb, args[0], (long)(Double.parseDouble(args[1])
+                * TimeUnit.DAYS.toMillis(1)));
+        int threads = 4;
+        for (int i = 2; i < args.length; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+            if (option.equals("--threads")) {
+                threads = Integer.parseInt(value);
+            } else if (option.equals("--rate")) {
+                retention.setMaxItemsPerSecond(Double.parseDouble(value));
+            } else if (option.equals("--timeZone")) {
+                retention.setTimeZone(DateTimeZone.forID(value));
+            } else if (option.equals("--legacyTime")) {
+                retention.setLegacyTimeColumn(Boolean.parseBoolean(value));
+            } else if (option.equals("--endpoint")) {
+                sdb.setEndpoint(value);
+            } else {
+                usage();
+                return;
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            retention.purge(threads);
+        } finally {
+            sdb.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long deleted = retention.getDeleted();
+        System.err.printf("Deleted %,d items in %,.1f s, %,.0f items/s%n", deleted, seconds, deleted / seconds);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
+import com.amazonaws.services.simpledb.util.SimpleDBUtils;
+import com.google.common.base.Objects;
+
+/**
+ * Counts events per logger and level over fixed windows of time, and writes
+ * one rollup item per logger, level and window to a companion domain. Reading
+ * the rollup domain is much cheaper than counting raw log items.
+ * <p>
+ * Rollup items have the host, context, logger and level columns of a log item,
+ * a time column holding the start of the window in ISO 8601 format, a period
+ * column holding the length of the window in milliseconds, and a count column,
+ * zero-padded so that it may be compared in select expressions. Should events
+ * for a window arrive after it has been written, a second item is written for
+ * the window, so readers should sum counts.
+ * <p>
+ * As a {@link SimpleDBTask}, this class writes each window shortly after it
+ * closes.
+ */
+class SimpleDBRollup implements SimpleDBTask {
+
+    private static final int COUNT_DIGITS = 10;
+    private static final String PERIOD_COLUMN = "period";
+    /** Value of a counter which has been written, and may count no more */
+    private static final long WRITTEN = Long.MIN_VALUE;
+
+    /**
+     * Simple class to abstract getting the current time. Purpose is to make
+     * testing easier.
+     */
+    static class Clock {
+
+        long getCurrentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Logger, level and window of a counter
+     */
+    private static class Key {
+
+        private final String logger;
+        private final String level;
+        private final long window;
+
+        Key(String logger, String level, long window) {
+            this.logger = logger;
+            this.level = level;
+            this.window = window;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(logger, level, window);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key)obj;
+            return window == other.window && Objects.equal(logger, other.logger) && Objects.equal(level, other.level);
+        }
+    }
+
+    private final ConcurrentMap<Key, AtomicLong> counters = new ConcurrentHashMap<Key, AtomicLong>();
+    private final AmazonSimpleDB sdb;
+    private final String dom;
+    private final String host;
+    private final String context;
+    private final long periodMillis;
+    private final long graceMillis;
+    private final Clock clock;
+    private DateTimeFormatter timeFormatter = ISODateTimeFormat.dateTime();
+    private SimpleDBDomains domains = null;
+    private ContextAware status = null;
+    private SimpleDBMetrics metrics = new SimpleDBMetrics();
+    private long nextFlushAt;
+
+    SimpleDBRollup(AmazonSimpleDB sdb, String dom, String host, String context, long periodMillis) {
+        this(new Clock(), sdb, dom, host, context, periodMillis);
+    }
+
+    /** Package-private constructor for test */
+    SimpleDBRollup(Clock clock, AmazonSimpleDB sdb, String dom, String host, String context, long periodMillis) {
+        if (periodMillis < 1) throw new IllegalArgumentException("period must be greater than 0");
+        this.clock = clock;
+        this.sdb = sdb;
+        this.dom = dom;
+        this.host = host;
+        this.context = context;
+        this.periodMillis = periodMillis;
+        // leave stragglers a moment to finish counting before a window is
+        // written
+        this.graceMillis = Math.min(1000, periodMillis / 10);
+        long now = clock.getCurrentTimeMillis();
+        this.nextFlushAt = now - now % periodMillis + periodMillis + graceMillis;
+    }
+
+    /**
+     * Set the time zone to use when writing the time column. The default is the
+     * system time zone.
+     * 
+     * @param timeZone
+     */
+    void setTimeZone(DateTimeZone timeZone) {
+        timeFormatter = ISODateTimeFormat.dateTime().withZone(timeZone);
+    }
+
+    /**
+     * Make sure the rollup domain exists before writing to it
+     * 
+     * @param domains
+     *        the cache of domains of the client
+     */
+    void setDomains(SimpleDBDomains domains) {
+        this.domains = domains;
+    }
+
+    /**
+     * Report the windows which could not be written
+     * 
+     * @param status
+     *        where to report failures to reach SimpleDB
+     * @param metrics
+     *        the metrics to count failures in
+     */
+    void setStatus(ContextAware status, SimpleDBMetrics metrics) {
+        this.status = status;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Count an event
+     * 
+     * @param logger
+     *        the logger name of the event
+     * @param level
+     *        the level of the event
+     * @param time
+     *        the time of the event
+     */
+    void record(String logger, String level, long time) {
+        Key key = new Key(logger, level, time - time % periodMillis);
+        while (true) {
+            AtomicLong counter = counters.get(key);
+            if (counter == null) {
+                counter = new AtomicLong();
+                AtomicLong existing = counters.putIfAbsent(key, counter);
+                if (existing != null) counter = existing;
+            }
+            long count = counter.get();
+            // a counter being written has been removed already, so count in a
+            // new one, written as a second item for the window
+            if (count == WRITTEN) continue;
+            if (counter.compareAndSet(count, count + 1)) return;
+        }
+    }
+
+    /**
+     * Write and forget the counters of windows which started before the given
+     * time
+     * 
+     * @param before
+     *        the time before which windows are written. Use
+     *        {@link Long#MAX_VALUE} to write everything.
+     */
+    void flush(long before) {
+        List<ReplaceableItem> items = new ArrayList<ReplaceableItem>();
+        Iterator<Map.Entry<Key, AtomicLong>> it = counters.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, AtomicLong> entry = it.next();
+            Key key = entry.getKey();
+            if (key.window >= before) continue;
+            it.remove();
+            // read only once removed, so that no event may be counted after
+            long count = entry.getValue().getAndSet(WRITTEN);
+            List<ReplaceableAttribute> atts = new ArrayList<ReplaceableAttribute>();
+            SimpleDBWriter.addIfNotNull(atts, SimpleDBWriter.HOST_COLUMN, host);
+            SimpleDBWriter.addIfNotNull(atts, SimpleDBWriter.CONTEXT_COLUMN, context);
+            SimpleDBWriter.addIfNotNull(atts, SimpleDBWriter.LOGGER_COLUMN, key.logger);
+            SimpleDBWriter.addIfNotNull(atts, SimpleDBWriter.LEVEL_COLUMN, key.level);
+            String time = timeFormatter.print(new DateTime(key.window));
+            SimpleDBWriter.addIfNotNull(atts, SimpleDBWriter.TIME_COLUMN, time);
+            SimpleDBWriter.addIfNotNull(atts, PERIOD_COLUMN, Long.toString(periodMillis));
+            String encodedCount = SimpleDBUtils.encodeZeroPadding(count, COUNT_DIGITS);
+            SimpleDBWriter.addIfNotNull(atts, SimpleDBWriter.COUNT_COLUMN, encodedCount);
+            items.add(new ReplaceableItem(UUID.randomUUID().toString(), atts));
+        }
+
+        if (items.isEmpty()) return;
+        if (domains != null) {
+            domains.ensure(dom);
+        }
+        List<ReplaceableItem> nextBatch;
+        ListBatcher<ReplaceableItem> batchedList = new ListBatcher<ReplaceableItem>(items,
+                SimpleDBWriter.MAX_BATCH_PUT);
+        while ((nextBatch = batchedList.nextBatch()) != null) {
+            sdb.batchPutAttributes(new BatchPutAttributesRequest(dom, nextBatch));
+        }
+    }
+
+    /**
+     * Write all counters, including those of the current window. Used at
+     * shutdown.
+     */
+    void flushAll() {
+        flush(Long.MAX_VALUE);
+    }
+
+    /**
+     * Write the windows which have closed, if it is time to
+     */
+    @Override
+    public synchronized boolean runOnce() {
+        long now = clock.getCurrentTimeMillis();
+        if (now < nextFlushAt) return false;
+        long currentWindow = now - now % periodMillis;
+        nextFlushAt = currentWindow + periodMillis + graceMillis;
+        try {
+            flush(currentWindow);
+        } catch (AmazonClientException e) {
+            // the counts of these windows are lost. Carry on with the next one.
+            metrics.recordError();
+            if (status != null) status.addError("Could not write rollup to " + dom, e);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized long millisUntilReady(long now) {
+        return Math.max(0, nextFlushAt - now);
+    }
+
+    @Override
+    public void finish() {
+        flushAll();
+    }
+}
@@ -39,7 +39,11 @@ class SimpleDBRow implements Delayed {
     private String logger;
     private String level;
     private long time;
+    private long lastTime;
+    private int count = 1;
     private Map<String, String> mdcPropertyMap;
+    private final int estimatedBytes;
+    private String itemName = null;
 
     SimpleDBRow(String msg, String host, String context, String logger, String level, long time, long granularity, Map<String, String> mdcPropertyMap) {
         this.msg = msg;
@@ -48,8 +52,26 @@ class SimpleDBRow implements Delayed {
         this.logger = logger;
         this.level = level;
         this.time = time;
+        this.lastTime = time;
         this.delayed = new GranularDelay(granularity);
         this.mdcPropertyMap = ImmutableMap.copyOf(mdcPropertyMap);
+        this.estimatedBytes = estimateBytes();
+    }
+
+    private static int length(String string) {
+        return string == null ? 0 : string.length();
+    }
+
+    /**
+     * Count a byte per character of the strings of the row, which is what it
+     * will take in SimpleDB for ASCII text
+     */
+    private int estimateBytes() {
+        int bytes = length(msg) + length(host) + length(context) + length(logger) + length(level);
+        for (Map.Entry<String, String> mdcProperty : mdcPropertyMap.entrySet()) {
+            bytes += length(mdcProperty.getKey()) + length(mdcProperty.getValue());
+        }
+        return bytes;
     }
 
     public String getMsg() {
@@ -76,6 +98,59 @@ class SimpleDBRow implements Delayed {
         return time;
     }
 
+    /**
+     * @return the time of the last occurrence of this row, which differs from
+     *         {@link #getTime()} only for aggregated rows
+     */
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    /**
+     * @return the number of identical events this row represents
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Fold a duplicate of this row into it. The earliest time is kept as the
+     * time of the row, with the MDC properties of the row it came from.
+     * 
+     * @param duplicate
+     *        a row with the same message, host, context, logger and level
+     */
+    void merge(SimpleDBRow duplicate) {
+        count += duplicate.count;
+        if (duplicate.time < time) {
+            time = duplicate.time;
+            mdcPropertyMap = duplicate.mdcPropertyMap;
+        }
+        lastTime = Math.max(lastTime, duplicate.lastTime);
+    }
+
+    /**
+     * @return the item name to write the row as, or null for a random one
+     */
+    String getItemName() {
+        return itemName;
+    }
+
+    /**
+     * Write the row as the given item, so that writing it again replaces it
+     * rather than adding a copy
+     */
+    void setItemName(String itemName) {
+        this.itemName = itemName;
+    }
+
+    /**
+     * @return the approximate size of the row's text, in bytes
+     */
+    int getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
     @Override
     public long getDelay(TimeUnit unit) {
         return delayed.getDelay(unit);
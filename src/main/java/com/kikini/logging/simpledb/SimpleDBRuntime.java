@@ -0,0 +1,419 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+
+/**
+ * Writer runtime shared by all the {@link SimpleDBAppender}s of a JVM. It owns
+ * the shared SimpleDB clients (see {@link SimpleDBClients}), one pool of worker
+ * threads, and one shutdown hook.
+ * <p>
+ * Each appender registers a {@link SimpleDBTask} per lane, plus one for its
+ * rollup if any. The workers visit the tasks round-robin, each visit writing at
+ * most a bounded number of rows, so that a busy appender cannot starve the
+ * others. When no task has work ready, the workers sleep until the earliest
+ * time one might.
+ * <p>
+ * The runtime is reference counted: {@link #acquire(int)} returns the shared
+ * instance, creating it if needed, and {@link #release()} gives it up. Once
+ * the last appender has released it, the runtime lingers for a few seconds so
+ * that an appender restarted by a logback reconfiguration reuses it, then
+ * stops its workers, finishes every task and removes its hook. At JVM
+ * shutdown, the hook stops the workers and then finishes every task.
+ * <p>
+ * A stopped appender parks its tasks here rather than finishing them. They
+ * keep being served, and a new appender of the same name and domain may adopt
+ * the queues of its lanes whole. Parked tasks which are not adopted are
+ * finished once the linger period has passed.
+ */
+class SimpleDBRuntime {
+
+    /** Most rows written from one consumer before moving on to the next */
+    static final int MAX_ROWS_PER_TURN = 250;
+
+    /** How long stopped appenders and an unused runtime are kept around */
+    static final long LINGER_MILLIS = 5000;
+
+    private static SimpleDBRuntime shared = null;
+
+    /**
+     * The lanes and tasks of a stopped appender
+     */
+    static class Parked {
+
+        private final String name;
+        private final String domain;
+        private final SimpleDBLane[] lanes;
+        private final List<SimpleDBTask> tasks;
+        private final long expiresAt;
+
+        Parked(String name, String domain, SimpleDBLane[] lanes, List<SimpleDBTask> tasks, long expiresAt) {
+            this.name = name;
+            this.domain = domain;
+            this.lanes = lanes;
+            this.tasks = tasks;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final List<SimpleDBTask> tasks = new CopyOnWriteArrayList<SimpleDBTask>();
+    /** Where to report the failures of each task, by task */
+    private final Map<SimpleDBTask, ContextAware> owners = new ConcurrentHashMap<SimpleDBTask, ContextAware>();
+    private final List<Parked> parked = new ArrayList<Parked>();
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private final SimpleDBClients clients = new SimpleDBClients();
+    private final Map<AmazonSimpleDB, SimpleDBDomains> domains = new HashMap<AmazonSimpleDB, SimpleDBDomains>();
+    private final AtomicInteger nextTask = new AtomicInteger();
+    private final Object idle = new Object();
+    private final Thread shutdownHook;
+    private int references = 0;
+    private long unusedSince = 0;
+    private volatile boolean running = true;
+
+    /**
+     * Worker thread body: write whatever is ready, or sleep until something
+     * might be
+     */
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            while (running) {
+                long now = System.currentTimeMillis();
+                if (retireIfUnused(now)) return;
+                expireParked(now);
+                if (!writeOneTurn()) {
+                    try {
+                        synchronized (idle) {
+                            idle.wait(Math.max(1, millisUntilReady(now)));
+                        }
+                    } catch (InterruptedException e) {
+                        // The thread was interrupted, perhaps by the shutdown
+                        // handler. Let's exit so that it can do its work.
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Package-private constructor for test */
+    SimpleDBRuntime() {
+        this.shutdownHook = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                shutdown();
+            }
+        });
+    }
+
+    /**
+     * Obtain the shared runtime, creating it if necessary, and make sure it has
+     * at least the given number of worker threads
+     * 
+     * @param workerThreads
+     *        the number of workers the caller would like
+     * @return the shared runtime
+     */
+    static synchronized SimpleDBRuntime acquire(int workerThreads) {
+        if (shared == null) {
+            shared = new SimpleDBRuntime();
+            Runtime.getRuntime().addShutdownHook(shared.shutdownHook);
+        }
+        shared.references++;
+        shared.ensureWorkers(workerThreads);
+        return shared;
+    }
+
+    /**
+     * Give up a reference obtained from {@link #acquire(int)}. When no
+     * references remain for {@link #LINGER_MILLIS}, the runtime is retired.
+     */
+    void release() {
+        synchronized (SimpleDBRuntime.class) {
+            if (--references == 0) {
+                unusedSince = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Retire the runtime if it has been unused for long enough: stop the
+     * workers, finish every task, and remove the shutdown hook. A later
+     * {@link #acquire(int)} creates a new runtime.
+     * 
+     * @return true if the runtime was retired
+     */
+    boolean retireIfUnused(long now) {
+        synchronized (SimpleDBRuntime.class) {
+            if (!running || references > 0 || now - unusedSince < LINGER_MILLIS) return false;
+            if (shared == this) shared = null;
+            running = false;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // already shutting down, and the hook will do the same work
+        }
+        shutdown();
+        return true;
+    }
+
+    /**
+     * Start workers until there are at least the given number
+     */
+    synchronized void ensureWorkers(int workerThreads) {
+        while (workers.size() < workerThreads) {
+            Thread worker = new Thread(new Worker(), "SimpleDBWriter-" + workers.size());
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    synchronized int getWorkerCount() {
+        return workers.size();
+    }
+
+    /**
+     * @return the name and state of each worker thread
+     */
+    synchronized String[] getWorkerStates() {
+        String[] states = new String[workers.size()];
+        for (int i = 0; i < states.length; i++) {
+            Thread worker = workers.get(i);
+            states[i] = worker.getName() + ' ' + worker.getState();
+        }
+        return states;
+    }
+
+    /**
+     * @return the factory of clients shared by the appenders
+     */
+    SimpleDBClients getClients() {
+        return clients;
+    }
+
+    /**
+     * Get the cache of known domains for the given client
+     */
+    synchronized SimpleDBDomains getDomains(AmazonSimpleDB client) {
+        SimpleDBDomains known = domains.get(client);
+        if (known == null) {
+            known = new SimpleDBDomains(client);
+            domains.put(client, known);
+        }
+        return known;
+    }
+
+    /**
+     * Add a task to be served by the workers
+     */
+    void register(SimpleDBTask task) {
+        register(task, null);
+    }
+
+    /**
+     * Add a task to be served by the workers
+     * 
+     * @param owner
+     *        where to report the failures of the task, or null
+     */
+    void register(SimpleDBTask task, ContextAware owner) {
+        if (owner != null) owners.put(task, owner);
+        tasks.add(task);
+        synchronized (idle) {
+            idle.notifyAll();
+        }
+    }
+
+    /**
+     * Stop serving a task. Its outstanding work is not done.
+     */
+    void unregister(SimpleDBTask task) {
+        tasks.remove(task);
+        owners.remove(task);
+    }
+
+    /**
+     * Finish a task, reporting a failure to its owner
+     */
+    private void finish(SimpleDBTask task, ContextAware owner) {
+        try {
+            task.finish();
+        } catch (RuntimeException e) {
+            if (owner != null) owner.addError("Could not finish " + task.getClass().getSimpleName(), e);
+        }
+    }
+
+    /**
+     * Keep the lanes and tasks of a stopped appender, still served by the
+     * workers, so that a restarted appender may adopt them
+     * 
+     * @param name
+     *        the name of the appender
+     * @param domain
+     *        the domain the appender wrote to
+     * @param lanes
+     *        the lanes of the appender, whose queues may be adopted
+     * @param appenderTasks
+     *        the tasks registered by the appender
+     */
+    void park(String name, String domain, SimpleDBLane[] lanes, List<SimpleDBTask> appenderTasks) {
+        synchronized (parked) {
+            parked.add(new Parked(name, domain, lanes, new ArrayList<SimpleDBTask>(appenderTasks),
+                    System.currentTimeMillis() + LINGER_MILLIS));
+        }
+    }
+
+    /**
+     * Take the lanes parked by a stopped appender of the given name writing to
+     * the given domain. The caller takes over the queues of the lanes, so the
+     * consumers of those queues are unregistered; any other parked tasks of the
+     * appender carry on until they expire.
+     * 
+     * @return the parked lanes, highest level first, or null if there are none
+     */
+    SimpleDBLane[] adopt(String name, String domain) {
+        if (name == null) return null;
+        Parked found = null;
+        synchronized (parked) {
+            for (Parked candidate : parked) {
+                if (name.equals(candidate.name) && domain.equals(candidate.domain)) {
+                    found = candidate;
+                    break;
+                }
+            }
+            if (found == null) return null;
+            parked.remove(found);
+        }
+        List<SimpleDBTask> remaining = new ArrayList<SimpleDBTask>();
+        for (SimpleDBTask task : found.tasks) {
+            if (task instanceof SimpleDBConsumer) {
+                unregister(task);
+                ((SimpleDBConsumer)task).returnHeld();
+            } else {
+                remaining.add(task);
+            }
+        }
+        if (!remaining.isEmpty()) {
+            // nobody can adopt these, but they still run out their time
+            synchronized (parked) {
+                parked.add(new Parked(null, found.domain, new SimpleDBLane[0], remaining, found.expiresAt));
+            }
+        }
+        return found.lanes;
+    }
+
+    /**
+     * Finish and unregister the tasks of stopped appenders which were not
+     * adopted in time
+     */
+    void expireParked(long now) {
+        List<Parked> expired = new ArrayList<Parked>();
+        synchronized (parked) {
+            if (parked.isEmpty()) return;
+            for (Parked candidate : parked) {
+                if (now >= candidate.expiresAt) expired.add(candidate);
+            }
+            parked.removeAll(expired);
+        }
+        for (Parked gone : expired) {
+            for (SimpleDBTask task : gone.tasks) {
+                ContextAware owner = owners.get(task);
+                unregister(task);
+                finish(task, owner);
+            }
+        }
+    }
+
+    /**
+     * Give one turn to the next task with work ready
+     * 
+     * @return true if any work was done
+     */
+    boolean writeOneTurn() {
+        Object[] snapshot = tasks.toArray();
+        if (snapshot.length == 0) return false;
+        int start = nextTask.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < snapshot.length; i++) {
+            SimpleDBTask task = (SimpleDBTask)snapshot[(start + i) % snapshot.length];
+            try {
+                if (task.runOnce()) return true;
+            } catch (RuntimeException e) {
+                // the worker must carry on serving the other tasks
+                ContextAware owner = owners.get(task);
+                if (owner != null) owner.addError(task.getClass().getSimpleName() + " failed", e);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long millisUntilReady(long now) {
+        long wait = LINGER_MILLIS;
+        for (SimpleDBTask task : tasks) {
+            wait = Math.min(wait, task.millisUntilReady(now));
+        }
+        return wait;
+    }
+
+    /**
+     * Stop the workers and finish every task. This is the single drain for all
+     * appenders at JVM shutdown.
+     */
+    void shutdown() {
+        running = false;
+        List<Thread> stopping;
+        synchronized (this) {
+            stopping = new ArrayList<Thread>(workers);
+            workers.clear();
+        }
+        for (Thread worker : stopping) {
+            // a worker may be retiring the runtime itself
+            if (worker != Thread.currentThread()) worker.interrupt();
+        }
+        try {
+            for (Thread worker : stopping) {
+                if (worker != Thread.currentThread()) worker.join();
+            }
+        } catch (InterruptedException e) {
+            // unexpected and not clear what we should do. bail.
+            return;
+        }
+        synchronized (parked) {
+            parked.clear();
+        }
+        for (SimpleDBTask task : tasks) {
+            finish(task, owners.get(task));
+        }
+        tasks.clear();
+        owners.clear();
+        clients.shutdown();
+    }
+}
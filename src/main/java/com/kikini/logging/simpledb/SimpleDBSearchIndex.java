@@ -0,0 +1,273 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import com.amazonaws.services.simpledb.util.SimpleDBUtils;
+
+/**
+ * An index of the words of log messages, kept in a domain of its own, which
+ * finds messages by keyword without the full scan of a {@code like} query.
+ * <p>
+ * Messages are split into tokens at every character which is not a letter or
+ * a digit, and lower-cased. Tokens shorter or longer than the limits, and stop
+ * words, are left out, and at most a given number of tokens of each message
+ * are indexed, which bounds the cost of indexing. For the rows written
+ * together, one posting item is written per token and time bucket, holding
+ * the item names of the rows in that bucket whose messages have the token, as
+ * many as an item may hold.
+ * <p>
+ * The writer and the readers of a domain must use the same settings, or
+ * searches miss what the writer did not index.
+ */
+public class SimpleDBSearchIndex {
+
+    static final String TOKEN_COLUMN = "token";
+    static final String BUCKET_COLUMN = "bucket";
+    static final String ITEM_COLUMN = "item";
+
+    /** Most item names SimpleDB returns from one select */
+    private static final int PAGE_SIZE = 2500;
+    /** Most attributes SimpleDB accepts for an item in one request */
+    private static final int MAX_POSTING_ATTRIBUTES = 256;
+
+    private static final Set<String> DEFAULT_STOP_WORDS = new HashSet<String>(Arrays.asList("and", "are", "but",
+            "for", "from", "has", "have", "into", "its", "not", "that", "the", "then", "there", "these", "they",
+            "this", "was", "were", "will", "with"));
+
+    private final AmazonSimpleDB sdb;
+    private final String dom;
+    private SimpleDBDomains domains = null;
+    private long bucketMillis = 3600000;
+    private int minTokenLength = 3;
+    private int maxTokenLength = 32;
+    private int maxTokensPerMessage = 24;
+    private Set<String> stopWords = DEFAULT_STOP_WORDS;
+
+    /**
+     * @param sdb
+     *        the client to write and search the index with
+     * @param dom
+     *        the index domain
+     */
+    public SimpleDBSearchIndex(AmazonSimpleDB sdb, String dom) {
+        this.sdb = sdb;
+        this.dom = dom;
+    }
+
+    /**
+     * Make sure the index domain exists before writing to it
+     * 
+     * @param domains
+     *        the cache of domains of the client
+     */
+    void setDomains(SimpleDBDomains domains) {
+        this.domains = domains;
+    }
+
+    /**
+     * Set the length of the time buckets postings are grouped by. The default
+     * is an hour.
+     */
+    public void setBucketMillis(long bucketMillis) {
+        if (bucketMillis < 1) throw new IllegalArgumentException("bucket must be greater than 0");
+        this.bucketMillis = bucketMillis;
+    }
+
+    /**
+     * Set the shortest token indexed. The default is 3 characters.
+     */
+    public void setMinTokenLength(int minTokenLength) {
+        if (minTokenLength < 1) throw new IllegalArgumentException("min token length must be greater than 0");
+        this.minTokenLength = minTokenLength;
+    }
+
+    /**
+     * Set the longest token indexed, beyond which tokens such as identifiers
+     * and hashes are left out. The default is 32 characters.
+     */
+    public void setMaxTokenLength(int maxTokenLength) {
+        if (maxTokenLength < 1) throw new IllegalArgumentException("max token length must be greater than 0");
+        this.maxTokenLength = maxTokenLength;
+    }
+
+    /**
+     * Set the most tokens indexed per message, the first ones being kept. The
+     * default is 24.
+     */
+    public void setMaxTokensPerMessage(int maxTokensPerMessage) {
+        if (maxTokensPerMessage < 1) throw new IllegalArgumentException("max tokens must be greater than 0");
+        this.maxTokensPerMessage = maxTokensPerMessage;
+    }
+
+    /**
+     * Set the words left out of the index, replacing the default English ones
+     * 
+     * @param stopWords
+     *        the words, separated by commas
+     */
+    public void setStopWords(String stopWords) {
+        Set<String> words = new HashSet<String>();
+        for (String word : stopWords.split(",")) {
+            word = word.trim().toLowerCase(Locale.ENGLISH);
+            if (word.length() > 0) words.add(word);
+        }
+        this.stopWords = words;
+    }
+
+    /**
+     * @return the distinct tokens of a text which are indexed, in the order
+     *         they first appear
+     */
+    List<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<String>();
+        if (text == null) return new ArrayList<String>(tokens);
+        int start = -1;
+        for (int i = 0; i <= text.length() && tokens.size() < maxTokensPerMessage; i++) {
+            boolean inToken = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inToken && start < 0) {
+                start = i;
+            } else if (!inToken && start >= 0) {
+                int length = i - start;
+                if (length >= minTokenLength && length <= maxTokenLength) {
+                    String token = text.substring(start, i).toLowerCase(Locale.ENGLISH);
+                    if (!stopWords.contains(token)) tokens.add(token);
+                }
+                start = -1;
+            }
+        }
+        return new ArrayList<String>(tokens);
+    }
+
+    private long bucket(long time) {
+        return time - (((time % bucketMillis) + bucketMillis) % bucketMillis);
+    }
+
+    /**
+     * Write the postings of the rows written together
+     * 
+     * @param rows
+     *        the rows written
+     * @param itemNames
+     *        the item names the rows were written under, in the same order
+     */
+    void index(List<SimpleDBRow> rows, List<String> itemNames) {
+        Map<String, List<ReplaceableAttribute>> postings = new HashMap<String, List<ReplaceableAttribute>>();
+        List<ReplaceableItem> items = new ArrayList<ReplaceableItem>();
+        for (int i = 0; i < rows.size(); i++) {
+            SimpleDBRow row = rows.get(i);
+            String bucket = SimpleDBWriter.encodeTimeMillis(bucket(row.getTime()));
+            for (String token : tokenize(row.getMsg())) {
+                String key = token + "/" + bucket;
+                List<ReplaceableAttribute> posting = postings.get(key);
+                if (posting == null || posting.size() == MAX_POSTING_ATTRIBUTES) {
+                    posting = new ArrayList<ReplaceableAttribute>();
+                    posting.add(new ReplaceableAttribute(TOKEN_COLUMN, token, false));
+                    posting.add(new ReplaceableAttribute(BUCKET_COLUMN, bucket, false));
+                    postings.put(key, posting);
+                    // named after its first row, so that each write has its
+                    // own postings
+                    items.add(new ReplaceableItem(key + "/" + itemNames.get(i), posting));
+                }
+                posting.add(new ReplaceableAttribute(ITEM_COLUMN, itemNames.get(i), false));
+            }
+        }
+        if (items.isEmpty()) return;
+        if (domains != null) {
+            domains.ensure(dom);
+        }
+        List<ReplaceableItem> nextBatch;
+        ListBatcher<ReplaceableItem> batchedList = new ListBatcher<ReplaceableItem>(items, SimpleDBWriter.MAX_BATCH_PUT);
+        while ((nextBatch = batchedList.nextBatch()) != null) {
+            sdb.batchPutAttributes(new BatchPutAttributesRequest(dom, nextBatch));
+        }
+    }
+
+    /**
+     * @return the names of the items whose messages have the token, in the
+     *         buckets overlapping the time range
+     */
+    private Set<String> lookUp(String token, long from, long to, boolean consistentRead) {
+        StringBuilder select = new StringBuilder("select ").append(SimpleDBUtils.quoteName(ITEM_COLUMN)).append(
+                " from ").append(SimpleDBUtils.quoteName(dom)).append(" where ").append(
+                SimpleDBUtils.quoteName(TOKEN_COLUMN)).append(" = ").append(SimpleDBUtils.quoteValue(token));
+        String bucket = SimpleDBUtils.quoteName(BUCKET_COLUMN);
+        if (from != Long.MIN_VALUE) {
+            select.append(" and ").append(bucket).append(" >= ").append(
+                    SimpleDBUtils.quoteValue(SimpleDBWriter.encodeTimeMillis(bucket(from))));
+        }
+        if (to != Long.MAX_VALUE) {
+            select.append(" and ").append(bucket).append(" < ").append(
+                    SimpleDBUtils.quoteValue(SimpleDBWriter.encodeTimeMillis(to)));
+        }
+        select.append(" limit ").append(PAGE_SIZE);
+        Set<String> names = new LinkedHashSet<String>();
+        String nextToken = null;
+        do {
+            SelectResult result = sdb.select(new SelectRequest(select.toString(), consistentRead)
+                    .withNextToken(nextToken));
+            for (Item item : result.getItems()) {
+                for (Attribute attribute : item.getAttributes()) {
+                    if (ITEM_COLUMN.equals(attribute.getName())) names.add(attribute.getValue());
+                }
+            }
+            nextToken = result.getNextToken();
+        } while (nextToken != null);
+        return names;
+    }
+
+    /**
+     * Find the items whose messages have every indexed word of the keywords
+     * 
+     * @return the item names, which may include items just outside the time
+     *         range, in buckets it overlaps
+     * @throws IllegalArgumentException
+     *         if none of the keywords are indexed
+     */
+    Set<String> find(String keywords, long from, long to, boolean consistentRead) {
+        List<String> tokens = tokenize(keywords);
+        if (tokens.isEmpty()) throw new IllegalArgumentException("no indexed words in \"" + keywords + "\"");
+        Set<String> names = null;
+        for (String token : tokens) {
+            Set<String> found = lookUp(token, from, to, consistentRead);
+            if (names == null) {
+                names = found;
+            } else {
+                names.retainAll(found);
+            }
+            if (names.isEmpty()) return Collections.emptySet();
+        }
+        return names;
+    }
+}
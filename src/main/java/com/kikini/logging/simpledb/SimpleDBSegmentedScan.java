@@ -0,0 +1,229 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Scans the time range of a query as consecutive segments, several at once,
+ * and streams the results in time order. Segments are read ahead of the
+ * caller, at most a given number at a time; each is read whole, sorted, and
+ * handed over once every earlier segment has been, so that the results come
+ * out in order while only the segments in flight are held in memory.
+ * <p>
+ * The length of the segments adapts to the density of the items: after each
+ * segment, the next ones are sized so that they should hold about a page of
+ * items, growing or shrinking at most fourfold at a time.
+ */
+class SimpleDBSegmentedScan extends AbstractIterator<SimpleDBRecord> {
+
+    /** Shortest segment, below which splitting further is not worth a request */
+    static final long MIN_SEGMENT_MILLIS = 1000;
+
+    /** Segments the range is first split into, per segment in flight */
+    private static final int INITIAL_SEGMENTS_PER_WORKER = 4;
+
+    /**
+     * A part of the time range, being read
+     */
+    private static class Segment {
+
+        private final long from;
+        private final long to;
+        private final FutureTask<List<SimpleDBRecord>> task;
+
+        Segment(long from, long to, FutureTask<List<SimpleDBRecord>> task) {
+            this.from = from;
+            this.to = to;
+            this.task = task;
+        }
+    }
+
+    private final AmazonSimpleDB sdb;
+    private final String dom;
+    private final SimpleDBTimeColumn time;
+    private final Executor executor;
+    private final SimpleDBQuery query;
+    private final int parallelism;
+    private final int pageSize;
+    private final boolean descending;
+    private final LinkedList<Segment> inFlight = new LinkedList<Segment>();
+    private Iterator<SimpleDBRecord> current = Collections.<SimpleDBRecord> emptyList().iterator();
+    private long nextEdge;
+    private long segmentMillis;
+    private long remaining;
+
+    /**
+     * Start reading the first segments
+     * 
+     * @param parallelism
+     *        the most segments to read at once
+     * @param pageSize
+     *        the number of items to ask SimpleDB for at once, and which
+     *        segments are sized to hold
+     */
+    SimpleDBSegmentedScan(AmazonSimpleDB sdb, String dom, SimpleDBTimeColumn time, Executor executor,
+            SimpleDBQuery query, int parallelism, int pageSize) {
+        if (query.getFrom() == Long.MIN_VALUE || query.getTo() == Long.MAX_VALUE) {
+            throw new IllegalArgumentException("a segmented scan needs a time range");
+        }
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be greater than 0");
+        this.sdb = sdb;
+        this.dom = dom;
+        this.time = time;
+        this.executor = executor;
+        this.query = query;
+        this.parallelism = parallelism;
+        this.pageSize = pageSize;
+        this.descending = query.isDescending();
+        this.nextEdge = descending ? query.getTo() : query.getFrom();
+        this.segmentMillis = Math.max(MIN_SEGMENT_MILLIS, (query.getTo() - query.getFrom())
+                / (parallelism * INITIAL_SEGMENTS_PER_WORKER));
+        this.remaining = query.getLimit() > 0 ? query.getLimit() : Long.MAX_VALUE;
+        fill();
+    }
+
+    long getSegmentMillis() {
+        return segmentMillis;
+    }
+
+    private boolean unscheduled() {
+        return descending ? nextEdge > query.getFrom() : nextEdge < query.getTo();
+    }
+
+    /**
+     * Start reading segments until as many as allowed are in flight
+     */
+    private void fill() {
+        while (inFlight.size() < parallelism && unscheduled()) {
+            long from;
+            long to;
+            if (descending) {
+                to = nextEdge;
+                from = to - query.getFrom() > segmentMillis ? to - segmentMillis : query.getFrom();
+                nextEdge = from;
+            } else {
+                from = nextEdge;
+                to = query.getTo() - from > segmentMillis ? from + segmentMillis : query.getTo();
+                nextEdge = to;
+            }
+            final String expression = query.toSelectExpression(dom, time, from, to, pageSize);
+            FutureTask<List<SimpleDBRecord>> task = new FutureTask<List<SimpleDBRecord>>(
+                    new Callable<List<SimpleDBRecord>>() {
+
+                        @Override
+                        public List<SimpleDBRecord> call() {
+                            return read(expression);
+                        }
+                    });
+            inFlight.add(new Segment(from, to, task));
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Read every page of a segment, and sort it
+     */
+    private List<SimpleDBRecord> read(String expression) {
+        List<SimpleDBRecord> records = new ArrayList<SimpleDBRecord>();
+        String nextToken = null;
+        do {
+            SelectResult result = sdb.select(new SelectRequest(expression, query.isConsistentRead())
+                    .withNextToken(nextToken));
+            for (Item item : result.getItems()) {
+                records.add(SimpleDBRecord.decode(item));
+            }
+            nextToken = result.getNextToken();
+        } while (nextToken != null && !Thread.currentThread().isInterrupted());
+        Collections.sort(records, descending ? Collections.reverseOrder(SimpleDBRecord.BY_TIME)
+                : SimpleDBRecord.BY_TIME);
+        return records;
+    }
+
+    /**
+     * Size the next segments to hold about a page, given how many items a
+     * segment held
+     */
+    private void adapt(Segment segment, int items) {
+        long length = segment.to - segment.from;
+        long ideal = items == 0 ? length * 4 : (long)((double)length * pageSize / items);
+        long grown = Math.min(ideal, segmentMillis * 4);
+        segmentMillis = Math.max(MIN_SEGMENT_MILLIS, Math.max(grown, segmentMillis / 4));
+    }
+
+    private static List<SimpleDBRecord> await(FutureTask<List<SimpleDBRecord>> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while waiting for SimpleDB", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+            throw new AmazonClientException("Could not read from SimpleDB", e.getCause());
+        }
+    }
+
+    @Override
+    protected SimpleDBRecord computeNext() {
+        if (remaining <= 0) {
+            close();
+            return endOfData();
+        }
+        while (!current.hasNext()) {
+            Segment head = inFlight.poll();
+            if (head == null) return endOfData();
+            List<SimpleDBRecord> records;
+            try {
+                records = await(head.task);
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+            adapt(head, records.size());
+            fill();
+            current = records.iterator();
+        }
+        remaining--;
+        return current.next();
+    }
+
+    /**
+     * Stop reading, abandoning the segments in flight
+     */
+    void close() {
+        for (Segment segment : inFlight) {
+            segment.task.cancel(true);
+        }
+        inFlight.clear();
+        nextEdge = descending ? query.getFrom() : query.getTo();
+        current = Collections.<SimpleDBRecord> emptyList().iterator();
+    }
+}
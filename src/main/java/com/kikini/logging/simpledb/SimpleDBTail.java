@@ -0,0 +1,311 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonClientException;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Follows log domains as they are written, like {@code tail -f}. Each domain
+ * followed is polled for the items at or after the newest time seen so far;
+ * the items already delivered at that time are remembered, so that those
+ * written in the same millisecond as the last poll are neither lost nor
+ * repeated.
+ * <p>
+ * Polling adapts to the rate at which items are written: the interval halves
+ * down to the shortest one while polls find new items, and doubles up to the
+ * longest one while they find none. Since appenders write their events a
+ * logging period late, a look-back may be set so that each poll also reads
+ * again that far before the newest time seen, for events which arrive late.
+ * <p>
+ * Every domain is polled by the same few scheduler threads, which
+ * {@link #shutdown()} stops, however many are followed.
+ */
+public class SimpleDBTail {
+
+    static final long DEFAULT_MIN_POLL_MILLIS = 500;
+    static final long DEFAULT_MAX_POLL_MILLIS = 10000;
+
+    private final ScheduledExecutorService scheduler;
+    private volatile long minPollMillis = DEFAULT_MIN_POLL_MILLIS;
+    private volatile long maxPollMillis = DEFAULT_MAX_POLL_MILLIS;
+    private volatile long lookBackMillis = 0;
+
+    /**
+     * Poll with a single scheduler thread
+     */
+    public SimpleDBTail() {
+        this(1);
+    }
+
+    /**
+     * @param threads
+     *        the number of threads to poll with, shared by every domain
+     *        followed
+     */
+    public SimpleDBTail(int threads) {
+        this(Executors.newScheduledThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("SimpleDBTail-%d").build()));
+    }
+
+    /** Package-private constructor for test */
+    SimpleDBTail(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Set the shortest interval between polls of a domain, while items are
+     * arriving. Applies to domains followed afterwards.
+     */
+    public void setMinPollMillis(long minPollMillis) {
+        if (minPollMillis < 1) throw new IllegalArgumentException("interval must be greater than 0");
+        this.minPollMillis = minPollMillis;
+    }
+
+    /**
+     * Set the longest interval between polls of a domain, while none are.
+     * Applies to domains followed afterwards.
+     */
+    public void setMaxPollMillis(long maxPollMillis) {
+        if (maxPollMillis < 1) throw new IllegalArgumentException("interval must be greater than 0");
+        this.maxPollMillis = maxPollMillis;
+    }
+
+    /**
+     * Set how far before the newest time seen each poll reads again, to catch
+     * events written late, such as the appenders' logging period. The default
+     * is 0. Applies to domains followed afterwards.
+     */
+    public void setLookBackMillis(long lookBackMillis) {
+        if (lookBackMillis < 0) throw new IllegalArgumentException("look-back must not be negative");
+        this.lookBackMillis = lookBackMillis;
+    }
+
+    /**
+     * Follow the items of a query as they are written
+     * 
+     * @param reader
+     *        the reader of the domain to follow
+     * @param query
+     *        the criteria of the items to follow; its time range, if any, only
+     *        gives the time to start from, and its order and limit are ignored
+     * @param listener
+     *        called with each new item
+     * @return the follower, to cancel
+     */
+    public Follower follow(SimpleDBReader reader, SimpleDBQuery query, SimpleDBTailListener listener) {
+        long start = query.getFrom() == Long.MIN_VALUE ? System.currentTimeMillis() : query.getFrom();
+        Follower follower = new Follower(reader, query, listener, start, minPollMillis,
+                Math.max(minPollMillis, maxPollMillis), lookBackMillis);
+        follower.schedule(0);
+        return follower;
+    }
+
+    /**
+     * Follow the items of a query as they are written, as an iterator which
+     * blocks until the next item arrives. Items are queued until taken, so the
+     * caller must keep up with the domain.
+     * 
+     * @see #follow(SimpleDBReader, SimpleDBQuery, SimpleDBTailListener)
+     */
+    public TailIterator follow(SimpleDBReader reader, SimpleDBQuery query) {
+        TailIterator iterator = new TailIterator();
+        iterator.follower = follow(reader, query, iterator);
+        return iterator;
+    }
+
+    /**
+     * Stop following every domain
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Polls one domain. Polls of a follower never overlap, each being
+     * scheduled when the one before ends.
+     */
+    public class Follower implements Runnable {
+
+        private final SimpleDBReader reader;
+        private final SimpleDBQuery query;
+        private final SimpleDBTailListener listener;
+        private final long minPollMillis;
+        private final long maxPollMillis;
+        private final long lookBackMillis;
+        /** Items delivered at or after the start of the look-back, by name */
+        private final Map<String, Long> seen = new HashMap<String, Long>();
+        private long watermark;
+        private long intervalMillis;
+        private volatile boolean cancelled = false;
+        private volatile ScheduledFuture<?> next;
+
+        Follower(SimpleDBReader reader, SimpleDBQuery query, SimpleDBTailListener listener, long start,
+                long minPollMillis, long maxPollMillis, long lookBackMillis) {
+            this.reader = reader;
+            this.query = query;
+            this.listener = listener;
+            this.watermark = start;
+            this.minPollMillis = minPollMillis;
+            this.maxPollMillis = maxPollMillis;
+            this.lookBackMillis = lookBackMillis;
+            this.intervalMillis = minPollMillis;
+        }
+
+        private void schedule(long delayMillis) {
+            if (!cancelled) next = scheduler.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) return;
+            try {
+                poll();
+            } catch (AmazonClientException e) {
+                intervalMillis = maxPollMillis;
+                try {
+                    listener.pollFailed(e);
+                } catch (RuntimeException ignored) {
+                    // the listener's problem
+                }
+            } finally {
+                schedule(intervalMillis);
+            }
+        }
+
+        /**
+         * Read and deliver the items written since the last poll
+         * 
+         * @return the number of new items
+         */
+        int poll() {
+            long from = watermark - lookBackMillis;
+            Iterator<SimpleDBRecord> records = reader.select(query.forTimeRange(from, Long.MAX_VALUE).orderByTime(
+                    false));
+            int arrived = 0;
+            while (records.hasNext() && !cancelled) {
+                SimpleDBRecord record = records.next();
+                if (seen.containsKey(record.getItemName())) continue;
+                seen.put(record.getItemName(), record.getTime());
+                if (record.getTime() > watermark) watermark = record.getTime();
+                arrived++;
+                try {
+                    listener.recordArrived(record);
+                } catch (RuntimeException ignored) {
+                    // the listener's problem
+                }
+            }
+            long forget = watermark - lookBackMillis;
+            for (Iterator<Long> it = seen.values().iterator(); it.hasNext();) {
+                if (it.next() < forget) it.remove();
+            }
+            intervalMillis = arrived > 0 ? Math.max(minPollMillis, intervalMillis / 2) : Math.min(maxPollMillis,
+                    intervalMillis * 2);
+            return arrived;
+        }
+
+        /**
+         * @return the time of the newest item seen, or the start time
+         */
+        public long getWatermark() {
+            return watermark;
+        }
+
+        long getIntervalMillis() {
+            return intervalMillis;
+        }
+
+        /**
+         * Stop following the domain. A poll in progress delivers no more items.
+         */
+        public void cancel() {
+            cancelled = true;
+            ScheduledFuture<?> scheduled = next;
+            if (scheduled != null) scheduled.cancel(false);
+        }
+    }
+
+    /**
+     * Items of a followed domain, as they arrive. {@code hasNext()} blocks
+     * until there is one, so iteration only ends when the iterator is closed
+     * or the thread interrupted.
+     */
+    public static class TailIterator extends AbstractIterator<SimpleDBRecord> implements SimpleDBTailListener {
+
+        private final BlockingQueue<SimpleDBRecord> arrived = new LinkedBlockingQueue<SimpleDBRecord>();
+        private Follower follower;
+        private volatile boolean closed = false;
+
+        TailIterator() {
+        }
+
+        @Override
+        public void recordArrived(SimpleDBRecord record) {
+            arrived.add(record);
+        }
+
+        @Override
+        public void pollFailed(AmazonClientException e) {
+            // polling goes on
+        }
+
+        /**
+         * Take the next item, waiting at most the given time for one
+         * 
+         * @return the item, or null if none arrived in time
+         */
+        public SimpleDBRecord poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return arrived.poll(timeout, unit);
+        }
+
+        @Override
+        protected SimpleDBRecord computeNext() {
+            while (!closed) {
+                try {
+                    SimpleDBRecord record = arrived.poll(100, TimeUnit.MILLISECONDS);
+                    if (record != null) return record;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return endOfData();
+        }
+
+        Follower getFollower() {
+            return follower;
+        }
+
+        /**
+         * Stop following the domain, ending the iteration
+         */
+        public void close() {
+            closed = true;
+            follower.cancel();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * Receives the items followed by a {@link SimpleDBTail} as they are written.
+ * Listeners are called on the tail's scheduler threads, which every domain
+ * followed shares, so they must be quick. Exceptions thrown by listeners are
+ * ignored.
+ */
+public interface SimpleDBTailListener {
+
+    /**
+     * Called once for each new item, oldest first
+     * 
+     * @param record
+     *        the item
+     */
+    void recordArrived(SimpleDBRecord record);
+
+    /**
+     * Called when SimpleDB could not be polled. Polling goes on, at the
+     * longest interval.
+     * 
+     * @param e
+     *        the reason
+     */
+    void pollFailed(AmazonClientException e);
+}
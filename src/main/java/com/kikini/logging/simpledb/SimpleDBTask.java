@@ -0,0 +1,44 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+/**
+ * Unit of work served by the worker threads of a {@link SimpleDBRuntime}.
+ * Tasks never wait: they do whatever work is ready, and tell the runtime when
+ * more might be.
+ */
+interface SimpleDBTask {
+
+    /**
+     * Do a bounded amount of work which is ready, without waiting
+     * 
+     * @return true if any work was done
+     */
+    boolean runOnce();
+
+    /**
+     * @param now
+     *        the current time in milliseconds
+     * @return the number of milliseconds until work may next be ready
+     */
+    long millisUntilReady(long now);
+
+    /**
+     * Complete all outstanding work, whether or not it is ready. Used when the
+     * task is retired or the JVM shuts down.
+     */
+    void finish();
+}
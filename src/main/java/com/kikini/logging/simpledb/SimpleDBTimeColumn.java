@@ -0,0 +1,63 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+
+import com.amazonaws.services.simpledb.util.SimpleDBUtils;
+
+/**
+ * The column time predicates and ordering of selects are on. The timeMillis
+ * column compares the same in any time zone; the ISO 8601 time column is only
+ * for items written before timeMillis was, and compares correctly only in the
+ * time zone they were written in.
+ */
+class SimpleDBTimeColumn {
+
+    /** The zero-padded milliseconds written by {@link SimpleDBWriter} */
+    static final SimpleDBTimeColumn MILLIS = new SimpleDBTimeColumn(SimpleDBWriter.TIME_MILLIS_COLUMN, null);
+
+    private final String name;
+    private final DateTimeFormatter formatter;
+
+    private SimpleDBTimeColumn(String name, DateTimeFormatter formatter) {
+        this.name = name;
+        this.formatter = formatter;
+    }
+
+    /**
+     * @return the ISO 8601 time column, as formatted by the given formatter
+     */
+    static SimpleDBTimeColumn iso(DateTimeFormatter formatter) {
+        return new SimpleDBTimeColumn(SimpleDBWriter.TIME_COLUMN, formatter);
+    }
+
+    /**
+     * @return the name of the column, quoted for a select expression
+     */
+    String quotedName() {
+        return SimpleDBUtils.quoteName(name);
+    }
+
+    /**
+     * @return the predicate comparing the column with the given time
+     */
+    String compare(String operator, long time) {
+        String value = formatter == null ? SimpleDBWriter.encodeTimeMillis(time) : formatter.print(new DateTime(time));
+        return quotedName() + " " + operator + " " + SimpleDBUtils.quoteValue(value);
+    }
+}
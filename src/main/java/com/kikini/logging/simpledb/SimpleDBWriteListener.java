@@ -0,0 +1,48 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+/**
+ * Receives the timing of the writes made by a {@link SimpleDBAppender}, for
+ * forwarding to a monitoring system. Listeners are configured in
+ * {@code logback.xml} as nested elements of the appender:
+ * 
+ * <pre>
+ * &lt;listener class="com.example.MyWriteListener"/&gt;
+ * </pre>
+ * 
+ * Listeners are called on the writer threads, once per BatchPutAttributes
+ * request and once per flush, so they must be quick and thread safe.
+ * Exceptions thrown by listeners are ignored.
+ */
+public interface SimpleDBWriteListener {
+
+    /**
+     * Called after each BatchPutAttributes request succeeds
+     * 
+     * @param batch
+     *        the timing of the batch
+     */
+    void batchWritten(SimpleDBWriteTiming batch);
+
+    /**
+     * Called after all the batches of a flush have been written
+     * 
+     * @param flush
+     *        the timing of the batches of the flush, summed
+     */
+    void flushWritten(SimpleDBWriteTiming flush);
+}
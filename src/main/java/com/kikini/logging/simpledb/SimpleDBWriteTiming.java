@@ -0,0 +1,152 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+/**
+ * Time spent in each stage of writing rows to SimpleDB, in nanoseconds. The
+ * truncation and time formatting stages are part of building attributes, and
+ * are also reported on their own. The request stage covers signing the request
+ * and the HTTP round trip, including any retries made by the SDK, which does
+ * not time them separately.
+ */
+public class SimpleDBWriteTiming {
+
+    private final String domain;
+    private int batches;
+    private int items;
+    private long buildNanos;
+    private long truncateNanos;
+    private long formatNanos;
+    private long uuidNanos;
+    private long requestNanos;
+    private double boxUsage;
+
+    SimpleDBWriteTiming(String domain) {
+        this.domain = domain;
+    }
+
+    void addBuild(long nanos) {
+        buildNanos += nanos;
+    }
+
+    void addTruncate(long nanos) {
+        truncateNanos += nanos;
+    }
+
+    void addFormat(long nanos) {
+        formatNanos += nanos;
+    }
+
+    void addUuid(long nanos) {
+        uuidNanos += nanos;
+    }
+
+    void addRequest(int batchItems, long nanos) {
+        batches++;
+        items += batchItems;
+        requestNanos += nanos;
+    }
+
+    void addBoxUsage(double hours) {
+        boxUsage += hours;
+    }
+
+    /**
+     * Add the timing of a batch to that of its flush
+     */
+    void add(SimpleDBWriteTiming batch) {
+        batches += batch.batches;
+        items += batch.items;
+        buildNanos += batch.buildNanos;
+        truncateNanos += batch.truncateNanos;
+        formatNanos += batch.formatNanos;
+        uuidNanos += batch.uuidNanos;
+        requestNanos += batch.requestNanos;
+        boxUsage += batch.boxUsage;
+    }
+
+    /**
+     * @return the domain written to
+     */
+    public String getDomain() {
+        return domain;
+    }
+
+    /**
+     * @return the number of BatchPutAttributes requests made
+     */
+    public int getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return the number of items written
+     */
+    public int getItems() {
+        return items;
+    }
+
+    /**
+     * @return the time spent building the attributes of the items
+     */
+    public long getBuildNanos() {
+        return buildNanos;
+    }
+
+    /**
+     * @return the time spent truncating attribute values to fit SimpleDB
+     */
+    public long getTruncateNanos() {
+        return truncateNanos;
+    }
+
+    /**
+     * @return the time spent formatting times
+     */
+    public long getFormatNanos() {
+        return formatNanos;
+    }
+
+    /**
+     * @return the time spent generating item names
+     */
+    public long getUuidNanos() {
+        return uuidNanos;
+    }
+
+    /**
+     * @return the time spent signing and sending requests and waiting for the
+     *         responses
+     */
+    public long getRequestNanos() {
+        return requestNanos;
+    }
+
+    /**
+     * @return the machine time SimpleDB charged for the requests, in hours, or
+     *         0 if it was not reported
+     */
+    public double getBoxUsage() {
+        return boxUsage;
+    }
+
+    @Override
+    public String toString() {
+        return "SimpleDBWriteTiming[domain=" + domain + ", batches=" + batches + ", items=" + items + ", build="
+                + buildNanos + "ns, truncate=" + truncateNanos + "ns, format=" + formatNanos + "ns, uuid="
+                + uuidNanos + "ns, request=" + requestNanos + "ns, boxUsage=" + boxUsage + "]";
+    }
+}
@@ -20,55 +20,96 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 
+import ch.qos.logback.core.spi.ContextAware;
+
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.amazonaws.services.simpledb.SimpleDBResponseMetadata;
 import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
 import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
 import com.amazonaws.services.simpledb.model.ReplaceableItem;
+import com.amazonaws.services.simpledb.util.SimpleDBUtils;
 
 /**
  * Class to write the data represented in {@link SimpleDBRow} into SimpleDB.
  * <p>
  * This class will generate a random UUID for the "name" (item ID) of the row.
  * This is necessary since SimpleDB doesn't have the notion of an
- * auto-incrementing key.
+ * auto-incrementing key. Rows which must be written idempotently, such as
+ * those of an import, may carry their own name instead.
  * <p>
  * The time column is written in ISO 8601 format, as recommended by Amazon,
- * which allows comparison and sorting.
+ * which allows comparison and sorting. The timeMillis column holds the same
+ * time as zero-padded milliseconds since the epoch, which compare and sort
+ * correctly whatever time zone the writers and readers use.
+ * <p>
+ * Rows which represent several identical events have a count column, and a
+ * lastTime column holding the time of the last occurrence. The time column
+ * then holds the time of the first occurrence.
+ * <p>
+ * The BoxUsage SimpleDB reports for each request is recorded in the
+ * {@link SimpleDBMetrics}, by the average number of attributes per item.
+ * <p>
+ * If a {@link SimpleDBSearchIndex} is set, the messages of each batch are
+ * indexed once the batch is written. Rows whose postings fail to be written
+ * are counted as errors but not written again, and cannot be found by search.
+ * <p>
+ * Each stage of a write may be timed for {@link SimpleDBWriteListener}s. Timing
+ * costs nothing when no listener is registered.
  * 
  * @author Gabe Nell
  */
 class SimpleDBWriter {
 
     private static final int MAX_ATTR_SIZE_BYTES = 1024;
-    private static final int MAX_BATCH_PUT = 25;
+    /** Most items SimpleDB accepts in one BatchPutAttributes request */
+    static final int MAX_BATCH_PUT = 25;
 
-    private static final String HOST_COLUMN = "host";
-    private static final String CONTEXT_COLUMN = "context";
-    private static final String TIME_COLUMN = "time";
-    private static final String MESSAGE_COLUMN = "msg";
-    private static final String LEVEL_COLUMN = "level";
-    private static final String LOGGER_COLUMN = "logger";
-    private static final String MDC_COLUMN_PREFIX = "mdc.";
+    static final String HOST_COLUMN = "host";
+    static final String CONTEXT_COLUMN = "context";
+    static final String TIME_COLUMN = "time";
+    static final String TIME_MILLIS_COLUMN = "timeMillis";
+    /** Digits of the timeMillis column, enough for any time to come */
+    static final int TIME_MILLIS_DIGITS = 15;
+    static final String MESSAGE_COLUMN = "msg";
+    static final String LEVEL_COLUMN = "level";
+    static final String LOGGER_COLUMN = "logger";
+    static final String COUNT_COLUMN = "count";
+    static final String LAST_TIME_COLUMN = "lastTime";
+    static final String MDC_COLUMN_PREFIX = "mdc.";
 
     private DateTimeFormatter timeFormatter = ISODateTimeFormat.dateTime();
     private final AmazonSimpleDB sdb;
     private final String dom;
+    private SimpleDBMetrics metrics = new SimpleDBMetrics();
+    private SimpleDBSearchIndex searchIndex = null;
+    private ContextAware status = null;
+    private final CopyOnWriteArrayList<SimpleDBWriteListener> listeners = new CopyOnWriteArrayList<SimpleDBWriteListener>();
 
     SimpleDBWriter(AmazonSimpleDB sdb, String dom) {
         this.sdb = sdb;
         this.dom = dom;
     }
 
-    private String formatTime(long time) {
+    String formatTime(long time) {
         return timeFormatter.print(new DateTime(time));
     }
 
+    /**
+     * @return the given time as written in the timeMillis column
+     */
+    static String encodeTimeMillis(long time) {
+        return SimpleDBUtils.encodeZeroPadding(time, TIME_MILLIS_DIGITS);
+    }
+
     /**
      * Set the time zone to use when writing the time column. The default is the
      * system time zone.
@@ -79,6 +120,40 @@ class SimpleDBWriter {
         timeFormatter = ISODateTimeFormat.dateTime().withZone(timeZone);
     }
 
+    /**
+     * @param metrics
+     *        where to count the batches and items written
+     */
+    void setMetrics(SimpleDBMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param searchIndex
+     *        where to index the messages of each batch once written, or null
+     *        not to index them
+     */
+    void setSearchIndex(SimpleDBSearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    /**
+     * @param status
+     *        where to report failures to index the rows written, or null
+     */
+    void setStatus(ContextAware status) {
+        this.status = status;
+    }
+
+    /**
+     * @param listener
+     *        to be told the timing of each batch and flush written. Adding a
+     *        listener again has no effect.
+     */
+    void addListener(SimpleDBWriteListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
     /**
      * We cannot easily and efficiently truncate to exactly 1024 bytes because
      * of the variable-length nature of UTF8. Instead, we'll start at 1024
@@ -87,7 +162,7 @@ class SimpleDBWriter {
      * @param string
      * @return the truncated string
      */
-    private String truncateToSize(String string) {
+    static String truncateToSize(String string) {
         // try to return as quickly as possible for the common case of the
         // string fitting
         Charset utf8 = Charset.forName("UTF-8");
@@ -107,46 +182,154 @@ class SimpleDBWriter {
         return string;
     }
 
-    private void addIfNotNull(List<ReplaceableAttribute> atts, String key, String val) {
+    /**
+     * @return the current time, or 0 if nothing is being timed
+     */
+    private static long ticks(SimpleDBWriteTiming timing) {
+        return timing == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Add an attribute, truncated to fit, unless its value is null
+     */
+    static void addIfNotNull(List<ReplaceableAttribute> atts, String key, String val) {
+        addIfNotNull(atts, key, val, null);
+    }
+
+    private static void addIfNotNull(List<ReplaceableAttribute> atts, String key, String val,
+            SimpleDBWriteTiming timing) {
         if (val != null) {
-            atts.add(new ReplaceableAttribute(key, truncateToSize(val), false));
+            long start = ticks(timing);
+            String truncated = truncateToSize(val);
+            if (timing != null) timing.addTruncate(System.nanoTime() - start);
+            atts.add(new ReplaceableAttribute(key, truncated, false));
         }
     }
 
+    private String formatTime(long time, SimpleDBWriteTiming timing) {
+        long start = ticks(timing);
+        String formatted = formatTime(time);
+        if (timing != null) timing.addFormat(System.nanoTime() - start);
+        return formatted;
+    }
+
     /**
-     * Bulk-write the given rows to SimpleDB
+     * Find the machine time SimpleDB charged for a request, which the SDK
+     * keeps in the response metadata of its most recent requests
+     * 
+     * @return the BoxUsage in machine hours, or 0 if unknown
+     */
+    private float getBoxUsage(BatchPutAttributesRequest request) {
+        if (!(sdb instanceof AmazonSimpleDBClient)) return 0;
+        try {
+            SimpleDBResponseMetadata metadata = ((AmazonSimpleDBClient)sdb).getCachedResponseMetadata(request);
+            return metadata == null ? 0 : metadata.getBoxUsage();
+        } catch (RuntimeException e) {
+            // missing or malformed metadata costs us the statistic, nothing more
+            return 0;
+        }
+    }
+
+    private void notifyListeners(SimpleDBWriteTiming timing, boolean flush) {
+        for (SimpleDBWriteListener listener : listeners) {
+            try {
+                if (flush) {
+                    listener.flushWritten(timing);
+                } else {
+                    listener.batchWritten(timing);
+                }
+            } catch (RuntimeException e) {
+                // a broken listener must not stop the writes
+            }
+        }
+    }
+
+    /**
+     * Bulk-write the given rows to SimpleDB. If any listeners are registered,
+     * each stage of the write is timed and reported to them.
      * 
      * @param rows
      */
     void writeRows(List<SimpleDBRow> rows) {
         if (rows.isEmpty()) return;
 
+        boolean timed = !listeners.isEmpty();
+        SimpleDBWriteTiming flushTiming = timed ? new SimpleDBWriteTiming(dom) : null;
         List<SimpleDBRow> nextBatch;
         ListBatcher<SimpleDBRow> batchedList = new ListBatcher<SimpleDBRow>(rows, MAX_BATCH_PUT);
+        List<String> written = new ArrayList<String>(rows.size());
 
         while ((nextBatch = batchedList.nextBatch()) != null) {
+            metrics.recordDispatchLatency(nextBatch, metrics.currentTimeMillis());
+            SimpleDBWriteTiming timing = timed ? new SimpleDBWriteTiming(dom) : null;
+            long buildStart = ticks(timing);
             List<ReplaceableItem> items = new ArrayList<ReplaceableItem>();
+            List<String> itemNames = new ArrayList<String>();
+            int attributes = 0;
 
             for (SimpleDBRow row : nextBatch) {
                 List<ReplaceableAttribute> atts = new ArrayList<ReplaceableAttribute>();
-                addIfNotNull(atts, HOST_COLUMN, row.getHost());
-                addIfNotNull(atts, MESSAGE_COLUMN, row.getMsg());
-                addIfNotNull(atts, LEVEL_COLUMN, row.getLevel());
-                addIfNotNull(atts, LOGGER_COLUMN, row.getLogger());
-                addIfNotNull(atts, CONTEXT_COLUMN, row.getContext());
-                addIfNotNull(atts, TIME_COLUMN, formatTime(row.getTime()));
+                addIfNotNull(atts, HOST_COLUMN, row.getHost(), timing);
+                addIfNotNull(atts, MESSAGE_COLUMN, row.getMsg(), timing);
+                addIfNotNull(atts, LEVEL_COLUMN, row.getLevel(), timing);
+                addIfNotNull(atts, LOGGER_COLUMN, row.getLogger(), timing);
+                addIfNotNull(atts, CONTEXT_COLUMN, row.getContext(), timing);
+                addIfNotNull(atts, TIME_COLUMN, formatTime(row.getTime(), timing), timing);
+                addIfNotNull(atts, TIME_MILLIS_COLUMN, encodeTimeMillis(row.getTime()), timing);
+                if (row.getCount() > 1) {
+                    addIfNotNull(atts, COUNT_COLUMN, Integer.toString(row.getCount()), timing);
+                    addIfNotNull(atts, LAST_TIME_COLUMN, formatTime(row.getLastTime(), timing), timing);
+                }
 
                 for (Map.Entry<String, String> mdcProperty : row.getMDCPropertyMap().entrySet()) {
                     String mdcColumnName = MDC_COLUMN_PREFIX + mdcProperty.getKey();
-                    addIfNotNull(atts, mdcColumnName, mdcProperty.getValue());
+                    addIfNotNull(atts, mdcColumnName, mdcProperty.getValue(), timing);
                 }
 
                 // SimpleDB will not generate a key for you, so we use a random
-                // UUID as the key for this entry
-                items.add(new ReplaceableItem(UUID.randomUUID().toString(), atts));
+                // UUID as the key for this entry, unless the row has its own
+                String itemName = row.getItemName();
+                if (itemName == null) {
+                    long uuidStart = ticks(timing);
+                    itemName = UUID.randomUUID().toString();
+                    if (timing != null) timing.addUuid(System.nanoTime() - uuidStart);
+                }
+                items.add(new ReplaceableItem(itemName, atts));
+                itemNames.add(itemName);
+                attributes += atts.size();
             }
 
-            sdb.batchPutAttributes(new BatchPutAttributesRequest(dom, items));
+            long requestStart = ticks(timing);
+            if (timing != null) timing.addBuild(requestStart - buildStart);
+            BatchPutAttributesRequest request = new BatchPutAttributesRequest(dom, items);
+            sdb.batchPutAttributes(request);
+            metrics.recordBatch(items.size());
+            metrics.recordAckLatency(nextBatch, metrics.currentTimeMillis());
+            float boxUsage = getBoxUsage(request);
+            metrics.recordBoxUsage(items.size(), attributes, boxUsage);
+            if (timing != null) {
+                timing.addRequest(items.size(), System.nanoTime() - requestStart);
+                timing.addBoxUsage(boxUsage);
+                notifyListeners(timing, false);
+                flushTiming.add(timing);
+            }
+            written.addAll(itemNames);
+        }
+        if (timed) notifyListeners(flushTiming, true);
+        if (searchIndex != null) index(rows, written);
+    }
+
+    /**
+     * Index the messages of the rows written, all at once so that the rows of
+     * a word and time bucket share a posting
+     */
+    private void index(List<SimpleDBRow> rows, List<String> itemNames) {
+        try {
+            searchIndex.index(rows, itemNames);
+        } catch (AmazonClientException e) {
+            // the rows are written; failing now would write them again
+            metrics.recordError();
+            if (status != null) status.addWarn("Could not index " + rows.size() + " rows written to " + dom, e);
         }
     }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter which many threads may update without contending on a single memory
+ * location. Each thread adds to one of several cells, chosen by hashing its
+ * id, and the cells are summed when the counter is read. The cells are spaced
+ * a cache line apart so that threads updating neighbouring cells do not
+ * invalidate each other's caches.
+ * <p>
+ * Reads are not atomic with respect to concurrent updates, which is fine for
+ * statistics.
+ */
+class StripedCounter {
+
+    /** Longs per 64 byte cache line */
+    private static final int PAD = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Package-private constructor for test */
+    StripedCounter(int minStripes) {
+        int stripes = 1;
+        while (stripes < minStripes) {
+            stripes <<= 1;
+        }
+        this.mask = stripes - 1;
+        this.cells = new AtomicLongArray(stripes * PAD);
+    }
+
+    private int cell() {
+        long id = Thread.currentThread().getId();
+        int hash = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash >>> 16) & mask) * PAD;
+    }
+
+    void add(long delta) {
+        cells.getAndAdd(cell(), delta);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    /**
+     * @return the sum of all updates so far
+     */
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PAD) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+}
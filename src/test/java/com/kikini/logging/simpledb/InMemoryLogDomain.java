@@ -0,0 +1,66 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.Collections;
+
+import org.joda.time.DateTimeZone;
+
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+
+/**
+ * A log domain in an {@link InMemorySimpleDB}, with a writer and a reader of
+ * it in UTC, for the tests of the classes which read the log back
+ */
+class InMemoryLogDomain {
+
+    final InMemorySimpleDB sdb;
+    final String dom;
+    final SimpleDBWriter writer;
+    final SimpleDBReader reader;
+
+    InMemoryLogDomain() {
+        this(new InMemorySimpleDB(), "log");
+    }
+
+    /**
+     * Create the domain in the given SimpleDB
+     */
+    InMemoryLogDomain(InMemorySimpleDB sdb, String dom) {
+        this.sdb = sdb;
+        this.dom = dom;
+        sdb.createDomain(new CreateDomainRequest(dom));
+        writer = new SimpleDBWriter(sdb, dom);
+        writer.setTimeZone(DateTimeZone.UTC);
+        reader = new SimpleDBReader(sdb, dom);
+        reader.setTimeZone("UTC");
+    }
+
+    /**
+     * Write one INFO row with the given message and time
+     */
+    void write(String msg, long time) {
+        writer.writeRows(Collections.singletonList(new SimpleDBRow(msg, "i-001", "ctx", "logger", "INFO", time, 1,
+                Collections.<String, String> emptyMap())));
+    }
+
+    /**
+     * Stop the threads of the reader
+     */
+    void shutdown() {
+        reader.shutdown();
+    }
+}
@@ -0,0 +1,1016 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.BatchDeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.DeletableItem;
+import com.amazonaws.services.simpledb.model.DeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.DeleteDomainRequest;
+import com.amazonaws.services.simpledb.model.DomainMetadataRequest;
+import com.amazonaws.services.simpledb.model.DomainMetadataResult;
+import com.amazonaws.services.simpledb.model.GetAttributesRequest;
+import com.amazonaws.services.simpledb.model.GetAttributesResult;
+import com.amazonaws.services.simpledb.model.InvalidNextTokenException;
+import com.amazonaws.services.simpledb.model.InvalidParameterValueException;
+import com.amazonaws.services.simpledb.model.InvalidQueryExpressionException;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.ListDomainsRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsResult;
+import com.amazonaws.services.simpledb.model.NoSuchDomainException;
+import com.amazonaws.services.simpledb.model.NumberSubmittedItemsExceededException;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import com.amazonaws.services.simpledb.model.UpdateCondition;
+
+/**
+ * In-process stand-in for SimpleDB, for load tests, soak runs and benchmarks
+ * on machines with no network access. Items are kept in memory, and the
+ * common subset of the select language is understood: output lists,
+ * {@code itemName()} and {@code count(*)}, comparisons, {@code like},
+ * {@code between}, {@code in}, {@code is [not] null} and {@code every()}
+ * combined with {@code and}, {@code or} and {@code not}, a single
+ * {@code order by} and {@code limit}, with {@code NextToken} paging. Values
+ * are compared as strings, as SimpleDB does.
+ * <p>
+ * To make it behave like a remote service, each request may be delayed by a
+ * {@link Latency} drawn from a distribution, throttled by a per-domain
+ * ceiling on items per second, refused at random with the
+ * {@code ServiceUnavailable} error SimpleDB uses when throttling, or fail
+ * after applying only some of its items, as when a response is lost.
+ */
+class InMemorySimpleDB implements AmazonSimpleDB {
+
+    static final int MAX_BATCH_ITEMS = 25;
+    static final int MAX_VALUE_BYTES = 1024;
+    static final int DEFAULT_SELECT_LIMIT = 100;
+    static final int MAX_SELECT_LIMIT = 2500;
+    static final int DEFAULT_LIST_DOMAINS = 100;
+
+    static final String SERVICE_UNAVAILABLE = "ServiceUnavailable";
+    static final String INTERNAL_ERROR = "InternalError";
+
+    /**
+     * Distribution of the time taken by a request
+     */
+    interface Latency {
+
+        long nextMillis(Random random);
+    }
+
+    /** No delay at all */
+    static final Latency NONE = fixed(0);
+
+    /**
+     * @return a latency of exactly the given time
+     */
+    static Latency fixed(final long millis) {
+        return new Latency() {
+
+            @Override
+            public long nextMillis(Random random) {
+                return millis;
+            }
+        };
+    }
+
+    /**
+     * @return a latency evenly distributed between the given bounds
+     */
+    static Latency uniform(final long minMillis, final long maxMillis) {
+        return new Latency() {
+
+            @Override
+            public long nextMillis(Random random) {
+                return minMillis + (long)(random.nextDouble() * (maxMillis - minMillis));
+            }
+        };
+    }
+
+    /**
+     * A log-normal latency, which has the long tail of real services
+     * 
+     * @param medianMillis
+     *        the median latency
+     * @param sigma
+     *        the spread; 0.5 puts the 99th percentile at about 3 times the
+     *        median
+     */
+    static Latency logNormal(final double medianMillis, final double sigma) {
+        return new Latency() {
+
+            @Override
+            public long nextMillis(Random random) {
+                return Math.round(medianMillis * Math.exp(sigma * random.nextGaussian()));
+            }
+        };
+    }
+
+    /**
+     * Simple class to abstract getting the current time and sleeping. Purpose
+     * is to make testing easier.
+     */
+    static class Clock {
+
+        long nanoTime() {
+            return System.nanoTime();
+        }
+
+        void sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+    }
+
+    /**
+     * Token bucket limiting the items a domain accepts per second. It allows a
+     * burst of one second's worth.
+     */
+    private static class Ceiling {
+
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final AtomicLong emptyAt;
+
+        Ceiling(int itemsPerSecond, long now) {
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / itemsPerSecond;
+            this.toleranceNanos = TimeUnit.SECONDS.toNanos(1);
+            this.emptyAt = new AtomicLong(now);
+        }
+
+        boolean tryAcquire(int items, long now) {
+            while (true) {
+                long current = emptyAt.get();
+                long next = Math.max(current, now) + intervalNanos * items;
+                if (next - now > toleranceNanos) return false;
+                if (emptyAt.compareAndSet(current, next)) return true;
+            }
+        }
+    }
+
+    /**
+     * The items of a domain, by name, each a map of attribute names to values
+     */
+    private static class Domain {
+
+        private final TreeMap<String, Map<String, Set<String>>> items = new TreeMap<String, Map<String, Set<String>>>();
+    }
+
+    private final ConcurrentMap<String, Domain> domains = new ConcurrentHashMap<String, Domain>();
+    private final ConcurrentMap<String, Ceiling> ceilings = new ConcurrentHashMap<String, Ceiling>();
+    private final Clock clock;
+    private final Random random;
+    private volatile Latency latency = NONE;
+    private volatile double throttleRate = 0;
+    private volatile double failureRate = 0;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong itemsWritten = new AtomicLong();
+
+    InMemorySimpleDB() {
+        this(new Clock(), new Random());
+    }
+
+    /** Package-private constructor for test */
+    InMemorySimpleDB(Clock clock, Random random) {
+        this.clock = clock;
+        this.random = random;
+    }
+
+    /**
+     * Delay every request by a time drawn from the given distribution
+     */
+    void setLatency(Latency latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Refuse the given fraction of requests with {@code ServiceUnavailable}
+     */
+    void setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+    }
+
+    /**
+     * Fail the given fraction of write requests with {@code InternalError},
+     * after applying a random number of their items
+     */
+    void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Refuse requests to the given domain with {@code ServiceUnavailable} when
+     * they would take it over the given number of items written, deleted or
+     * read per second. Each request counts as at least one item.
+     */
+    void setCeiling(String domain, int itemsPerSecond) {
+        ceilings.put(domain, new Ceiling(itemsPerSecond, clock.nanoTime()));
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getThrottled() {
+        return throttled.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    long getItemsWritten() {
+        return itemsWritten.get();
+    }
+
+    /**
+     * @return the number of items in the given domain, or 0 if it does not
+     *         exist
+     */
+    int getItemCount(String domain) {
+        Domain found = domains.get(domain);
+        if (found == null) return 0;
+        synchronized (found) {
+            return found.items.size();
+        }
+    }
+
+    /**
+     * Forget every item of the given domain, so that long runs do not fill
+     * the heap. Unlike deleting the domain, writes in flight still succeed.
+     */
+    void clear(String domain) {
+        Domain found = domains.get(domain);
+        if (found == null) return;
+        synchronized (found) {
+            found.items.clear();
+        }
+    }
+
+    private static AmazonServiceException error(AmazonServiceException e, String code, int status, ErrorType type) {
+        e.setErrorCode(code);
+        e.setStatusCode(status);
+        e.setErrorType(type);
+        e.setServiceName("AmazonSimpleDB");
+        return e;
+    }
+
+    private static AmazonServiceException error(String message, String code, int status, ErrorType type) {
+        return error(new AmazonServiceException(message), code, status, type);
+    }
+
+    /**
+     * Everything a request goes through before touching any data: latency,
+     * random throttling and the ceiling of its domain
+     */
+    private void admit(String domainName, int items) {
+        requests.incrementAndGet();
+        long millis = latency.nextMillis(random);
+        if (millis > 0) {
+            try {
+                clock.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AmazonClientException("Interrupted while waiting for the response", e);
+            }
+        }
+        if (throttleRate > 0 && random.nextDouble() < throttleRate) {
+            throttled.incrementAndGet();
+            throw error("Service AmazonSimpleDB is currently unavailable. Please try again later",
+                    SERVICE_UNAVAILABLE, 503, ErrorType.Service);
+        }
+        Ceiling ceiling = domainName == null ? null : ceilings.get(domainName);
+        if (ceiling != null && !ceiling.tryAcquire(Math.max(1, items), clock.nanoTime())) {
+            throttled.incrementAndGet();
+            throw error("Service AmazonSimpleDB is currently unavailable. Please try again later",
+                    SERVICE_UNAVAILABLE, 503, ErrorType.Service);
+        }
+    }
+
+    /**
+     * @return the number of items of a write request to apply before failing,
+     *         or -1 if it should succeed
+     */
+    private int partialFailure(int items) {
+        if (failureRate <= 0 || random.nextDouble() >= failureRate) return -1;
+        return random.nextInt(items + 1);
+    }
+
+    private AmazonServiceException internalError() {
+        failed.incrementAndGet();
+        return error("We encountered an internal error. Please try again.", INTERNAL_ERROR, 500, ErrorType.Service);
+    }
+
+    private Domain domain(String name) {
+        Domain found = domains.get(name);
+        if (found == null) {
+            throw error(new NoSuchDomainException("The specified domain does not exist."), "NoSuchDomain", 400,
+                    ErrorType.Client);
+        }
+        return found;
+    }
+
+    private static AmazonServiceException invalidParameter(String message) {
+        return error(new InvalidParameterValueException(message), "InvalidParameterValue", 400, ErrorType.Client);
+    }
+
+    private static void checkValue(String name, String value) {
+        if (name == null || name.length() == 0) throw invalidParameter("Attribute name is required");
+        if (value == null) throw invalidParameter("Value for attribute " + name + " is required");
+        if (name.length() > MAX_VALUE_BYTES || value.length() > MAX_VALUE_BYTES) {
+            throw invalidParameter("Value for attribute " + name + " is longer than " + MAX_VALUE_BYTES);
+        }
+    }
+
+    @Override
+    public void setEndpoint(String endpoint) {
+        // there is nowhere to connect to
+    }
+
+    @Override
+    public void createDomain(CreateDomainRequest request) {
+        admit(null, 0);
+        domains.putIfAbsent(request.getDomainName(), new Domain());
+    }
+
+    @Override
+    public void deleteDomain(DeleteDomainRequest request) {
+        admit(null, 0);
+        domains.remove(request.getDomainName());
+    }
+
+    @Override
+    public ListDomainsResult listDomains() {
+        return listDomains(new ListDomainsRequest());
+    }
+
+    @Override
+    public ListDomainsResult listDomains(ListDomainsRequest request) {
+        admit(null, 0);
+        List<String> names = new ArrayList<String>(domains.keySet());
+        Collections.sort(names);
+        int max = request.getMaxNumberOfDomains() == null ? DEFAULT_LIST_DOMAINS : request.getMaxNumberOfDomains();
+        int from = parseToken(request.getNextToken());
+        int to = Math.min(names.size(), from + max);
+        ListDomainsResult result = new ListDomainsResult().withDomainNames(names.subList(Math.min(from, to), to));
+        if (to < names.size()) result.setNextToken(Integer.toString(to));
+        return result;
+    }
+
+    @Override
+    public DomainMetadataResult domainMetadata(DomainMetadataRequest request) {
+        admit(request.getDomainName(), 0);
+        Domain found = domain(request.getDomainName());
+        Set<String> names = new HashSet<String>();
+        int values = 0;
+        long itemBytes = 0;
+        long valueBytes = 0;
+        synchronized (found) {
+            for (Map.Entry<String, Map<String, Set<String>>> item : found.items.entrySet()) {
+                itemBytes += item.getKey().length();
+                for (Map.Entry<String, Set<String>> attribute : item.getValue().entrySet()) {
+                    names.add(attribute.getKey());
+                    for (String value : attribute.getValue()) {
+                        values++;
+                        valueBytes += value.length();
+                    }
+                }
+            }
+            long nameBytes = 0;
+            for (String name : names) {
+                nameBytes += name.length();
+            }
+            return new DomainMetadataResult().withItemCount(found.items.size()).withItemNamesSizeBytes(itemBytes)
+                    .withAttributeNameCount(names.size()).withAttributeNamesSizeBytes(nameBytes)
+                    .withAttributeValueCount(values).withAttributeValuesSizeBytes(valueBytes)
+                    .withTimestamp((int)(System.currentTimeMillis() / 1000));
+        }
+    }
+
+    @Override
+    public void putAttributes(PutAttributesRequest request) {
+        admit(request.getDomainName(), 1);
+        Domain found = domain(request.getDomainName());
+        int apply = partialFailure(1);
+        if (apply == 0) throw internalError();
+        synchronized (found) {
+            checkExpected(found, request.getItemName(), request.getExpected());
+            put(found, request.getItemName(), request.getAttributes());
+        }
+        itemsWritten.incrementAndGet();
+        if (apply > 0) throw internalError();
+    }
+
+    @Override
+    public void batchPutAttributes(BatchPutAttributesRequest request) {
+        List<ReplaceableItem> items = request.getItems();
+        admit(request.getDomainName(), items.size());
+        Domain found = domain(request.getDomainName());
+        if (items.size() > MAX_BATCH_ITEMS) {
+            throw error(new NumberSubmittedItemsExceededException("Too many items in a single call. Up to "
+                    + MAX_BATCH_ITEMS + " items per call allowed."), "NumberSubmittedItemsExceeded", 409,
+                    ErrorType.Client);
+        }
+        Set<String> names = new HashSet<String>();
+        for (ReplaceableItem item : items) {
+            if (!names.add(item.getName())) throw invalidParameter("Item name " + item.getName() + " is duplicated");
+            for (ReplaceableAttribute attribute : item.getAttributes()) {
+                checkValue(attribute.getName(), attribute.getValue());
+            }
+        }
+        int apply = partialFailure(items.size());
+        int count = apply < 0 ? items.size() : apply;
+        synchronized (found) {
+            for (int i = 0; i < count; i++) {
+                put(found, items.get(i).getName(), items.get(i).getAttributes());
+            }
+        }
+        itemsWritten.addAndGet(count);
+        if (apply >= 0) throw internalError();
+    }
+
+    private static void checkExpected(Domain found, String itemName, UpdateCondition expected) {
+        if (expected == null || expected.getName() == null) return;
+        Map<String, Set<String>> item = found.items.get(itemName);
+        Set<String> values = item == null ? null : item.get(expected.getName());
+        boolean exists = values != null && !values.isEmpty();
+        boolean ok;
+        if (Boolean.FALSE.equals(expected.getExists())) {
+            ok = !exists;
+        } else {
+            ok = exists && (expected.getValue() == null || values.size() == 1 && values.contains(expected.getValue()));
+        }
+        if (!ok) {
+            throw error("Conditional check failed. Attribute (" + expected.getName() + ") value exists",
+                    "ConditionalCheckFailed", 409, ErrorType.Client);
+        }
+    }
+
+    private static void put(Domain found, String itemName, List<ReplaceableAttribute> attributes) {
+        Map<String, Set<String>> item = found.items.get(itemName);
+        if (item == null) {
+            item = new LinkedHashMap<String, Set<String>>();
+            found.items.put(itemName, item);
+        }
+        for (ReplaceableAttribute attribute : attributes) {
+            if (Boolean.TRUE.equals(attribute.getReplace())) item.remove(attribute.getName());
+        }
+        for (ReplaceableAttribute attribute : attributes) {
+            Set<String> values = item.get(attribute.getName());
+            if (values == null) {
+                values = new LinkedHashSet<String>();
+                item.put(attribute.getName(), values);
+            }
+            values.add(attribute.getValue());
+        }
+    }
+
+    @Override
+    public void deleteAttributes(DeleteAttributesRequest request) {
+        admit(request.getDomainName(), 1);
+        Domain found = domain(request.getDomainName());
+        int apply = partialFailure(1);
+        if (apply == 0) throw internalError();
+        synchronized (found) {
+            checkExpected(found, request.getItemName(), request.getExpected());
+            delete(found, request.getItemName(), request.getAttributes());
+        }
+        if (apply > 0) throw internalError();
+    }
+
+    @Override
+    public void batchDeleteAttributes(BatchDeleteAttributesRequest request) {
+        List<DeletableItem> items = request.getItems();
+        admit(request.getDomainName(), items.size());
+        Domain found = domain(request.getDomainName());
+        if (items.size() > MAX_BATCH_ITEMS) {
+            throw error(new NumberSubmittedItemsExceededException("Too many items in a single call. Up to "
+                    + MAX_BATCH_ITEMS + " items per call allowed."), "NumberSubmittedItemsExceeded", 409,
+                    ErrorType.Client);
+        }
+        int apply = partialFailure(items.size());
+        int count = apply < 0 ? items.size() : apply;
+        synchronized (found) {
+            for (int i = 0; i < count; i++) {
+                delete(found, items.get(i).getName(), items.get(i).getAttributes());
+            }
+        }
+        if (apply >= 0) throw internalError();
+    }
+
+    private static void delete(Domain found, String itemName, List<Attribute> attributes) {
+        Map<String, Set<String>> item = found.items.get(itemName);
+        if (item == null) return;
+        if (attributes == null || attributes.isEmpty()) {
+            found.items.remove(itemName);
+            return;
+        }
+        for (Attribute attribute : attributes) {
+            if (attribute.getValue() == null) {
+                item.remove(attribute.getName());
+            } else {
+                Set<String> values = item.get(attribute.getName());
+                if (values == null) continue;
+                values.remove(attribute.getValue());
+                if (values.isEmpty()) item.remove(attribute.getName());
+            }
+        }
+        if (item.isEmpty()) found.items.remove(itemName);
+    }
+
+    @Override
+    public GetAttributesResult getAttributes(GetAttributesRequest request) {
+        admit(request.getDomainName(), 1);
+        Domain found = domain(request.getDomainName());
+        List<String> wanted = request.getAttributeNames();
+        synchronized (found) {
+            Map<String, Set<String>> item = found.items.get(request.getItemName());
+            List<Attribute> attributes = new ArrayList<Attribute>();
+            if (item != null) {
+                attributes = toAttributes(item, wanted == null || wanted.isEmpty() ? null : wanted);
+            }
+            return new GetAttributesResult().withAttributes(attributes);
+        }
+    }
+
+    private static List<Attribute> toAttributes(Map<String, Set<String>> item, List<String> wanted) {
+        List<Attribute> attributes = new ArrayList<Attribute>();
+        for (Map.Entry<String, Set<String>> attribute : item.entrySet()) {
+            if (wanted != null && !wanted.contains(attribute.getKey())) continue;
+            for (String value : attribute.getValue()) {
+                attributes.add(new Attribute(attribute.getKey(), value));
+            }
+        }
+        return attributes;
+    }
+
+    private static int parseToken(String nextToken) {
+        if (nextToken == null) return 0;
+        try {
+            int offset = Integer.parseInt(nextToken);
+            if (offset >= 0) return offset;
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw error(new InvalidNextTokenException("The specified next token is not valid."), "InvalidNextToken", 400,
+                ErrorType.Client);
+    }
+
+    @Override
+    public SelectResult select(SelectRequest request) {
+        Query query = new Parser(request.getSelectExpression()).parse();
+        admit(query.domain, 0);
+        Domain found = domain(query.domain);
+        int from = parseToken(request.getNextToken());
+        List<Map.Entry<String, Map<String, Set<String>>>> matches = new ArrayList<Map.Entry<String, Map<String, Set<String>>>>();
+        SelectResult result = new SelectResult();
+        synchronized (found) {
+            for (Map.Entry<String, Map<String, Set<String>>> item : found.items.entrySet()) {
+                if (query.where == null || query.where.matches(item.getKey(), item.getValue())) {
+                    if (query.orderBy != null && first(item.getValue(), query.orderBy) == null) continue;
+                    matches.add(item);
+                }
+            }
+            if (query.count) {
+                int count = Math.max(0, Math.min(matches.size() - from, query.limit));
+                List<Attribute> attributes = Collections.singletonList(new Attribute("Count", Integer.toString(count)));
+                return result.withItems(new Item("Domain", attributes));
+            }
+            if (query.orderBy != null) {
+                final String orderBy = query.orderBy;
+                final boolean descending = query.descending;
+                Collections.sort(matches, new Comparator<Map.Entry<String, Map<String, Set<String>>>>() {
+
+                    @Override
+                    public int compare(Map.Entry<String, Map<String, Set<String>>> a,
+                            Map.Entry<String, Map<String, Set<String>>> b) {
+                        int order = compareKey(a, orderBy).compareTo(compareKey(b, orderBy));
+                        return descending ? -order : order;
+                    }
+                });
+            }
+            int to = Math.min(matches.size(), from + query.limit);
+            List<Item> items = new ArrayList<Item>();
+            for (int i = from; i < to; i++) {
+                Map.Entry<String, Map<String, Set<String>>> item = matches.get(i);
+                List<Attribute> attributes = query.itemNameOnly ? new ArrayList<Attribute>() : toAttributes(
+                        item.getValue(), query.output);
+                items.add(new Item(item.getKey(), attributes));
+            }
+            result.setItems(items);
+            if (to < matches.size()) result.setNextToken(Integer.toString(to));
+        }
+        return result;
+    }
+
+    private static String compareKey(Map.Entry<String, Map<String, Set<String>>> item, String name) {
+        return "itemName()".equals(name) ? item.getKey() : first(item.getValue(), name);
+    }
+
+    private static String first(Map<String, Set<String>> item, String name) {
+        if ("itemName()".equals(name)) return "";
+        Set<String> values = item.get(name);
+        if (values == null || values.isEmpty()) return null;
+        return Collections.min(values);
+    }
+
+    /**
+     * A parsed select expression
+     */
+    private static class Query {
+
+        private String domain;
+        private List<String> output = null;
+        private boolean itemNameOnly = false;
+        private boolean count = false;
+        private Condition where = null;
+        private String orderBy = null;
+        private boolean descending = false;
+        private int limit = DEFAULT_SELECT_LIMIT;
+    }
+
+    /**
+     * A where clause, or part of one
+     */
+    private interface Condition {
+
+        boolean matches(String itemName, Map<String, Set<String>> item);
+    }
+
+    /**
+     * Test of a single value
+     */
+    private interface ValueTest {
+
+        boolean test(String value);
+    }
+
+    /**
+     * Recursive descent parser for select expressions
+     */
+    private static class Parser {
+
+        private static final Pattern TOKEN = Pattern
+                .compile("\\s*(`(?:[^`]|``)*`|'(?:[^']|'')*'|\"(?:[^\"]|\"\")*\"|!=|<=|>=|[=<>(),*]|[\\w.\\-]+)");
+
+        private final String expression;
+        private final List<String> tokens = new ArrayList<String>();
+        private int position = 0;
+
+        Parser(String expression) {
+            this.expression = expression;
+            Matcher matcher = TOKEN.matcher(expression);
+            int end = 0;
+            while (matcher.find() && matcher.start() == end) {
+                tokens.add(matcher.group(1));
+                end = matcher.end();
+            }
+            if (expression.substring(end).trim().length() > 0) throw invalid();
+        }
+
+        private AmazonServiceException invalid() {
+            return error(new InvalidQueryExpressionException("The specified query expression syntax is not valid: "
+                    + expression), "InvalidQueryExpression", 400, ErrorType.Client);
+        }
+
+        private String peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        private boolean peekKeyword(String keyword) {
+            return keyword.equalsIgnoreCase(peek());
+        }
+
+        private boolean acceptKeyword(String keyword) {
+            if (!peekKeyword(keyword)) return false;
+            position++;
+            return true;
+        }
+
+        private void expect(String keyword) {
+            if (!acceptKeyword(keyword)) throw invalid();
+        }
+
+        private String next() {
+            String token = peek();
+            if (token == null) throw invalid();
+            position++;
+            return token;
+        }
+
+        private static String unquote(String token, char quote) {
+            String doubled = new String(new char[] { quote, quote });
+            return token.substring(1, token.length() - 1).replace(doubled, String.valueOf(quote));
+        }
+
+        /**
+         * An attribute name, possibly quoted with backticks, or
+         * {@code itemName()}
+         */
+        private String name() {
+            String token = next();
+            if (token.charAt(0) == '`') return unquote(token, '`');
+            if (!Character.isLetter(token.charAt(0)) && token.charAt(0) != '_') throw invalid();
+            if (token.equalsIgnoreCase("itemName") && acceptKeyword("(")) {
+                expect(")");
+                return "itemName()";
+            }
+            return token;
+        }
+
+        private String string() {
+            String token = next();
+            char quote = token.charAt(0);
+            if (quote != '\'' && quote != '"') throw invalid();
+            return unquote(token, quote);
+        }
+
+        Query parse() {
+            Query query = new Query();
+            expect("select");
+            if (acceptKeyword("*")) {
+                // every attribute
+            } else if (peekKeyword("count")) {
+                next();
+                expect("(");
+                expect("*");
+                expect(")");
+                query.count = true;
+            } else {
+                List<String> output = new ArrayList<String>();
+                do {
+                    output.add(name());
+                } while (acceptKeyword(","));
+                if (output.size() == 1 && "itemName()".equals(output.get(0))) {
+                    query.itemNameOnly = true;
+                } else {
+                    query.output = output;
+                }
+            }
+            expect("from");
+            query.domain = name();
+            if (acceptKeyword("where")) query.where = or();
+            if (acceptKeyword("order")) {
+                expect("by");
+                query.orderBy = name();
+                if (acceptKeyword("desc")) {
+                    query.descending = true;
+                } else {
+                    acceptKeyword("asc");
+                }
+            }
+            if (acceptKeyword("limit")) {
+                try {
+                    query.limit = Integer.parseInt(next());
+                } catch (NumberFormatException e) {
+                    throw invalid();
+                }
+                if (query.limit < 1 || query.limit > MAX_SELECT_LIMIT) throw invalid();
+            }
+            if (peek() != null) throw invalid();
+            return query;
+        }
+
+        private Condition or() {
+            final Condition left = and();
+            if (!acceptKeyword("or")) return left;
+            final Condition right = or();
+            return new Condition() {
+
+                @Override
+                public boolean matches(String itemName, Map<String, Set<String>> item) {
+                    return left.matches(itemName, item) || right.matches(itemName, item);
+                }
+            };
+        }
+
+        private Condition and() {
+            final Condition left = not();
+            if (!acceptKeyword("and") && !acceptKeyword("intersection")) return left;
+            final Condition right = and();
+            return new Condition() {
+
+                @Override
+                public boolean matches(String itemName, Map<String, Set<String>> item) {
+                    return left.matches(itemName, item) && right.matches(itemName, item);
+                }
+            };
+        }
+
+        private Condition not() {
+            if (acceptKeyword("not")) {
+                final Condition negated = not();
+                return new Condition() {
+
+                    @Override
+                    public boolean matches(String itemName, Map<String, Set<String>> item) {
+                        return !negated.matches(itemName, item);
+                    }
+                };
+            }
+            if (acceptKeyword("(")) {
+                Condition nested = or();
+                expect(")");
+                return nested;
+            }
+            return predicate();
+        }
+
+        private Condition predicate() {
+            boolean every = false;
+            String name;
+            if (peekKeyword("every")) {
+                next();
+                expect("(");
+                name = name();
+                expect(")");
+                every = true;
+            } else {
+                name = name();
+            }
+            if (acceptKeyword("is")) {
+                final boolean negated = acceptKeyword("not");
+                expect("null");
+                final String attribute = name;
+                return new Condition() {
+
+                    @Override
+                    public boolean matches(String itemName, Map<String, Set<String>> item) {
+                        return item.containsKey(attribute) == negated;
+                    }
+                };
+            }
+            return values(name, every, test());
+        }
+
+        private ValueTest test() {
+            String operator = next().toLowerCase(Locale.ENGLISH);
+            if (operator.equals("not")) {
+                expect("like");
+                final ValueTest like = like(string());
+                return new ValueTest() {
+
+                    @Override
+                    public boolean test(String value) {
+                        return !like.test(value);
+                    }
+                };
+            }
+            if (operator.equals("like")) return like(string());
+            if (operator.equals("between")) {
+                final String low = string();
+                expect("and");
+                final String high = string();
+                return new ValueTest() {
+
+                    @Override
+                    public boolean test(String value) {
+                        return value.compareTo(low) >= 0 && value.compareTo(high) <= 0;
+                    }
+                };
+            }
+            if (operator.equals("in")) {
+                expect("(");
+                final Set<String> set = new HashSet<String>();
+                do {
+                    set.add(string());
+                } while (acceptKeyword(","));
+                expect(")");
+                return new ValueTest() {
+
+                    @Override
+                    public boolean test(String value) {
+                        return set.contains(value);
+                    }
+                };
+            }
+            final String operand = string();
+            final int kind;
+            if (operator.equals("=")) {
+                kind = 0;
+            } else if (operator.equals("!=")) {
+                kind = 1;
+            } else if (operator.equals("<")) {
+                kind = 2;
+            } else if (operator.equals("<=")) {
+                kind = 3;
+            } else if (operator.equals(">")) {
+                kind = 4;
+            } else if (operator.equals(">=")) {
+                kind = 5;
+            } else {
+                throw invalid();
+            }
+            return new ValueTest() {
+
+                @Override
+                public boolean test(String value) {
+                    int order = value.compareTo(operand);
+                    switch (kind) {
+                    case 0:
+                        return order == 0;
+                    case 1:
+                        return order != 0;
+                    case 2:
+                        return order < 0;
+                    case 3:
+                        return order <= 0;
+                    case 4:
+                        return order > 0;
+                    default:
+                        return order >= 0;
+                    }
+                }
+            };
+        }
+
+        private static ValueTest like(String pattern) {
+            // % is a wildcard, and \ makes the next character literal
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '\\' && i + 1 < pattern.length()) {
+                    literal.append(pattern.charAt(++i));
+                } else if (c == '%') {
+                    regex.append(Pattern.quote(literal.toString())).append(".*");
+                    literal.setLength(0);
+                } else {
+                    literal.append(c);
+                }
+            }
+            regex.append(Pattern.quote(literal.toString()));
+            final Pattern compiled = Pattern.compile(regex.toString(), Pattern.DOTALL);
+            return new ValueTest() {
+
+                @Override
+                public boolean test(String value) {
+                    return compiled.matcher(value).matches();
+                }
+            };
+        }
+
+        /**
+         * Apply a test to the values of an attribute: any value must pass, or
+         * with {@code every()}, all of them
+         */
+        private static Condition values(final String name, final boolean every, final ValueTest test) {
+            return new Condition() {
+
+                @Override
+                public boolean matches(String itemName, Map<String, Set<String>> item) {
+                    if ("itemName()".equals(name)) return test.test(itemName);
+                    Set<String> values = item.get(name);
+                    if (values == null || values.isEmpty()) return false;
+                    for (String value : values) {
+                        if (test.test(value) != every) return !every;
+                    }
+                    return every;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.DeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.ListDomainsRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsResult;
+import com.amazonaws.services.simpledb.model.NoSuchDomainException;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+public class InMemorySimpleDBTest {
+
+    private static final String DOM = "log";
+
+    /**
+     * Clock which only moves when told to, and never sleeps
+     */
+    private static class FakeClock extends InMemorySimpleDB.Clock {
+
+        long nanos = 0;
+        long slept = 0;
+
+        @Override
+        long nanoTime() {
+            return nanos;
+        }
+
+        @Override
+        void sleep(long millis) {
+            slept += millis;
+        }
+    }
+
+    private FakeClock clock;
+    private InMemorySimpleDB sdb;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        sdb = new InMemorySimpleDB(clock, new Random(42));
+        sdb.createDomain(new CreateDomainRequest(DOM));
+    }
+
+    private static ReplaceableItem item(String name, String level, String time) {
+        return new ReplaceableItem(name, Arrays.asList(new ReplaceableAttribute("level", level, false),
+                new ReplaceableAttribute("time", time, false)));
+    }
+
+    private void putTen() {
+        List<ReplaceableItem> items = new ArrayList<ReplaceableItem>();
+        for (int i = 0; i < 10; i++) {
+            items.add(item("item" + i, i % 2 == 0 ? "INFO" : "ERROR", "2010-01-01T00:00:0" + i));
+        }
+        sdb.batchPutAttributes(new BatchPutAttributesRequest(DOM, items));
+    }
+
+    private static List<String> names(List<Item> items) {
+        List<String> names = new ArrayList<String>();
+        for (Item item : items) {
+            names.add(item.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Verifies that where, order by and limit are applied, and that NextToken
+     * continues where the last page ended
+     */
+    @Test
+    public void selectPages() {
+        putTen();
+        SelectResult first = sdb.select(new SelectRequest("select * from `log` where level = 'INFO' "
+                + "and time > '2010-01-01T00:00:01' order by time desc limit 2"));
+        assertEquals(Arrays.asList("item8", "item6"), names(first.getItems()));
+        assertEquals(2, first.getItems().get(0).getAttributes().size());
+        SelectResult second = sdb.select(new SelectRequest("select * from `log` where level = 'INFO' "
+                + "and time > '2010-01-01T00:00:01' order by time desc limit 2").withNextToken(first.getNextToken()));
+        assertEquals(Arrays.asList("item4", "item2"), names(second.getItems()));
+        assertNull(second.getNextToken());
+
+        SelectResult count = sdb.select(new SelectRequest("select count(*) from log where level in ('ERROR')"));
+        assertEquals(new Attribute("Count", "5"), count.getItems().get(0).getAttributes().get(0));
+        SelectResult like = sdb.select(new SelectRequest("select itemName() from log where itemName() like 'item%' "
+                + "and not (level = 'ERROR' or time between '2010-01-01T00:00:04' and '2010-01-01T00:00:09')"));
+        assertEquals(Arrays.asList("item0", "item2"), names(like.getItems()));
+        assertTrue(like.getItems().get(0).getAttributes().isEmpty());
+    }
+
+    /**
+     * Verifies that deleting the last attribute of an item deletes the item
+     */
+    @Test
+    public void deleteAttributes() {
+        putTen();
+        sdb.deleteAttributes(new DeleteAttributesRequest(DOM, "item1", Arrays.asList(new Attribute("level", null))));
+        assertEquals(10, sdb.getItemCount(DOM));
+        sdb.deleteAttributes(new DeleteAttributesRequest(DOM, "item1", Arrays.asList(new Attribute("time",
+                "2010-01-01T00:00:01"))));
+        assertEquals(9, sdb.getItemCount(DOM));
+        sdb.deleteAttributes(new DeleteAttributesRequest(DOM, "item2"));
+        assertEquals(8, sdb.getItemCount(DOM));
+    }
+
+    /**
+     * Verifies that domains are listed a page at a time, and that requests to
+     * a missing domain fail as SimpleDB's do
+     */
+    @Test
+    public void domains() {
+        sdb.createDomain(new CreateDomainRequest("other"));
+        ListDomainsResult first = sdb.listDomains(new ListDomainsRequest().withMaxNumberOfDomains(1));
+        assertEquals(Arrays.asList("log"), first.getDomainNames());
+        ListDomainsResult second = sdb.listDomains(new ListDomainsRequest().withNextToken(first.getNextToken()));
+        assertEquals(Arrays.asList("other"), second.getDomainNames());
+        assertNull(second.getNextToken());
+        try {
+            sdb.select(new SelectRequest("select * from missing"));
+            fail();
+        } catch (NoSuchDomainException e) {
+            assertEquals("NoSuchDomain", e.getErrorCode());
+        }
+    }
+
+    /**
+     * Verifies that a domain's ceiling refuses items beyond one second's
+     * worth until time passes
+     */
+    @Test
+    public void ceilingThrottles() {
+        sdb.setCeiling(DOM, 10);
+        putTen();
+        try {
+            putTen();
+            fail();
+        } catch (AmazonServiceException e) {
+            assertEquals(InMemorySimpleDB.SERVICE_UNAVAILABLE, e.getErrorCode());
+            assertEquals(503, e.getStatusCode());
+        }
+        assertEquals(1, sdb.getThrottled());
+        clock.nanos += 1000000000L;
+        putTen();
+        assertEquals(20, sdb.getItemsWritten());
+    }
+
+    /**
+     * Verifies that latency is simulated, and that partial failures write
+     * some of a batch and then fail
+     */
+    @Test
+    public void faults() {
+        sdb.setLatency(InMemorySimpleDB.fixed(7));
+        sdb.setFailureRate(1.0);
+        try {
+            putTen();
+            fail();
+        } catch (AmazonServiceException e) {
+            assertEquals(InMemorySimpleDB.INTERNAL_ERROR, e.getErrorCode());
+        }
+        assertEquals(7, clock.slept);
+        assertEquals(1, sdb.getFailed());
+        assertTrue(sdb.getItemCount(DOM) <= 10);
+        assertEquals(sdb.getItemCount(DOM), sdb.getItemsWritten());
+
+        sdb.setFailureRate(0);
+        sdb.setThrottleRate(1.0);
+        try {
+            putTen();
+            fail();
+        } catch (AmazonServiceException e) {
+            assertEquals(InMemorySimpleDB.SERVICE_UNAVAILABLE, e.getErrorCode());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    /**
+     * Verifies that small values are exact and large ones within the
+     * advertised precision
+     */
+    @Test
+    public void precision() {
+        for (long value = 0; value < 100000; value += 7) {
+            long reported = LatencyHistogram.highestValueAt(LatencyHistogram.indexOf(value));
+            assertTrue(reported >= value);
+            assertTrue(reported - value <= Math.max(0, value / 16));
+        }
+        assertEquals(31, LatencyHistogram.highestValueAt(LatencyHistogram.indexOf(31)));
+    }
+
+    /**
+     * Verifies that out of range values are clamped rather than lost
+     */
+    @Test
+    public void clamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.snapshot().getPercentile(50));
+        assertEquals(Integer.MAX_VALUE, histogram.getMax());
+    }
+
+    /**
+     * Verifies percentiles over a uniform distribution
+     */
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertTrue(Math.abs(histogram.getMedian() - 500) <= 500 / 16);
+        assertTrue(Math.abs(histogram.get99thPercentile() - 990) <= 990 / 16);
+        assertTrue(histogram.getMax() >= 1000);
+    }
+
+    /**
+     * Verifies that a snapshot difference only holds the later values
+     */
+    @Test
+    public void since() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        LatencyHistogram.Snapshot first = histogram.snapshot();
+        histogram.record(20);
+        histogram.record(20);
+        LatencyHistogram.Snapshot interval = histogram.snapshot().since(first);
+        assertEquals(2, interval.getCount());
+        assertEquals(20, interval.getPercentile(1));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class RowAggregatorTest {
+
+    private SimpleDBRow row(String msg, String level, long time, String mdcValue) {
+        return new SimpleDBRow(msg, "i-001", "com.kikini.test", "logger", level, time, 1, ImmutableMap.of("key", mdcValue));
+    }
+
+    /**
+     * Validates that duplicates are collapsed into the first row, with the
+     * time and MDC properties of the earliest occurrence
+     */
+    @Test
+    public void duplicatesCollapsed() {
+        SimpleDBRow first = row("msg", "INFO", 2000L, "first");
+        List<SimpleDBRow> rows = Arrays.asList(first, row("msg", "INFO", 1000L, "second"), row("msg", "INFO", 3000L, "third"));
+        List<SimpleDBRow> result = new RowAggregator().aggregate(rows);
+        assertEquals(1, result.size());
+        assertSame(first, result.get(0));
+        assertEquals(3, first.getCount());
+        assertEquals(1000L, first.getTime());
+        assertEquals(3000L, first.getLastTime());
+        assertEquals("second", first.getMDCPropertyMap().get("key"));
+    }
+
+    /**
+     * Validates that rows differing in message or level are kept apart, in order
+     */
+    @Test
+    public void distinctRowsKeptInOrder() {
+        SimpleDBRow a = row("a", "INFO", 1000L, "v");
+        SimpleDBRow b = row("b", "INFO", 1000L, "v");
+        SimpleDBRow c = row("a", "WARN", 1000L, "v");
+        List<SimpleDBRow> result = new RowAggregator().aggregate(Arrays.asList(a, b, row("a", "INFO", 1000L, "v"), c));
+        assertEquals(Arrays.asList(a, b, c), result);
+        assertEquals(2, a.getCount());
+        assertEquals(1, b.getCount());
+        assertEquals(1, c.getCount());
+    }
+}
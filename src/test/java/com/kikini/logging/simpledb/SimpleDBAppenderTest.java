@@ -15,16 +15,22 @@
  */
 package com.kikini.logging.simpledb;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import java.lang.management.ManagementFactory;
 import java.util.concurrent.BlockingQueue;
 
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -34,7 +40,10 @@ import ch.qos.logback.classic.spi.LoggingEvent;
 
 import com.google.common.collect.ImmutableMap;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.ListDomainsRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsResult;
 
 /**
  * Tests for the {@link SimpleDBAppender} class
@@ -168,4 +177,238 @@ public class SimpleDBAppenderTest {
         assertTrue(row.getMDCPropertyMap().containsKey("key"));
     }
 
+    /**
+     * Test that events at or above a lane's level go to that lane
+     */
+    @Test
+    public void errorRoutedToLane() {
+        SimpleDBLane lane = new SimpleDBLane();
+        lane.setLevel("ERROR");
+        lane.setLoggingPeriodMillis(100);
+        appender.addLane(lane);
+        when(event.getLevel()).thenReturn(Level.ERROR);
+        appender.append(event);
+        assertTrue(lane.getQueue().size() == 1);
+        verifyZeroInteractions(queue);
+    }
+
+    /**
+     * Test that events below every lane's level go to the default queue
+     */
+    @Test
+    public void infoRoutedToDefault() {
+        SimpleDBLane lane = new SimpleDBLane();
+        lane.setLevel("ERROR");
+        appender.addLane(lane);
+        appender.append(event);
+        verify(queue).add(isA(SimpleDBRow.class));
+        assertTrue(lane.getQueue().isEmpty());
+    }
+
+    /**
+     * Test that the lowest lane is shed first when the queues fill up
+     */
+    @Test
+    public void lowerLaneShedFirst() {
+        SimpleDBLane lane = new SimpleDBLane();
+        lane.setLevel("ERROR");
+        appender.addLane(lane);
+        appender.setMaxQueueSize(2);
+        // the default lane may only fill half of the queue
+        appender.append(event);
+        appender.append(event);
+        verify(queue).add(isA(SimpleDBRow.class));
+        when(event.getLevel()).thenReturn(Level.ERROR);
+        appender.append(event);
+        appender.append(event);
+        assertTrue(lane.getQueue().size() == 1);
+    }
+
+    /**
+     * Test that rate limited events are never queued
+     */
+    @Test
+    public void rateLimitedNotQueued() {
+        SimpleDBRateLimit rateLimit = new SimpleDBRateLimit();
+        rateLimit.setSampleRate(0);
+        appender.addRateLimit(rateLimit);
+        appender.append(event);
+        verifyZeroInteractions(queue);
+    }
+
+    /**
+     * Test that the summary of the events suppressed since the last one is
+     * queued when the appender stops
+     */
+    @Test
+    public void suppressedSummaryQueuedOnStop() {
+        SimpleDBLane lane = new SimpleDBLane();
+        lane.setLevel("INFO");
+        lane.setLoggingPeriodMillis(60000);
+        SimpleDBAppender limited = configure(new SimpleDBAppender(sdb, dom, null, writer, null, instanceId), lane);
+        limited.setName("summarized");
+        SimpleDBRateLimit rateLimit = new SimpleDBRateLimit();
+        rateLimit.setSampleRate(0);
+        limited.addRateLimit(rateLimit);
+        limited.setSuppressedSummaryPeriodMillis(3600000);
+        limited.start();
+        limited.append(event);
+        limited.append(event);
+        assertTrue(lane.getQueue().isEmpty());
+        limited.stop();
+        assertTrue(lane.getQueue().size() == 1);
+        SimpleDBRow summary = lane.getQueue().peek();
+        assertTrue("2".equals(summary.getMDCPropertyMap().get(SimpleDBAppender.SUPPRESSED_MDC_KEY)));
+    }
+
+    /**
+     * Test that an appender restarted with the same name takes over the rows
+     * queued by its predecessor
+     */
+    @Test
+    public void restartAdoptsQueuedRows() {
+        when(sdb.listDomains(isA(ListDomainsRequest.class))).thenReturn(new ListDomainsResult().withDomainNames(dom));
+        SimpleDBLane firstLane = new SimpleDBLane();
+        firstLane.setLevel("ERROR");
+        firstLane.setLoggingPeriodMillis(60000);
+        SimpleDBAppender first = configure(new SimpleDBAppender(sdb, dom, null, writer, null, instanceId), firstLane);
+        first.start();
+        when(event.getLevel()).thenReturn(Level.ERROR);
+        first.append(event);
+        first.stop();
+
+        SimpleDBLane secondLane = new SimpleDBLane();
+        secondLane.setLevel("ERROR");
+        SimpleDBAppender second = configure(new SimpleDBAppender(sdb, dom, null, writer, null, instanceId), secondLane);
+        second.start();
+        try {
+            assertTrue(secondLane.getQueue() == firstLane.getQueue());
+            assertTrue(secondLane.getQueue().size() == 1);
+            assertTrue(second.getMetrics().getQueueDepth() == 1);
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(MBEAN_NAME));
+        } finally {
+            second.stop();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(MBEAN_NAME));
+    }
+
+    /**
+     * Test that the rows of a lane dropped by the new configuration are moved
+     * to the lane which now takes their level, even while still delayed
+     */
+    @Test
+    public void restartMovesDelayedRowsOfDroppedLane() {
+        when(sdb.listDomains(isA(ListDomainsRequest.class))).thenReturn(new ListDomainsResult().withDomainNames(dom));
+        SimpleDBLane firstLane = new SimpleDBLane();
+        firstLane.setLevel("ERROR");
+        firstLane.setLoggingPeriodMillis(60000);
+        SimpleDBAppender first = configure(new SimpleDBAppender(sdb, dom, null, writer, null, instanceId), firstLane);
+        first.setName("dropped");
+        first.start();
+        when(event.getLevel()).thenReturn(Level.ERROR);
+        first.append(event);
+        first.append(event);
+        first.stop();
+
+        SimpleDBLane secondLane = new SimpleDBLane();
+        secondLane.setLevel("WARN");
+        SimpleDBAppender second = configure(new SimpleDBAppender(sdb, dom, null, writer, null, instanceId), secondLane);
+        second.setName("dropped");
+        second.start();
+        try {
+            assertTrue(firstLane.getQueue().isEmpty());
+            assertTrue(secondLane.getQueue().size() == 2);
+            assertTrue(second.getMetrics().getQueueDepth() == 2);
+        } finally {
+            second.stop();
+        }
+    }
+
+    /**
+     * Test that an appender restarted in place counts the rows it takes back
+     * once, however often it is restarted
+     */
+    @Test
+    public void restartInPlaceCountsRowsOnce() {
+        when(sdb.listDomains(isA(ListDomainsRequest.class))).thenReturn(new ListDomainsResult().withDomainNames(dom));
+        SimpleDBLane lane = new SimpleDBLane();
+        lane.setLevel("ERROR");
+        lane.setLoggingPeriodMillis(60000);
+        SimpleDBAppender restarted = configure(new SimpleDBAppender(sdb, dom, null, writer, null, instanceId), lane);
+        restarted.setName("inPlace");
+        restarted.start();
+        when(event.getLevel()).thenReturn(Level.ERROR);
+        restarted.append(event);
+        when(event.getLevel()).thenReturn(Level.INFO);
+        restarted.append(event);
+        long bytes = restarted.getMetrics().getQueuedBytes();
+        try {
+            for (int i = 0; i < 3; i++) {
+                restarted.stop();
+                restarted.start();
+            }
+            assertTrue(restarted.getPending() == 2);
+            assertTrue(restarted.getMetrics().getQueueDepth() == 2);
+            assertTrue(restarted.getMetrics().getQueuedBytes() == bytes);
+        } finally {
+            restarted.stop();
+        }
+    }
+
+    /**
+     * Test that an appender which got its client from the runtime gets one
+     * again on restart, since the runtime may have shut the first one down
+     */
+    @Test
+    public void restartGetsClientAgain() {
+        SimpleDBClients.setFactory(new SimpleDBClients.Factory() {
+
+            @Override
+            public AmazonSimpleDB create(String accessId, String secretKey, String endpoint,
+                    ClientConfiguration config) {
+                return new InMemorySimpleDB();
+            }
+        });
+        SimpleDBRuntime runtime = SimpleDBRuntime.acquire(1);
+        try {
+            SimpleDBAppender restarted = configure(new SimpleDBAppender(null, dom, null, null, null, instanceId),
+                    new SimpleDBLane());
+            restarted.setName("newClient");
+            restarted.start();
+            AmazonSimpleDB first = restarted.getClient();
+            assertTrue(first instanceof InMemorySimpleDB);
+            restarted.stop();
+            assertNull(restarted.getClient());
+            // as the runtime does when it retires
+            runtime.getClients().shutdown();
+            restarted.start();
+            try {
+                assertTrue(restarted.getClient() instanceof InMemorySimpleDB);
+                assertTrue(restarted.getClient() != first);
+            } finally {
+                restarted.stop();
+            }
+        } finally {
+            runtime.release();
+            SimpleDBClients.setFactory(null);
+        }
+    }
+
+    private static final ObjectName MBEAN_NAME;
+    static {
+        try {
+            MBEAN_NAME = new ObjectName("com.kikini.logging.simpledb:type=SimpleDBAppender,name=\"reloaded\"");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private SimpleDBAppender configure(SimpleDBAppender restarted, SimpleDBLane lane) {
+        restarted.setName("reloaded");
+        restarted.setAccessId("id");
+        restarted.setSecretKey("key");
+        restarted.setDomainName(dom);
+        restarted.addLane(lane);
+        return restarted;
+    }
 }
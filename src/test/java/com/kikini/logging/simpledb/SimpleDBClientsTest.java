@@ -0,0 +1,85 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ClientConfiguration;
+
+public class SimpleDBClientsTest {
+
+    private SimpleDBClients clients;
+
+    @Before
+    public void setUp() {
+        clients = new SimpleDBClients();
+    }
+
+    @After
+    public void tearDown() {
+        clients.shutdown();
+    }
+
+    /**
+     * Verifies that one client is shared per credentials and endpoint
+     */
+    @Test
+    public void sharedPerKey() {
+        ClientConfiguration config = new ClientConfiguration().withMaxConnections(2);
+        SimpleDBClients.Entry first = clients.get("id", "key", null, config);
+        assertTrue(first == clients.get("id", "key", null, config));
+        assertFalse(first == clients.get("id", "key", "sdb.eu-west-1.amazonaws.com", config));
+        assertFalse(first == clients.get("other", "key", null, config));
+    }
+
+    /**
+     * Verifies that the pool grows to the largest size asked for, and never
+     * shrinks
+     */
+    @Test
+    public void poolGrows() {
+        SimpleDBClients.Entry entry = clients.get("id", "key", null, new ClientConfiguration().withMaxConnections(2));
+        assertEquals(2, entry.getMaxConnections());
+        clients.get("id", "key", null, new ClientConfiguration().withMaxConnections(5));
+        assertEquals(5, entry.getMaxConnections());
+        clients.get("id", "key", null, new ClientConfiguration().withMaxConnections(1));
+        assertEquals(5, entry.getMaxConnections());
+    }
+
+    /**
+     * Verifies that requests beyond the peak in flight are counted as reusing
+     * a connection
+     */
+    @Test
+    public void reuseCounted() {
+        SimpleDBClients.Entry entry = clients.get("id", "key", null, new ClientConfiguration());
+        entry.beforeRequest(null);
+        entry.beforeRequest(null);
+        entry.afterResponse(null, null, null);
+        entry.afterError(null, null);
+        entry.beforeRequest(null);
+        entry.afterResponse(null, null, null);
+        assertEquals(3, entry.getRequests());
+        assertEquals(2, entry.getPeakInFlight());
+        assertEquals(1, entry.getReusedConnections());
+    }
+}
@@ -15,15 +15,30 @@
  */
 package com.kikini.logging.simpledb;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
 
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import ch.qos.logback.core.spi.ContextAware;
+
+import com.amazonaws.AmazonClientException;
 import com.google.common.collect.ImmutableMap;
 
 /**
@@ -77,4 +92,161 @@ public class SimpleDBConsumerTest {
         verifyNoMoreInteractions(queue);
         verifyZeroInteractions(writer);
     }
+
+    /**
+     * Verifies that drainOnce writes what is ready without waiting
+     */
+    @Test
+    public void drainOnceWrites() throws InterruptedException {
+        when(queue.drainTo(anyListOf(SimpleDBRow.class), anyInt())).thenAnswer(new Answer<Integer>() {
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                ((List<SimpleDBRow>)invocation.getArguments()[0]).add(mock(SimpleDBRow.class));
+                return 1;
+            }
+        });
+        assertTrue(consumer.drainOnce(10));
+        verify(queue, never()).take();
+        verify(writer).writeRows(anyListOf(SimpleDBRow.class));
+    }
+
+    /**
+     * Verifies that drainOnce reports when nothing is ready
+     */
+    @Test
+    public void drainOnceNothingReady() {
+        assertFalse(consumer.drainOnce(10));
+        verifyZeroInteractions(writer);
+    }
+
+    /**
+     * Verifies that nothing is taken from the queue while the domain cannot be
+     * verified
+     */
+    @Test
+    public void drainOnceWaitsForDomain() {
+        SimpleDBDomains domains = mock(SimpleDBDomains.class);
+        doThrow(new AmazonClientException("unreachable")).when(domains).ensure("test");
+        consumer.setDomainCheck(domains, "test", null);
+        assertFalse(consumer.drainOnce(10));
+        assertTrue(consumer.millisUntilReady(System.currentTimeMillis()) > 0);
+        verifyZeroInteractions(queue);
+        verifyZeroInteractions(writer);
+    }
+
+    /**
+     * Verifies that a small trailing batch is held back for the next turn,
+     * and written once it has waited long enough
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void smallBatchHeld() throws InterruptedException {
+        BlockingQueue<SimpleDBRow> realQueue = new DelayQueue<SimpleDBRow>();
+        consumer = new SimpleDBConsumer(realQueue, writer);
+        consumer.setBatchPolicy(10, 50);
+        for (int i = 0; i < 28; i++) {
+            realQueue.add(new SimpleDBRow("msg " + i, "i-001", "com.kikini.test", "logger", "INFO", 1000000000000L, 1, ImmutableMap.of("key", "value")));
+        }
+        Thread.sleep(5);
+        ArgumentCaptor<List> argument = ArgumentCaptor.forClass(List.class);
+        assertTrue(consumer.drainOnce(100));
+        verify(writer).writeRows(argument.capture());
+        assertEquals(25, argument.getValue().size());
+        assertFalse(consumer.drainOnce(100));
+        assertTrue(consumer.millisUntilReady(System.currentTimeMillis()) <= 50);
+        Thread.sleep(60);
+        assertTrue(consumer.drainOnce(100));
+        verify(writer, times(2)).writeRows(argument.capture());
+        assertEquals(3, argument.getValue().size());
+    }
+
+    /**
+     * Verifies that draining at shutdown aggregates duplicates like any other
+     * write
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void drainAllAggregates() {
+        BlockingQueue<SimpleDBRow> realQueue = new DelayQueue<SimpleDBRow>();
+        consumer = new SimpleDBConsumer(realQueue, writer);
+        consumer.setAggregateDuplicates(true);
+        for (int i = 0; i < 3; i++) {
+            realQueue.add(new SimpleDBRow("same msg", "i-001", "com.kikini.test", "logger", "INFO", 1000000000000L + i, 1, ImmutableMap.of("key", "value")));
+        }
+        consumer.drainAll();
+        ArgumentCaptor<List> argument = ArgumentCaptor.forClass(List.class);
+        verify(writer).writeRows(argument.capture());
+        assertEquals(1, argument.getValue().size());
+        assertEquals(3, ((SimpleDBRow)argument.getValue().get(0)).getCount());
+        assertTrue(realQueue.isEmpty());
+    }
+
+    /**
+     * Verifies that the duplicates of a window are collapsed together even
+     * when it takes several turns to write the window
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void windowAggregated() throws InterruptedException {
+        BlockingQueue<SimpleDBRow> realQueue = new DelayQueue<SimpleDBRow>();
+        consumer = new SimpleDBConsumer(realQueue, writer);
+        consumer.setAggregateDuplicates(true);
+        for (int i = 0; i < 300; i++) {
+            realQueue.add(new SimpleDBRow(i % 2 == 0 ? "same msg" : "msg " + i, "i-001", "com.kikini.test", "logger", "INFO", 1000000000000L + i, 1, ImmutableMap.of("key", "value")));
+        }
+        Thread.sleep(5);
+        assertTrue(consumer.drainOnce(100));
+        assertTrue(consumer.drainOnce(100));
+        assertFalse(consumer.drainOnce(100));
+        ArgumentCaptor<List> argument = ArgumentCaptor.forClass(List.class);
+        verify(writer, times(2)).writeRows(argument.capture());
+        List<SimpleDBRow> first = argument.getAllValues().get(0);
+        assertEquals(100, first.size());
+        assertEquals(150, first.get(0).getCount());
+        assertEquals(51, argument.getAllValues().get(1).size());
+    }
+
+    /**
+     * Verifies that rows which could not be written are reported, written
+     * again after a while, and given up after a few attempts
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void failedWriteRetried() throws InterruptedException {
+        BlockingQueue<SimpleDBRow> realQueue = new DelayQueue<SimpleDBRow>();
+        AtomicInteger pending = new AtomicInteger();
+        consumer = new SimpleDBConsumer(realQueue, writer, pending);
+        ContextAware status = mock(ContextAware.class);
+        consumer.setDomainCheck(mock(SimpleDBDomains.class), "test", status);
+        consumer.setWriteRetryMillis(100);
+        for (int i = 0; i < 3; i++) {
+            realQueue.add(new SimpleDBRow("msg " + i, "i-001", "com.kikini.test", "logger", "INFO", 1000000000000L, 1, ImmutableMap.of("key", "value")));
+            pending.incrementAndGet();
+        }
+        Thread.sleep(5);
+        doThrow(new AmazonClientException("throttled")).doNothing().when(writer).writeRows(anyListOf(SimpleDBRow.class));
+        assertTrue(consumer.drainOnce(100));
+        verify(status).addError(anyString(), any(AmazonClientException.class));
+        assertEquals(0, pending.get());
+        assertFalse(consumer.drainOnce(100));
+        assertTrue(consumer.millisUntilReady(System.currentTimeMillis()) <= 100);
+        Thread.sleep(110);
+        assertTrue(consumer.drainOnce(100));
+        ArgumentCaptor<List> argument = ArgumentCaptor.forClass(List.class);
+        verify(writer, times(2)).writeRows(argument.capture());
+        assertEquals(3, argument.getValue().size());
+
+        // given up after the last attempt
+        realQueue.add(new SimpleDBRow("lost", "i-001", "com.kikini.test", "logger", "INFO", 1000000000000L, 1, ImmutableMap.of("key", "value")));
+        doThrow(new AmazonClientException("down")).when(writer).writeRows(anyListOf(SimpleDBRow.class));
+        for (int i = 0; i < SimpleDBConsumer.MAX_WRITE_ATTEMPTS; i++) {
+            Thread.sleep(110 << i);
+            assertTrue(consumer.drainOnce(100));
+        }
+        assertFalse(consumer.drainOnce(100));
+        verify(writer, times(2 + SimpleDBConsumer.MAX_WRITE_ATTEMPTS)).writeRows(anyListOf(SimpleDBRow.class));
+        verify(status, times(1 + SimpleDBConsumer.MAX_WRITE_ATTEMPTS)).addError(anyString(), any(AmazonClientException.class));
+    }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsResult;
+
+public class SimpleDBDomainsTest {
+
+    private AmazonSimpleDB sdb;
+    private SimpleDBDomains domains;
+
+    /**
+     * Matches a ListDomainsRequest with the given NextToken
+     */
+    private static ListDomainsRequest withToken(final String token) {
+        return argThat(new ArgumentMatcher<ListDomainsRequest>() {
+
+            @Override
+            public boolean matches(Object argument) {
+                if (argument == null) return false;
+                String actual = ((ListDomainsRequest)argument).getNextToken();
+                return token == null ? actual == null : token.equals(actual);
+            }
+        });
+    }
+
+    /**
+     * Serve the domain list over two pages
+     */
+    @Before
+    public void setUp() {
+        sdb = mock(AmazonSimpleDB.class);
+        when(sdb.listDomains(withToken(null))).thenReturn(new ListDomainsResult().withDomainNames("a").withNextToken("page2"));
+        when(sdb.listDomains(withToken("page2"))).thenReturn(new ListDomainsResult().withDomainNames("b"));
+        domains = new SimpleDBDomains(sdb);
+    }
+
+    /**
+     * Verifies that a domain on a later page is found without being created
+     */
+    @Test
+    public void followsNextToken() {
+        assertFalse(domains.isKnown("b"));
+        domains.ensure("b");
+        assertTrue(domains.isKnown("b"));
+        verify(sdb, times(2)).listDomains(any(ListDomainsRequest.class));
+        verify(sdb, never()).createDomain(any(CreateDomainRequest.class));
+    }
+
+    /**
+     * Verifies that a missing domain is created, and that the listing is cached
+     */
+    @Test
+    public void createsMissingAndCaches() {
+        domains.ensure("c");
+        domains.ensure("c");
+        domains.ensure("a");
+        verify(sdb, times(2)).listDomains(any(ListDomainsRequest.class));
+        verify(sdb).createDomain(any(CreateDomainRequest.class));
+        verifyNoMoreInteractions(sdb);
+    }
+}
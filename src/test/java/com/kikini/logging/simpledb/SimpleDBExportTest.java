@@ -0,0 +1,193 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import com.google.common.base.Charsets;
+
+public class SimpleDBExportTest {
+
+    private static final long MINUTE = 60000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InMemoryLogDomain domain;
+
+    /**
+     * Writes one row a minute for 200 minutes from time 0
+     */
+    @Before
+    public void setUp() {
+        domain = new InMemoryLogDomain();
+        List<SimpleDBRow> rows = new ArrayList<SimpleDBRow>();
+        for (int i = 0; i < 200; i++) {
+            rows.add(new SimpleDBRow("msg " + i, "i-001", "ctx", "logger", "INFO", i * MINUTE, 1, Collections
+                    .<String, String> emptyMap()));
+        }
+        domain.writer.writeRows(rows);
+    }
+
+    @After
+    public void tearDown() {
+        domain.shutdown();
+    }
+
+    /**
+     * @return the item names in the export files, in file order
+     */
+    private static List<String> exported(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        List<String> names = new ArrayList<String>();
+        for (File file : files) {
+            if (!file.getName().endsWith(".jsonl.gz")) continue;
+            BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(
+                    file)), Charsets.UTF_8));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    assertTrue(line, line.startsWith("{\"itemName\":\""));
+                    names.add(line.substring(13, line.indexOf('"', 13)));
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return names;
+    }
+
+    @Test
+    public void lowerBounds() {
+        assertEquals(Arrays.asList(""), SimpleDBExport.lowerBounds(1));
+        assertEquals(Arrays.asList("", "40", "80", "c0"), SimpleDBExport.lowerBounds(4));
+        assertEquals("ff", SimpleDBExport.lowerBounds(256).get(255));
+    }
+
+    @Test
+    public void json() {
+        Item item = new Item("a\"b", Arrays.asList(new Attribute("msg", "line\none"), new Attribute("tag", "x"),
+                new Attribute("tag", "y\\")));
+        StringBuilder json = new StringBuilder();
+        SimpleDBExport.appendJson(item, json);
+        assertEquals("{\"itemName\":\"a\\\"b\",\"attributes\":{\"msg\":[\"line\\none\"],\"tag\":[\"x\",\"y\\\\\"]}}",
+                json.toString());
+    }
+
+    /**
+     * Verifies that every item is exported once, in rolling files
+     */
+    @Test
+    public void exportsEverything() throws IOException {
+        File directory = folder.newFolder("export");
+        SimpleDBExport export = new SimpleDBExport(domain.sdb, domain.dom, directory);
+        export.setPartitions(4);
+        export.setThreads(2);
+        export.setRecordsPerFile(20);
+        export.run();
+        List<String> names = exported(directory);
+        assertEquals(200, names.size());
+        assertEquals(200, new HashSet<String>(names).size());
+        assertEquals(200, export.getExported());
+        assertEquals(4, export.getPartitionsDone());
+        assertTrue(export.getFiles() >= 10);
+    }
+
+    /**
+     * Verifies that a time range restricts the items exported
+     */
+    @Test
+    public void timeRange() throws IOException {
+        File directory = folder.newFolder("export");
+        SimpleDBExport export = new SimpleDBExport(domain.sdb, domain.dom, directory);
+        export.setTimeZone("UTC");
+        export.setTimeRange(50 * MINUTE, 150 * MINUTE);
+        export.run();
+        assertEquals(100, exported(directory).size());
+    }
+
+    /**
+     * Verifies that an interrupted partition resumes from its checkpoint, and
+     * that finished ones are not read again
+     */
+    @Test
+    public void resumes() throws IOException {
+        File directory = folder.newFolder("export");
+        SimpleDBExport export = new SimpleDBExport(domain.sdb, domain.dom, directory);
+        export.setPartitions(2);
+        export.setRecordsPerFile(10);
+        export.run();
+        List<String> names = exported(directory);
+
+        // as if the export had stopped while writing the second file of the
+        // first partition
+        File first = new File(directory, "log-p000-00000.jsonl.gz");
+        List<String> firstFile = new ArrayList<String>();
+        for (String name : names) {
+            if (firstFile.size() < 10) firstFile.add(name);
+        }
+        for (File file : directory.listFiles()) {
+            if (file.getName().startsWith("log-p000-") && !file.equals(first)) assertTrue(file.delete());
+        }
+        Properties state = new Properties();
+        state.setProperty("after", firstFile.get(9));
+        state.setProperty("file", "1");
+        state.setProperty("done", "false");
+        OutputStream out = new FileOutputStream(new File(directory, "log-p000.checkpoint"));
+        try {
+            state.store(out, null);
+        } finally {
+            out.close();
+        }
+
+        long requests = domain.sdb.getRequests();
+        SimpleDBExport resumed = new SimpleDBExport(domain.sdb, domain.dom, directory);
+        resumed.setPartitions(2);
+        resumed.setRecordsPerFile(10);
+        resumed.run();
+        assertEquals(1, domain.sdb.getRequests() - requests);
+        assertEquals(2, resumed.getPartitionsDone());
+        Set<String> again = new HashSet<String>(exported(directory));
+        assertEquals(200, again.size());
+        assertEquals(new HashSet<String>(names), again);
+    }
+}
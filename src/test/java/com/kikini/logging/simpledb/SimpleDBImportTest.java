@@ -0,0 +1,192 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.qos.logback.classic.Level;
+
+import com.amazonaws.AmazonServiceException;
+import com.google.common.base.Charsets;
+
+public class SimpleDBImportTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InMemoryLogDomain domain;
+    private File log;
+    private File checkpoint;
+    /** Offsets of the records of the log */
+    private final List<Long> offsets = new ArrayList<Long>();
+
+    @Before
+    public void setUp() {
+        domain = new InMemoryLogDomain();
+    }
+
+    @After
+    public void tearDown() {
+        domain.shutdown();
+    }
+
+    /**
+     * Writes a log of 60 records, a minute apart, every tenth with a stack
+     * trace. The folder only exists once a test has started.
+     */
+    private void writeLog() throws IOException {
+        log = folder.newFile("app.log");
+        checkpoint = new File(folder.getRoot(), "import.checkpoint");
+        StringBuilder text = new StringBuilder("log started\n");
+        for (int i = 0; i < 60; i++) {
+            offsets.add((long)text.toString().getBytes(Charsets.UTF_8).length);
+            text.append(String.format("2012-01-01 %02d:%02d:00,000 [main] %s com.example.App - message %d \u00e9\r\n",
+                    i / 60, i % 60, i % 10 == 0 ? "ERROR" : "INFO", i));
+            if (i % 10 == 0) text.append("java.lang.IllegalStateException\n\tat com.example.App.run(App.java:1)\n");
+        }
+        OutputStream out = new FileOutputStream(log);
+        try {
+            out.write(text.toString().getBytes(Charsets.UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+
+    private SimpleDBImport importer() throws IOException {
+        SimpleDBImport importer = new SimpleDBImport(domain.sdb, domain.dom, checkpoint);
+        importer.setTimeZone("UTC");
+        importer.setHost("i-001");
+        importer.setThreads(4);
+        importer.setInitialItemsPerSecond(100000);
+        return importer;
+    }
+
+    /**
+     * Verifies that each record becomes a row, with its continuation lines
+     */
+    @Test
+    public void importsRecords() throws IOException {
+        writeLog();
+        SimpleDBImport importer = importer();
+        importer.importFile(log);
+        assertEquals(60, importer.getImported());
+        assertEquals(60, domain.sdb.getItemCount(domain.dom));
+
+        Iterator<SimpleDBRecord> errors = domain.reader.select(new SimpleDBQuery().withMinLevel(Level.ERROR)
+                .orderByTime(false));
+        SimpleDBRecord first = errors.next();
+        assertEquals("message 0 \u00e9\njava.lang.IllegalStateException\n\tat com.example.App.run(App.java:1)", first
+                .getMsg());
+        assertEquals("com.example.App", first.getLogger());
+        assertEquals("i-001", first.getHost());
+        assertEquals(new DateTime(2012, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC).getMillis(), first.getTime());
+
+        // a finished file is skipped
+        long requests = domain.sdb.getRequests();
+        importer().importFile(log);
+        assertEquals(requests, domain.sdb.getRequests());
+    }
+
+    /**
+     * Verifies that an import resumes from its checkpoint, and that rows
+     * written again replace the ones written before
+     */
+    @Test
+    public void resumes() throws IOException {
+        writeLog();
+        importer().importFile(log);
+        Properties state = new Properties();
+        state.setProperty(log.getCanonicalPath(), Long.toString(offsets.get(30)));
+        OutputStream out = new FileOutputStream(checkpoint);
+        try {
+            state.store(out, null);
+        } finally {
+            out.close();
+        }
+        SimpleDBImport resumed = importer();
+        resumed.importFile(log);
+        assertEquals(30, resumed.getImported());
+        assertEquals(60, domain.sdb.getItemCount(domain.dom));
+    }
+
+    /**
+     * Verifies that throttled batches are written again at a lower rate
+     */
+    @Test
+    public void adaptsToThrottling() throws IOException {
+        writeLog();
+        domain.sdb.setCeiling(domain.dom, 30);
+        SimpleDBImport importer = importer();
+        importer.setMaxItemsPerSecond(100000);
+        importer.importFile(log);
+        assertEquals(60, domain.sdb.getItemCount(domain.dom));
+        assertTrue(importer.getThrottled() > 0);
+        assertTrue(importer.getItemsPerSecond() < 100000);
+    }
+
+    /**
+     * Verifies that a batch throttled again and again is given up, and the
+     * import with it
+     */
+    @Test
+    public void givesUpWhenAlwaysThrottled() throws IOException {
+        writeLog();
+        domain.sdb.setThrottleRate(1);
+        SimpleDBImport importer = importer();
+        importer.setThreads(1);
+        importer.setMaxThrottledAttempts(3);
+        try {
+            importer.importFile(log);
+            fail();
+        } catch (AmazonServiceException e) {
+            assertEquals(503, e.getStatusCode());
+        }
+        assertEquals(0, domain.sdb.getItemCount(domain.dom));
+    }
+
+    @Test
+    public void adaptiveRate() {
+        SimpleDBImport.AdaptiveRate rate = new SimpleDBImport.AdaptiveRate(100, 25, 150, 10);
+        rate.throttled();
+        assertEquals(50, rate.getRate(), 0);
+        rate.throttled();
+        rate.throttled();
+        assertEquals(25, rate.getRate(), 0);
+        for (int i = 0; i < 20; i++) {
+            rate.succeeded();
+        }
+        assertEquals(150, rate.getRate(), 0);
+    }
+}
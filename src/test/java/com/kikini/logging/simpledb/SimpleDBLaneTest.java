@@ -0,0 +1,66 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+
+public class SimpleDBLaneTest {
+
+    /**
+     * Validates that a lane accepts its own level and above
+     */
+    @Test
+    public void acceptsLevelAndAbove() {
+        SimpleDBLane lane = new SimpleDBLane();
+        lane.setLevel("WARN");
+        assertTrue(lane.accepts(Level.ERROR));
+        assertTrue(lane.accepts(Level.WARN));
+        assertFalse(lane.accepts(Level.INFO));
+    }
+
+    /**
+     * Validates that an unconfigured lane accepts everything
+     */
+    @Test
+    public void defaultAcceptsAll() {
+        SimpleDBLane lane = new SimpleDBLane();
+        assertTrue(lane.accepts(Level.TRACE));
+    }
+
+    /**
+     * Validates that a lane must have at least one thread
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroThreads() {
+        new SimpleDBLane().setThreads(0);
+    }
+
+    /**
+     * Validates that drops are counted
+     */
+    @Test
+    public void dropsCounted() {
+        SimpleDBLane lane = new SimpleDBLane();
+        assertTrue(lane.recordDrop() == 1);
+        assertTrue(lane.recordDrop() == 2);
+        assertTrue(lane.getDropped() == 2);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+import com.google.common.collect.ImmutableMap;
+
+public class SimpleDBLatencyReportTest {
+
+    private SimpleDBMetrics.Clock clock;
+    private SimpleDBMetrics metrics;
+    private ContextAware status;
+    private SimpleDBLatencyReport report;
+
+    @Before
+    public void setUp() {
+        clock = mock(SimpleDBMetrics.Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(1000000000000L);
+        metrics = new SimpleDBMetrics(clock);
+        status = mock(ContextAware.class);
+        report = new SimpleDBLatencyReport(metrics, status, 60000);
+    }
+
+    /**
+     * Verifies that the report waits for its period
+     */
+    @Test
+    public void waitsForPeriod() {
+        assertFalse(report.runOnce());
+        verifyZeroInteractions(status);
+        when(clock.currentTimeMillis()).thenReturn(1000000060000L);
+        assertTrue(report.runOnce());
+        verify(status).addInfo(anyString());
+    }
+
+    /**
+     * Verifies that each report covers only the events since the previous one
+     */
+    @Test
+    public void reportsInterval() {
+        SimpleDBRow row = new SimpleDBRow("msg", null, null, "logger", "INFO", 999999999000L, 1, ImmutableMap.<String, String> of());
+        metrics.recordAckLatency(Collections.singletonList(row), 1000000000000L);
+        assertTrue(report.report().contains("ack n=1 p50=1023"));
+        assertTrue(report.report().contains("ack n=0 p50=0"));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+
+import com.google.common.collect.ImmutableMap;
+
+public class SimpleDBMetricsTest {
+
+    private SimpleDBMetrics.Clock clock;
+    private SimpleDBMetrics metrics;
+    private SimpleDBLane lane;
+
+    @Before
+    public void setUp() {
+        clock = mock(SimpleDBMetrics.Clock.class);
+        when(clock.nanoTime()).thenReturn(0L);
+        when(clock.currentTimeMillis()).thenReturn(1000000001000L);
+        metrics = new SimpleDBMetrics(clock);
+        lane = new SimpleDBLane(Level.ALL, 60000, new DelayQueue<SimpleDBRow>());
+        metrics.setLanes(new SimpleDBLane[] { lane });
+    }
+
+    private SimpleDBRow enqueue(String msg) {
+        SimpleDBRow row = new SimpleDBRow(msg, null, null, "logger", "INFO", 1000000000000L, 60000, ImmutableMap.of("k", "v"));
+        lane.getQueue().add(row);
+        metrics.recordEnqueue(row);
+        return row;
+    }
+
+    /**
+     * Verifies that queue depth, bytes and age follow the rows
+     */
+    @Test
+    public void queueTracked() {
+        SimpleDBRow row = enqueue("0123456789");
+        assertEquals(1, metrics.getQueueDepth());
+        // message, logger, level and one MDC property
+        assertEquals(10 + 6 + 4 + 2, metrics.getQueuedBytes());
+        assertEquals(1000, metrics.getOldestPendingAgeMillis());
+        lane.getQueue().clear();
+        metrics.recordTaken(Collections.singletonList(row));
+        assertEquals(0, metrics.getQueuedBytes());
+        assertEquals(0, metrics.getOldestPendingAgeMillis());
+    }
+
+    /**
+     * Verifies that the average fill is items per batch
+     */
+    @Test
+    public void averageFill() {
+        assertEquals(0, metrics.getAverageBatchFill(), 0);
+        metrics.recordBatch(25);
+        metrics.recordBatch(5);
+        assertEquals(2, metrics.getBatches());
+        assertEquals(30, metrics.getItemsWritten());
+        assertEquals(15, metrics.getAverageBatchFill(), 0);
+    }
+
+    /**
+     * Verifies that rates are computed between readings at least a second
+     * apart
+     */
+    @Test
+    public void enqueueRate() {
+        for (int i = 0; i < 20; i++) {
+            enqueue("msg");
+        }
+        when(clock.nanoTime()).thenReturn(TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(0, metrics.getEnqueueRate(), 0);
+        when(clock.nanoTime()).thenReturn(TimeUnit.SECONDS.toNanos(2));
+        assertEquals(10, metrics.getEnqueueRate(), 0.001);
+        when(clock.nanoTime()).thenReturn(TimeUnit.SECONDS.toNanos(3));
+        assertEquals(0, metrics.getEnqueueRate(), 0);
+    }
+
+    /**
+     * Verifies that drops are summed across lanes
+     */
+    @Test
+    public void dropsSummed() {
+        lane.recordDrop();
+        lane.recordDrop();
+        assertEquals(2, metrics.getDropped());
+    }
+
+    /**
+     * Verifies that BoxUsage is totalled and split by attributes per item
+     */
+    @Test
+    public void boxUsage() {
+        metrics.recordBatch(10);
+        metrics.recordBoxUsage(10, 70, 0.0002f);
+        metrics.recordBatch(10);
+        metrics.recordBoxUsage(10, 90, 0.0003f);
+        assertEquals(0.0005, metrics.getBoxUsage(), 1e-9);
+        assertEquals(0.025, metrics.getBoxUsagePerThousandItems(), 1e-9);
+        String[] byAttributes = metrics.getBoxUsageByAttributeCount();
+        assertEquals(2, byAttributes.length);
+        assertTrue(byAttributes[0].startsWith("7 attributes: 10 items"));
+        assertTrue(byAttributes[1].startsWith("9 attributes: 10 items"));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SimpleDBQueryCacheTest {
+
+    private static final long MINUTE = 60000;
+    private static final long HOUR = 60 * MINUTE;
+
+    private InMemoryLogDomain domain;
+    private long now;
+
+    private final SimpleDBQueryCache.Clock clock = new SimpleDBQueryCache.Clock() {
+
+        @Override
+        long getCurrentTimeMillis() {
+            return now;
+        }
+    };
+
+    /**
+     * Writes one row a minute for 3 hours from time 0
+     */
+    @Before
+    public void setUp() {
+        domain = new InMemoryLogDomain();
+        for (int i = 0; i < 180; i++) {
+            domain.write("msg", i * MINUTE);
+        }
+        now = 3 * HOUR;
+    }
+
+    @After
+    public void tearDown() {
+        domain.shutdown();
+    }
+
+    private static List<Long> times(Iterator<SimpleDBRecord> it) {
+        List<Long> times = new ArrayList<Long>();
+        while (it.hasNext()) {
+            times.add(it.next().getTime());
+        }
+        return times;
+    }
+
+    /**
+     * Verifies that closed buckets are read once, and the open one every time
+     */
+    @Test
+    public void closedBucketsCached() {
+        SimpleDBQueryCache cache = new SimpleDBQueryCache(clock, domain.reader, HOUR, 5 * MINUTE, 10000);
+        SimpleDBQuery query = new SimpleDBQuery().withLogger("logger").withTimeRange(30 * MINUTE, 3 * HOUR)
+                .orderByTime(false);
+        List<Long> times = times(cache.select(query));
+        assertEquals(150, times.size());
+        assertEquals(30 * MINUTE, (long)times.get(0));
+        assertEquals(179 * MINUTE, (long)times.get(149));
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        domain.write("msg", 179 * MINUTE + 1);
+        long requests = domain.sdb.getRequests();
+        assertEquals(151, times(cache.select(query)).size());
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, domain.sdb.getRequests() - requests);
+
+        // once the flush window passes, the last bucket is closed too
+        now = 3 * HOUR + 5 * MINUTE;
+        times(cache.select(query));
+        times(cache.select(query));
+        assertEquals(7, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    /**
+     * Verifies that queries built differently over the same criteria share
+     * buckets, and that order and limit apply across them
+     */
+    @Test
+    public void orderAndLimit() {
+        SimpleDBQueryCache cache = new SimpleDBQueryCache(clock, domain.reader, HOUR, 0, 10000);
+        times(cache.select(new SimpleDBQuery().withHost("i-001").withLogger("logger").withTimeRange(0, 2 * HOUR)));
+        List<Long> times = times(cache.select(new SimpleDBQuery().withLogger("logger").withHost("i-001")
+                .withTimeRange(30 * MINUTE, 90 * MINUTE).orderByTime(true).withLimit(40)));
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getHits());
+        assertEquals(40, times.size());
+        assertEquals(89 * MINUTE, (long)times.get(0));
+        assertEquals(50 * MINUTE, (long)times.get(39));
+    }
+
+    /**
+     * Verifies that buckets are evicted once too many items are cached
+     */
+    @Test
+    public void evicts() {
+        SimpleDBQueryCache cache = new SimpleDBQueryCache(clock, domain.reader, HOUR, 0, 100);
+        SimpleDBQuery first = new SimpleDBQuery().withTimeRange(0, HOUR);
+        SimpleDBQuery second = new SimpleDBQuery().withTimeRange(HOUR, 2 * HOUR);
+        times(cache.select(first));
+        times(cache.select(second));
+        times(cache.select(first));
+        assertEquals(0, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    /**
+     * Verifies that queries without a time range go straight to the reader
+     */
+    @Test
+    public void unboundedNotCached() {
+        SimpleDBQueryCache cache = new SimpleDBQueryCache(clock, domain.reader, HOUR, 0, 10000);
+        assertEquals(180, times(cache.select(new SimpleDBQuery())).size());
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+}
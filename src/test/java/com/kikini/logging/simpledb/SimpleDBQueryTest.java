@@ -0,0 +1,130 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.google.common.collect.ImmutableMap;
+
+public class SimpleDBQueryTest {
+
+    private static final SimpleDBTimeColumn MILLIS = SimpleDBTimeColumn.MILLIS;
+    private static final DateTimeFormatter UTC = ISODateTimeFormat.dateTime().withZone(DateTimeZone.UTC);
+
+    /**
+     * Verifies that an empty query selects everything
+     */
+    @Test
+    public void everything() {
+        assertEquals("select * from `log` limit 2500", new SimpleDBQuery().toSelectExpression("log", MILLIS, 2500));
+    }
+
+    /**
+     * Verifies that every criterion becomes a predicate, with names and values
+     * quoted
+     */
+    @Test
+    public void predicates() {
+        long from = new DateTime(2010, 2, 1, 12, 0, 0, 0, DateTimeZone.UTC).getMillis();
+        SimpleDBQuery query = new SimpleDBQuery().withHost("i-001").withContext("ctx").withLoggerPrefix("com.kikini.")
+                .withMinLevel(Level.WARN).withMDC("user", "o'brien").withMessageContaining("timeout")
+                .withTimeRange(from, from + 60000).orderByTime(true);
+        assertEquals("select * from `log` where `host` = 'i-001' and `context` = 'ctx' "
+                + "and `logger` like 'com.kikini.%' and `level` in ('WARN','ERROR') "
+                + "and `mdc.user` = 'o''brien' and `msg` like '%timeout%' "
+                + "and `timeMillis` >= '001265025600000' and `timeMillis` < '001265025660000' "
+                + "order by `timeMillis` desc limit 100", query.toSelectExpression("log", MILLIS, 100));
+    }
+
+    /**
+     * Verifies that the text of a like pattern matches literally, in SimpleDB
+     * as in {@link SimpleDBQuery#matches(SimpleDBRecord)}
+     */
+    @Test
+    public void likeEscaped() {
+        SimpleDBQuery query = new SimpleDBQuery().withLoggerPrefix("a\\b").withMessageContaining("100%");
+        assertEquals("select * from `log` where `logger` like 'a\\\\b%' and `msg` like '%100\\%%' limit 100", query
+                .toSelectExpression("log", MILLIS, 100));
+
+        InMemorySimpleDB sdb = new InMemorySimpleDB();
+        sdb.createDomain(new CreateDomainRequest("log"));
+        sdb.putAttributes(new PutAttributesRequest("log", "full", Arrays.asList(new ReplaceableAttribute("logger",
+                "a\\b.C", false), new ReplaceableAttribute("msg", "disk 100% full", false))));
+        sdb.putAttributes(new PutAttributesRequest("log", "other", Arrays.asList(new ReplaceableAttribute("logger",
+                "a\\b.C", false), new ReplaceableAttribute("msg", "disk 1005 blocks", false))));
+        List<Item> items = sdb.select(new SelectRequest(query.toSelectExpression("log", MILLIS, 100))).getItems();
+        assertEquals(1, items.size());
+        assertEquals("full", items.get(0).getName());
+    }
+
+    /**
+     * Verifies that the legacy time column is compared as ISO 8601 in the
+     * given time zone
+     */
+    @Test
+    public void legacyTimeColumn() {
+        long from = new DateTime(2010, 2, 1, 12, 0, 0, 0, DateTimeZone.UTC).getMillis();
+        SimpleDBQuery query = new SimpleDBQuery().withTimeRange(from, from + 60000).orderByTime(false);
+        assertEquals("select * from `log` where `time` >= '2010-02-01T12:00:00.000Z' "
+                + "and `time` < '2010-02-01T12:01:00.000Z' order by `time` asc limit 100", query.toSelectExpression(
+                "log", SimpleDBTimeColumn.iso(UTC), 100));
+    }
+
+    /**
+     * Verifies that ordering by time without a time range still has a
+     * predicate on time, as SimpleDB requires
+     */
+    @Test
+    public void orderWithoutRange() {
+        SimpleDBQuery query = new SimpleDBQuery().withLogger("a").orderByTime(false);
+        assertEquals("select * from `log` where `logger` = 'a' and `timeMillis` is not null "
+                + "order by `timeMillis` asc limit 10", query.toSelectExpression("log", MILLIS, 10));
+    }
+
+    /**
+     * Verifies that a query evaluated against a record agrees with its
+     * predicates
+     */
+    @Test
+    public void matches() {
+        SimpleDBRecord record = new SimpleDBRecord("id", "a timeout", "i-001", "ctx", "com.kikini.A", "WARN", 1000, 1,
+                1000, ImmutableMap.of("user", "u1"));
+        assertTrue(new SimpleDBQuery().withHost("i-001").withLoggerPrefix("com.kikini.").withMinLevel(Level.INFO)
+                .withMDC("user", "u1").withMessageContaining("time").withTimeRange(1000, 1001).matches(record));
+        assertFalse(new SimpleDBQuery().withMinLevel(Level.ERROR).matches(record));
+        assertFalse(new SimpleDBQuery().withMDC("user", "u2").matches(record));
+        assertFalse(new SimpleDBQuery().withLogger("com.kikini.").matches(record));
+        assertFalse(new SimpleDBQuery().withTimeRange(0, 1000).matches(record));
+    }
+}
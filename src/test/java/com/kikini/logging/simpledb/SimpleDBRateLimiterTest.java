@@ -0,0 +1,132 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+
+public class SimpleDBRateLimiterTest {
+
+    SimpleDBRateLimiter.Clock clock;
+    SimpleDBRateLimit noisy;
+    SimpleDBRateLimit quiet;
+    SimpleDBRateLimiter limiter;
+
+    /**
+     * Limit com.noisy to 1 INFO-or-below event per second with a burst of 2,
+     * and silence com.noisy.quiet entirely
+     */
+    @Before
+    public void setUp() {
+        clock = mock(SimpleDBRateLimiter.Clock.class);
+        when(clock.nanoTime()).thenReturn(0L);
+        noisy = new SimpleDBRateLimit();
+        noisy.setLogger("com.noisy");
+        noisy.setLevel("INFO");
+        noisy.setEventsPerSecond(1);
+        noisy.setBurst(2);
+        quiet = new SimpleDBRateLimit();
+        quiet.setLogger("com.noisy.quiet");
+        quiet.setSampleRate(0);
+        limiter = new SimpleDBRateLimiter(clock, Arrays.asList(noisy, quiet), 60000);
+    }
+
+    /**
+     * Validates that the burst is allowed and then events are suppressed
+     */
+    @Test
+    public void burstThenSuppress() {
+        assertTrue(limiter.tryAcquire("com.noisy.Foo", Level.INFO));
+        assertTrue(limiter.tryAcquire("com.noisy.Foo", Level.INFO));
+        assertFalse(limiter.tryAcquire("com.noisy.Foo", Level.INFO));
+    }
+
+    /**
+     * Validates that the bucket refills over time
+     */
+    @Test
+    public void refills() {
+        limiter.tryAcquire("com.noisy", Level.DEBUG);
+        limiter.tryAcquire("com.noisy", Level.DEBUG);
+        assertFalse(limiter.tryAcquire("com.noisy", Level.DEBUG));
+        when(clock.nanoTime()).thenReturn(1000000000L);
+        assertTrue(limiter.tryAcquire("com.noisy", Level.DEBUG));
+    }
+
+    /**
+     * Validates that levels above the rule, and other loggers, are untouched
+     */
+    @Test
+    public void unmatchedNotLimited() {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire("com.noisy.Foo", Level.WARN));
+            assertTrue(limiter.tryAcquire("com.noisyneighbor", Level.INFO));
+        }
+    }
+
+    /**
+     * Validates that the most specific rule wins
+     */
+    @Test
+    public void longestPrefixWins() {
+        assertFalse(limiter.tryAcquire("com.noisy.quiet.Bar", Level.ERROR));
+    }
+
+    /**
+     * Validates that suppressed counts are summarized once per period
+     */
+    @Test
+    public void summaries() {
+        for (int i = 0; i < 5; i++) {
+            limiter.tryAcquire("com.noisy.Foo", Level.INFO);
+        }
+        assertTrue(limiter.takeSummariesIfDue().isEmpty());
+        when(clock.nanoTime()).thenReturn(60000000000L);
+        List<SimpleDBRateLimiter.Summary> summaries = limiter.takeSummariesIfDue();
+        assertEquals(1, summaries.size());
+        assertEquals("com.noisy.Foo", summaries.get(0).getLogger());
+        assertEquals(Level.INFO, summaries.get(0).getLevel());
+        assertEquals(3, summaries.get(0).getSuppressed());
+        assertTrue(limiter.takeSummariesIfDue().isEmpty());
+    }
+
+    /**
+     * Validates that suppressed counts may be taken before they are due, and
+     * when they next are
+     */
+    @Test
+    public void summariesTakenEarly() {
+        limiter.tryAcquire("com.noisy.Foo", Level.INFO);
+        limiter.tryAcquire("com.noisy.Foo", Level.INFO);
+        limiter.tryAcquire("com.noisy.Foo", Level.INFO);
+        assertEquals(60000, limiter.millisUntilSummary());
+        assertEquals(1, limiter.takeSummaries().get(0).getSuppressed());
+        assertTrue(limiter.takeSummaries().isEmpty());
+        when(clock.nanoTime()).thenReturn(59999999999L);
+        assertEquals(1, limiter.millisUntilSummary());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class SimpleDBReaderTest {
+
+    private long start;
+    private InMemoryLogDomain domain;
+
+    /**
+     * Writes ten rows a minute apart, alternating INFO and ERROR, through the
+     * writer
+     */
+    @Before
+    public void setUp() {
+        start = new DateTime(2010, 2, 1, 12, 0, 0, 0, DateTimeZone.UTC).getMillis();
+        domain = new InMemoryLogDomain();
+        List<SimpleDBRow> rows = new ArrayList<SimpleDBRow>();
+        for (int i = 0; i < 10; i++) {
+            rows.add(new SimpleDBRow("msg " + i, "i-001", "ctx", "com.kikini.Test", i % 2 == 0 ? "INFO" : "ERROR",
+                    start + i * 60000, 1, ImmutableMap.of("n", Integer.toString(i))));
+        }
+        domain.writer.writeRows(rows);
+        domain.reader.setPageSize(2);
+    }
+
+    @After
+    public void tearDown() {
+        domain.shutdown();
+    }
+
+    /**
+     * Verifies that records are decoded, and that every page is read in order
+     */
+    @Test
+    public void readsAllPages() {
+        Iterator<SimpleDBRecord> records = domain.reader.select(new SimpleDBQuery().withMinLevel(Level.WARN)
+                .orderByTime(false));
+        List<String> messages = new ArrayList<String>();
+        SimpleDBRecord first = records.next();
+        messages.add(first.getMsg());
+        while (records.hasNext()) {
+            messages.add(records.next().getMsg());
+        }
+        assertEquals(Arrays.asList("msg 1", "msg 3", "msg 5", "msg 7", "msg 9"), messages);
+        assertEquals(start + 60000, first.getTime());
+        assertEquals("ERROR", first.getLevel());
+        assertEquals("com.kikini.Test", first.getLogger());
+        assertEquals("i-001", first.getHost());
+        assertEquals("ctx", first.getContext());
+        assertEquals(1, first.getCount());
+        assertEquals(ImmutableMap.of("n", "1"), first.getMDCPropertyMap());
+    }
+
+    /**
+     * Verifies that the time range and limit are applied
+     */
+    @Test
+    public void rangeAndLimit() {
+        Iterator<SimpleDBRecord> records = domain.reader.select(new SimpleDBQuery()
+                .withTimeRange(start + 120000, start + 480000).orderByTime(true).withLimit(3));
+        assertEquals("msg 7", records.next().getMsg());
+        assertEquals("msg 6", records.next().getMsg());
+        assertEquals("msg 5", records.next().getMsg());
+        assertFalse(records.hasNext());
+    }
+
+    /**
+     * Verifies that the next page is requested before the current one has
+     * been consumed
+     */
+    @Test
+    public void prefetches() throws InterruptedException {
+        AmazonSimpleDB mockSdb = mock(AmazonSimpleDB.class);
+        Item item = new Item("a", Collections.singletonList(new Attribute("msg", "hello")));
+        when(mockSdb.select(any(SelectRequest.class))).thenReturn(
+                new SelectResult().withItems(item).withNextToken("page2"),
+                new SelectResult().withItems(item));
+        SimpleDBReader mockReader = new SimpleDBReader(mockSdb, domain.dom);
+        try {
+            Iterator<SimpleDBRecord> records = mockReader.select(new SimpleDBQuery());
+            assertEquals("hello", records.next().getMsg());
+            for (int i = 0; i < 100; i++) {
+                try {
+                    verify(mockSdb, times(2)).select(any(SelectRequest.class));
+                    break;
+                } catch (AssertionError e) {
+                    Thread.sleep(10);
+                }
+            }
+            verify(mockSdb, times(2)).select(any(SelectRequest.class));
+            assertTrue(records.hasNext());
+            records.next();
+            assertFalse(records.hasNext());
+        } finally {
+            mockReader.shutdown();
+        }
+    }
+
+    /**
+     * Verifies that no page is requested past the one in which the limit is
+     * reached
+     */
+    @Test
+    public void noPrefetchPastLimit() {
+        AmazonSimpleDB mockSdb = mock(AmazonSimpleDB.class);
+        Item item = new Item("a", Collections.singletonList(new Attribute("msg", "hello")));
+        when(mockSdb.select(any(SelectRequest.class))).thenReturn(
+                new SelectResult().withItems(item, item).withNextToken("page2"),
+                new SelectResult().withItems(item));
+        Iterator<Item> items = new SimpleDBResultIterator(mockSdb, "select * from log", false, MoreExecutors
+                .sameThreadExecutor(), 2);
+        items.next();
+        items.next();
+        assertFalse(items.hasNext());
+        verify(mockSdb, times(1)).select(any(SelectRequest.class));
+    }
+}
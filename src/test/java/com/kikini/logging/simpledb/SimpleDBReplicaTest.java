@@ -0,0 +1,181 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.qos.logback.classic.Level;
+
+import com.google.common.collect.ImmutableMap;
+
+public class SimpleDBReplicaTest {
+
+    private static final long MINUTE = 60000;
+    private static final String[] LEVELS = { "DEBUG", "INFO", "WARN", "ERROR" };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InMemoryLogDomain domain;
+
+    /**
+     * Writes one row a minute for 40 minutes from time 0, over two hosts and
+     * two loggers, cycling through the levels
+     */
+    @Before
+    public void setUp() {
+        domain = new InMemoryLogDomain();
+        List<SimpleDBRow> rows = new ArrayList<SimpleDBRow>();
+        for (int i = 0; i < 40; i++) {
+            rows.add(new SimpleDBRow("msg " + i, i % 2 == 0 ? "i-001" : "i-002", "ctx", i < 20 ? "com.a.A"
+                    : "com.b.B", LEVELS[i % 4], i * MINUTE, 1, ImmutableMap.of("user", "u" + i % 5)));
+        }
+        domain.writer.writeRows(rows);
+    }
+
+    @After
+    public void tearDown() {
+        domain.shutdown();
+    }
+
+    /**
+     * Verifies that queries on the replica match what SimpleDB returns
+     */
+    @Test
+    public void queries() throws IOException {
+        SimpleDBReplica replica = new SimpleDBReplica(new File(folder.getRoot(), "log.replica"));
+        assertEquals(40, replica.sync(domain.reader));
+        assertEquals(39 * MINUTE, replica.getWatermark());
+
+        SimpleDBQuery query = new SimpleDBQuery().withHost("i-001").withMinLevel(Level.WARN)
+                .withLoggerPrefix("com.b.").withMDC("user", "u2");
+        List<SimpleDBRecord> local = replica.select(query);
+        assertEquals(1, local.size());
+        assertEquals("msg 22", local.get(0).getMsg());
+
+        List<SimpleDBRecord> recent = replica.select(new SimpleDBQuery().withTimeRange(10 * MINUTE, 30 * MINUTE)
+                .withMessageContaining("1").orderByTime(true).withLimit(3));
+        assertEquals(3, recent.size());
+        assertEquals("msg 21", recent.get(0).getMsg());
+        assertEquals("msg 19", recent.get(1).getMsg());
+        assertEquals("msg 18", recent.get(2).getMsg());
+
+        assertEquals(0, replica.select(new SimpleDBQuery().withHost("i-003")).size());
+        replica.close();
+    }
+
+    /**
+     * Verifies that counts group the events matching a query
+     */
+    @Test
+    public void aggregates() throws IOException {
+        SimpleDBReplica replica = new SimpleDBReplica(new File(folder.getRoot(), "log.replica"));
+        replica.sync(domain.reader);
+        Map<String, Long> byLevel = replica.countBy(new SimpleDBQuery().withLogger("com.a.A"), "level");
+        assertEquals(ImmutableMap.of("DEBUG", 5L, "ERROR", 5L, "INFO", 5L, "WARN", 5L), byLevel);
+        Map<String, Long> byUser = replica.countBy(new SimpleDBQuery().withHost("i-002"), "mdc.user");
+        assertEquals(ImmutableMap.of("u1", 4L, "u3", 4L, "u0", 4L, "u2", 4L, "u4", 4L), byUser);
+        Map<Long, Long> byTime = replica.countByTime(new SimpleDBQuery().withMinLevel(Level.ERROR), 10 * MINUTE);
+        assertEquals(ImmutableMap.of(0L, 2L, 10 * MINUTE, 3L, 20 * MINUTE, 2L, 30 * MINUTE, 3L), byTime);
+        replica.close();
+    }
+
+    /**
+     * Verifies that a sync only copies the items written since the last one,
+     * including items at the newest time already copied
+     */
+    @Test
+    public void incrementalSync() throws IOException {
+        SimpleDBReplica replica = new SimpleDBReplica(new File(folder.getRoot(), "log.replica"));
+        assertEquals(40, replica.sync(domain.reader));
+        assertEquals(0, replica.sync(domain.reader));
+        domain.write("same time", 39 * MINUTE);
+        domain.write("later", 40 * MINUTE);
+        assertEquals(2, replica.sync(domain.reader));
+        assertEquals(42, replica.getSize());
+
+        replica.setLookBackMillis(10 * MINUTE);
+        domain.write("late", 35 * MINUTE);
+        domain.write("too late", 29 * MINUTE);
+        assertEquals(1, replica.sync(domain.reader));
+        assertEquals(43, replica.getSize());
+        replica.close();
+    }
+
+    /**
+     * Verifies that a replica is loaded back from its file, and that a record
+     * cut short is dropped and copied again
+     */
+    @Test
+    public void reopen() throws IOException {
+        File file = new File(folder.getRoot(), "log.replica");
+        SimpleDBReplica replica = new SimpleDBReplica(file);
+        replica.sync(domain.reader);
+        replica.close();
+
+        replica = new SimpleDBReplica(file);
+        assertEquals(40, replica.getSize());
+        assertEquals(39 * MINUTE, replica.getWatermark());
+        assertEquals(0, replica.sync(domain.reader));
+        replica.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+        replica = new SimpleDBReplica(file);
+        assertEquals(39, replica.getSize());
+        assertEquals(1, replica.sync(domain.reader));
+        assertEquals(10, replica.select(new SimpleDBQuery().withLogger("com.b.B").withMinLevel(Level.INFO)
+                .withHost("i-002")).size());
+        replica.close();
+        assertEquals(40, new SimpleDBReplica(file).getSize());
+    }
+
+    /**
+     * Verifies that a followed domain is copied as it is written
+     */
+    @Test
+    public void follow() throws IOException {
+        SimpleDBReplica replica = new SimpleDBReplica(new File(folder.getRoot(), "log.replica"));
+        replica.sync(domain.reader);
+        SimpleDBTail tail = new SimpleDBTail(mock(ScheduledExecutorService.class));
+        SimpleDBTail.Follower follower = replica.follow(tail, domain.reader);
+        // the item at the watermark is delivered again, and skipped
+        assertEquals(1, follower.poll());
+        assertEquals(40, replica.getSize());
+        domain.write("new", 45 * MINUTE);
+        assertEquals(1, follower.poll());
+        assertEquals(41, replica.getSize());
+        assertEquals(45 * MINUTE, replica.getWatermark());
+        replica.close();
+        assertEquals(41, new SimpleDBReplica(new File(folder.getRoot(), "log.replica")).getSize());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+
+public class SimpleDBRetentionTest {
+
+    private static final long MINUTE = 60000;
+
+    private InMemoryLogDomain domain;
+    private long now = 200 * MINUTE;
+    private boolean ticking = false;
+
+    private final SimpleDBRetention.Clock clock = new SimpleDBRetention.Clock() {
+
+        @Override
+        synchronized long getCurrentTimeMillis() {
+            return ticking ? now++ : now;
+        }
+    };
+
+    /**
+     * Writes one row a minute for 200 minutes, each half way through its
+     * minute
+     */
+    @Before
+    public void setUp() {
+        domain = new InMemoryLogDomain();
+        List<SimpleDBRow> rows = new ArrayList<SimpleDBRow>();
+        for (int i = 0; i < 200; i++) {
+            rows.add(new SimpleDBRow("msg " + i, "i-001", "ctx", "logger", "INFO", i * MINUTE + MINUTE / 2, 1, Collections
+                    .<String, String> emptyMap()));
+        }
+        domain.writer.writeRows(rows);
+    }
+
+    @After
+    public void tearDown() {
+        domain.shutdown();
+    }
+
+    private SimpleDBRetention retention() {
+        SimpleDBRetention retention = new SimpleDBRetention(clock, domain.sdb, domain.dom, 100 * MINUTE);
+        retention.setTimeZone(DateTimeZone.UTC);
+        return retention;
+    }
+
+    /**
+     * Verifies that a standalone purge deletes every expired item, and only
+     * those
+     */
+    @Test
+    public void purge() {
+        // the threads wait for the clock to allow each batch
+        ticking = true;
+        SimpleDBRetention retention = retention();
+        retention.setMaxItemsPerSecond(100000);
+        retention.purge(3);
+        assertEquals(100, retention.getDeleted());
+        assertEquals(1, retention.getSweeps());
+        assertEquals(100, domain.sdb.getItemCount(domain.dom));
+
+        Iterator<SimpleDBRecord> left = domain.reader.select(new SimpleDBQuery().orderByTime(false));
+        assertEquals(100 * MINUTE + MINUTE / 2, left.next().getTime());
+    }
+
+    /**
+     * Verifies that as a task, the deletes keep to the rate, and sweeps are
+     * periodic
+     */
+    @Test
+    public void task() {
+        SimpleDBRetention retention = retention();
+        retention.setMaxItemsPerSecond(25);
+        retention.setPeriodMillis(60 * MINUTE);
+
+        // select the expired items, then delete a batch
+        assertTrue(retention.runOnce());
+        assertTrue(retention.runOnce());
+        assertEquals(25, retention.getDeleted());
+        assertFalse(retention.runOnce());
+        assertEquals(1000, retention.millisUntilReady(now));
+
+        for (int i = 0; i < 3; i++) {
+            now += 1000;
+            assertTrue(retention.runOnce());
+        }
+        assertEquals(100, retention.getDeleted());
+        assertEquals(0, retention.getSweeps());
+
+        // the next select finds nothing left
+        assertTrue(retention.runOnce());
+        assertEquals(1, retention.getSweeps());
+        assertFalse(retention.runOnce());
+        assertEquals(60 * MINUTE, retention.millisUntilReady(now));
+
+        // an hour later, the items of the first 160 minutes have expired
+        now += 60 * MINUTE;
+        while (retention.getSweeps() < 2) {
+            if (!retention.runOnce()) now += retention.millisUntilReady(now);
+        }
+        assertEquals(160, retention.getDeleted());
+        assertEquals(40, domain.sdb.getItemCount(domain.dom));
+    }
+
+    /**
+     * Verifies that a failed select is retried later, waiting longer after
+     * each failure, rather than at once
+     */
+    @Test
+    public void selectBacksOff() {
+        SimpleDBRetention retention = new SimpleDBRetention(clock, domain.sdb, "missing", 100 * MINUTE);
+        retention.setTimeZone(DateTimeZone.UTC);
+        for (long retry = 1000; retry <= 4000; retry *= 2) {
+            try {
+                retention.runOnce();
+                fail();
+            } catch (AmazonClientException e) {
+                // expected
+            }
+            assertFalse(retention.runOnce());
+            assertEquals(retry, retention.millisUntilReady(now));
+            now += retry;
+        }
+
+        // the domain exists again
+        domain.sdb.createDomain(new CreateDomainRequest("missing"));
+        assertTrue(retention.runOnce());
+        assertEquals(1, retention.getSweeps());
+    }
+}
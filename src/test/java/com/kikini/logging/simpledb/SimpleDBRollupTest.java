@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
+
+public class SimpleDBRollupTest {
+
+    private AmazonSimpleDB sdb;
+    private SimpleDBRollup rollup;
+    private ArgumentCaptor<BatchPutAttributesRequest> argument;
+
+    /**
+     * Create a rollup with one minute windows writing to a mock domain
+     */
+    @Before
+    public void setUp() {
+        sdb = mock(AmazonSimpleDB.class);
+        rollup = new SimpleDBRollup(sdb, "rollup", "i-001", "com.kikini.test", 60000);
+        rollup.setTimeZone(DateTimeZone.UTC);
+        argument = ArgumentCaptor.forClass(BatchPutAttributesRequest.class);
+    }
+
+    private Map<String, String> columns(ReplaceableItem item) {
+        Map<String, String> columns = new HashMap<String, String>();
+        for (ReplaceableAttribute att : item.getAttributes()) {
+            columns.put(att.getName(), att.getValue());
+        }
+        return columns;
+    }
+
+    /**
+     * Verifies that events are counted per logger, level and window
+     */
+    @Test
+    public void countsPerWindow() {
+        rollup.record("logger", "ERROR", 60000L);
+        rollup.record("logger", "ERROR", 119999L);
+        rollup.record("logger", "INFO", 60000L);
+        rollup.record("logger", "ERROR", 120000L);
+        rollup.flush(120000L);
+        verify(sdb).batchPutAttributes(argument.capture());
+        List<ReplaceableItem> items = argument.getValue().getItems();
+        assertEquals("rollup", argument.getValue().getDomainName());
+        assertEquals(2, items.size());
+        for (ReplaceableItem item : items) {
+            Map<String, String> columns = columns(item);
+            assertEquals("1970-01-01T00:01:00.000Z", columns.get("time"));
+            assertEquals("60000", columns.get("period"));
+            assertEquals("i-001", columns.get("host"));
+            if ("ERROR".equals(columns.get("level"))) {
+                assertEquals("0000000002", columns.get("count"));
+            } else {
+                assertEquals("0000000001", columns.get("count"));
+            }
+        }
+    }
+
+    /**
+     * Verifies that open windows are kept until flushed at shutdown
+     */
+    @Test
+    public void openWindowKept() {
+        rollup.record("logger", "ERROR", 120000L);
+        rollup.flush(120000L);
+        verifyZeroInteractions(sdb);
+        rollup.flushAll();
+        verify(sdb).batchPutAttributes(argument.capture());
+        assertTrue(argument.getValue().getItems().size() == 1);
+    }
+
+    /**
+     * Verifies that windows which could not be written are reported
+     */
+    @Test
+    public void failedFlushReported() {
+        SimpleDBRollup.Clock clock = mock(SimpleDBRollup.Clock.class);
+        when(clock.getCurrentTimeMillis()).thenReturn(0L);
+        rollup = new SimpleDBRollup(clock, sdb, "rollup", "i-001", "com.kikini.test", 60000);
+        ContextAware status = mock(ContextAware.class);
+        SimpleDBMetrics metrics = new SimpleDBMetrics();
+        rollup.setStatus(status, metrics);
+        doThrow(new AmazonClientException("unavailable")).when(sdb).batchPutAttributes(
+                any(BatchPutAttributesRequest.class));
+        rollup.record("logger", "ERROR", 0L);
+        when(clock.getCurrentTimeMillis()).thenReturn(120000L);
+        assertTrue(rollup.runOnce());
+        verify(status).addError(anyString(), any(AmazonClientException.class));
+        assertEquals(1, metrics.getErrors());
+    }
+}
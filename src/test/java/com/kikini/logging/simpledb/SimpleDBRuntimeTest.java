@@ -0,0 +1,195 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.core.spi.ContextAware;
+
+import com.amazonaws.AmazonClientException;
+import com.google.common.collect.ImmutableMap;
+
+public class SimpleDBRuntimeTest {
+
+    private SimpleDBRuntime runtime;
+    private SimpleDBWriter writerA;
+    private SimpleDBWriter writerB;
+    private BlockingQueue<SimpleDBRow> queueA;
+    private BlockingQueue<SimpleDBRow> queueB;
+
+    /**
+     * Create a runtime without workers, serving two consumers
+     */
+    @Before
+    public void setUp() {
+        runtime = new SimpleDBRuntime();
+        writerA = mock(SimpleDBWriter.class);
+        writerB = mock(SimpleDBWriter.class);
+        queueA = new DelayQueue<SimpleDBRow>();
+        queueB = new DelayQueue<SimpleDBRow>();
+        runtime.register(new SimpleDBConsumer(queueA, writerA));
+        runtime.register(new SimpleDBConsumer(queueB, writerB));
+    }
+
+    private void fill(BlockingQueue<SimpleDBRow> queue, int count, long granularity) throws InterruptedException {
+        for (int i = 0; i < count; i++) {
+            queue.add(new SimpleDBRow("msg " + i, "i-001", "com.kikini.test", "logger", "INFO", 1000000000000L, granularity, ImmutableMap.of("key", "value")));
+        }
+        // let rows with a 1ms granularity expire
+        Thread.sleep(5);
+    }
+
+    /**
+     * Verifies that a busy consumer does not starve another
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void turnsAreShared() throws InterruptedException {
+        fill(queueA, SimpleDBRuntime.MAX_ROWS_PER_TURN * 3, 1);
+        fill(queueB, 10, 1);
+        assertTrue(runtime.writeOneTurn());
+        assertTrue(runtime.writeOneTurn());
+        verify(writerA).writeRows(anyListOf(SimpleDBRow.class));
+        ArgumentCaptor<List> argument = ArgumentCaptor.forClass(List.class);
+        verify(writerB).writeRows(argument.capture());
+        assertEquals(10, argument.getValue().size());
+        assertEquals(SimpleDBRuntime.MAX_ROWS_PER_TURN * 2, queueA.size());
+    }
+
+    /**
+     * Verifies that nothing is written before the rows are ready
+     */
+    @Test
+    public void nothingReady() throws InterruptedException {
+        fill(queueA, 10, 60000);
+        assertFalse(runtime.writeOneTurn());
+    }
+
+    /**
+     * Verifies that shutdown writes rows regardless of delay
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void shutdownDrainsAll() throws InterruptedException {
+        fill(queueA, 10, 60000);
+        runtime.shutdown();
+        ArgumentCaptor<List> argument = ArgumentCaptor.forClass(List.class);
+        verify(writerA, times(1)).writeRows(argument.capture());
+        assertEquals(10, argument.getValue().size());
+        assertTrue(queueA.isEmpty());
+    }
+
+    /**
+     * Verifies that the runtime is shared and only started once
+     */
+    @Test
+    public void sharedInstance() {
+        SimpleDBRuntime first = SimpleDBRuntime.acquire(1);
+        SimpleDBRuntime second = SimpleDBRuntime.acquire(3);
+        try {
+            assertTrue(first == second);
+            assertEquals(3, first.getWorkerCount());
+        } finally {
+            second.release();
+            first.release();
+        }
+        // a reconfiguration within the linger period reuses the runtime
+        SimpleDBRuntime third = SimpleDBRuntime.acquire(1);
+        third.release();
+        assertTrue(first == third);
+        assertFalse(first.retireIfUnused(System.currentTimeMillis()));
+        assertTrue(first.retireIfUnused(System.currentTimeMillis() + SimpleDBRuntime.LINGER_MILLIS));
+        assertEquals(0, first.getWorkerCount());
+    }
+
+    /**
+     * Verifies that adopting a parked appender hands over its lanes and stops
+     * serving its consumers
+     */
+    @Test
+    public void adoptTakesParkedLanes() throws InterruptedException {
+        runtime = new SimpleDBRuntime();
+        SimpleDBConsumer parkedConsumer = new SimpleDBConsumer(queueA, writerA);
+        runtime.register(parkedConsumer);
+        SimpleDBLane lane = new SimpleDBLane(Level.ALL, 1, queueA);
+        runtime.park("appender", "domain", new SimpleDBLane[] { lane }, Collections.<SimpleDBTask> singletonList(parkedConsumer));
+        assertNull(runtime.adopt("other", "domain"));
+        SimpleDBLane[] adopted = runtime.adopt("appender", "domain");
+        assertTrue(adopted[0].getQueue() == queueA);
+        assertNull(runtime.adopt("appender", "domain"));
+        fill(queueA, 10, 1);
+        assertFalse(runtime.writeOneTurn());
+        assertEquals(10, queueA.size());
+    }
+
+    /**
+     * Verifies that parked tasks which are not adopted are finished once they
+     * expire
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void parkedTasksExpire() throws InterruptedException {
+        runtime = new SimpleDBRuntime();
+        SimpleDBConsumer parkedConsumer = new SimpleDBConsumer(queueA, writerA);
+        runtime.register(parkedConsumer);
+        runtime.park("appender", "domain", new SimpleDBLane[0], Collections.<SimpleDBTask> singletonList(parkedConsumer));
+        fill(queueA, 10, 60000);
+        runtime.expireParked(System.currentTimeMillis());
+        assertEquals(10, queueA.size());
+        runtime.expireParked(System.currentTimeMillis() + SimpleDBRuntime.LINGER_MILLIS);
+        ArgumentCaptor<List> argument = ArgumentCaptor.forClass(List.class);
+        verify(writerA, times(1)).writeRows(argument.capture());
+        assertEquals(10, argument.getValue().size());
+        assertNull(runtime.adopt("appender", "domain"));
+    }
+
+    /**
+     * Verifies that the failures of a task are reported to its owner, and that
+     * the other tasks carry on
+     */
+    @Test
+    public void failuresReported() {
+        SimpleDBTask failing = mock(SimpleDBTask.class);
+        doThrow(new AmazonClientException("down")).when(failing).runOnce();
+        doThrow(new AmazonClientException("down")).when(failing).finish();
+        ContextAware owner = mock(ContextAware.class);
+        runtime = new SimpleDBRuntime();
+        runtime.register(failing, owner);
+        assertTrue(runtime.writeOneTurn());
+        runtime.shutdown();
+        verify(owner, times(2)).addError(anyString(), any(AmazonClientException.class));
+    }
+}
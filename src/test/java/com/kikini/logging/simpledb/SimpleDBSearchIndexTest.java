@@ -0,0 +1,216 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.core.spi.ContextAware;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.DeleteDomainRequest;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+public class SimpleDBSearchIndexTest {
+
+    private static final String INDEX = "log-search";
+    private static final long MINUTE = 60000;
+
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final AtomicInteger fetching = new AtomicInteger();
+    private final AtomicInteger peakFetching = new AtomicInteger();
+    private InMemoryLogDomain domain;
+    private SimpleDBSearchIndex index;
+
+    /**
+     * Writes one row a minute for 100 minutes from time 0, indexed in buckets
+     * of ten minutes. Every third message mentions a timeout, every fifth a
+     * database.
+     */
+    @Before
+    public void setUp() {
+        InMemorySimpleDB sdb = new InMemorySimpleDB() {
+
+            @Override
+            public SelectResult select(SelectRequest request) {
+                if (!request.getSelectExpression().contains("itemName() in")) return super.select(request);
+                fetches.incrementAndGet();
+                int now = fetching.incrementAndGet();
+                if (now > peakFetching.get()) peakFetching.set(now);
+                try {
+                    return super.select(request);
+                } finally {
+                    fetching.decrementAndGet();
+                }
+            }
+        };
+        domain = new InMemoryLogDomain(sdb, "log");
+        sdb.createDomain(new CreateDomainRequest(INDEX));
+        index = new SimpleDBSearchIndex(sdb, INDEX);
+        index.setBucketMillis(10 * MINUTE);
+        domain.writer.setSearchIndex(index);
+        domain.reader.setSearchIndex(index);
+        List<SimpleDBRow> rows = new ArrayList<SimpleDBRow>();
+        for (int i = 0; i < 100; i++) {
+            String msg = "request " + i + (i % 3 == 0 ? " hit a Timeout" : " done")
+                    + (i % 5 == 0 ? " talking to the database" : "");
+            rows.add(new SimpleDBRow(msg, "i-001", "ctx", "logger", i % 2 == 0 ? "WARN" : "INFO", i * MINUTE, 1,
+                    Collections.<String, String> emptyMap()));
+        }
+        domain.writer.writeRows(rows);
+    }
+
+    @After
+    public void tearDown() {
+        domain.shutdown();
+    }
+
+    private static List<String> msgs(Iterator<SimpleDBRecord> records) {
+        List<String> msgs = new ArrayList<String>();
+        while (records.hasNext()) {
+            msgs.add(records.next().getMsg());
+        }
+        return msgs;
+    }
+
+    /**
+     * Verifies that messages are split into lower-case words, leaving out stop
+     * words, words out of the length limits and words beyond the most per
+     * message
+     */
+    @Test
+    public void tokenize() {
+        assertEquals(Arrays.asList("connection", "db01", "refused"), index
+                .tokenize("Connection to db01 was REFUSED: connection refused, id a"));
+        index.setMinTokenLength(2);
+        index.setMaxTokenLength(4);
+        index.setStopWords("db01, refused");
+        assertEquals(Arrays.asList("to", "was", "id"), index
+                .tokenize("Connection to db01 was REFUSED: connection refused, id a"));
+        index.setMaxTokensPerMessage(2);
+        assertEquals(Arrays.asList("to", "was"), index.tokenize("Connection to db01 was REFUSED, id a"));
+        assertEquals(Collections.emptyList(), index.tokenize(null));
+    }
+
+    /**
+     * Verifies that a search finds every message with all of the keywords,
+     * over every bucket, in more fetches than one
+     */
+    @Test
+    public void search() {
+        List<String> found = msgs(domain.reader.search("timeout", new SimpleDBQuery().orderByTime(false), 4));
+        assertEquals(34, found.size());
+        assertEquals("request 0 hit a Timeout talking to the database", found.get(0));
+        assertEquals("request 99 hit a Timeout", found.get(33));
+
+        List<String> both = msgs(domain.reader.search("Database TIMEOUT the", new SimpleDBQuery()
+                .orderByTime(true), 4));
+        assertEquals(Arrays.asList("request 90 hit a Timeout talking to the database",
+                "request 75 hit a Timeout talking to the database", "request 60 hit a Timeout talking to the database",
+                "request 45 hit a Timeout talking to the database", "request 30 hit a Timeout talking to the database",
+                "request 15 hit a Timeout talking to the database", "request 0 hit a Timeout talking to the database"),
+                both);
+        assertFalse(domain.reader.search("nothing", new SimpleDBQuery(), 4).hasNext());
+    }
+
+    /**
+     * Verifies that the criteria of the query, including a time range within
+     * buckets, apply to the items found
+     */
+    @Test
+    public void searchWithQuery() {
+        List<String> found = msgs(domain.reader.search("timeout", new SimpleDBQuery().withTimeRange(25 * MINUTE,
+                45 * MINUTE).withMinLevel(Level.WARN).orderByTime(false), 4));
+        assertEquals(Arrays.asList("request 30 hit a Timeout talking to the database", "request 36 hit a Timeout",
+                "request 42 hit a Timeout"), found);
+        assertEquals(1, msgs(domain.reader.search("timeout", new SimpleDBQuery().withLimit(1), 4)).size());
+    }
+
+    /**
+     * Verifies that an unordered search stops fetching once it has its limit
+     */
+    @Test
+    public void searchStopsAtLimit() {
+        assertEquals(1, msgs(domain.reader.search("request", new SimpleDBQuery().withLimit(1), 1)).size());
+        assertEquals(1, fetches.get());
+        fetches.set(0);
+        assertEquals(1, msgs(domain.reader.search("request", new SimpleDBQuery().withLimit(1).orderByTime(false),
+                1)).size());
+        assertTrue(fetches.get() > 1);
+    }
+
+    /**
+     * Verifies that no more fetches by name run at once than the parallelism
+     */
+    @Test
+    public void searchParallelism() {
+        domain.sdb.setLatency(InMemorySimpleDB.fixed(20));
+        assertEquals(100, msgs(domain.reader.search("request", new SimpleDBQuery(), 2)).size());
+        assertTrue(peakFetching.get() <= 2);
+        peakFetching.set(0);
+        assertEquals(100, msgs(domain.reader.search("request", new SimpleDBQuery(), 1)).size());
+        assertEquals(1, peakFetching.get());
+    }
+
+    /**
+     * Verifies that a search for stop words only is refused
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void searchStopWords() {
+        domain.reader.search("the a", new SimpleDBQuery(), 4);
+    }
+
+    /**
+     * Verifies that the rows written together get one posting per word and
+     * bucket, whatever the batches they were written in, and that rows are
+     * written, with a warning, even if their postings cannot be
+     */
+    @Test
+    public void postings() {
+        assertEquals("1", domain.sdb.select(new SelectRequest(
+                "select count(*) from `log-search` where `token` = 'timeout'"
+                + " and `bucket` = '000000000000000'")).getItems().get(0).getAttributes().get(0).getValue());
+        assertEquals("10", domain.sdb.select(new SelectRequest(
+                "select count(*) from `log-search` where `token` = 'request'")).getItems().get(0).getAttributes()
+                .get(0).getValue());
+
+        ContextAware status = mock(ContextAware.class);
+        domain.writer.setStatus(status);
+        domain.sdb.deleteDomain(new DeleteDomainRequest(INDEX));
+        domain.write("lost timeout", 0);
+        assertEquals(101, msgs(domain.reader.select(new SimpleDBQuery())).size());
+        verify(status).addWarn(anyString(), any(AmazonClientException.class));
+    }
+}
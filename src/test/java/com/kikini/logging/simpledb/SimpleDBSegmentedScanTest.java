@@ -0,0 +1,115 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SimpleDBSegmentedScanTest {
+
+    private static final long MINUTE = 60000;
+
+    private InMemoryLogDomain domain;
+    private ExecutorService executor;
+
+    /**
+     * Writes one row a minute for 100 minutes from time 0
+     */
+    @Before
+    public void setUp() {
+        domain = new InMemoryLogDomain();
+        List<SimpleDBRow> rows = new ArrayList<SimpleDBRow>();
+        for (int i = 0; i < 100; i++) {
+            rows.add(new SimpleDBRow("msg " + i, "i-001", "ctx", "logger", "INFO", i * MINUTE, 1, Collections
+                    .<String, String> emptyMap()));
+        }
+        domain.writer.writeRows(rows);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        domain.shutdown();
+    }
+
+    private List<Long> times(SimpleDBSegmentedScan scan) {
+        List<Long> times = new ArrayList<Long>();
+        while (scan.hasNext()) {
+            times.add(scan.next().getTime());
+        }
+        return times;
+    }
+
+    /**
+     * Verifies that every item in range comes out once, in time order
+     */
+    @Test
+    public void ascending() {
+        SimpleDBSegmentedScan scan = new SimpleDBSegmentedScan(domain.sdb, domain.dom, SimpleDBTimeColumn.MILLIS, executor, new SimpleDBQuery()
+                .withTimeRange(10 * MINUTE, 90 * MINUTE), 4, 10);
+        List<Long> times = times(scan);
+        assertEquals(80, times.size());
+        for (int i = 0; i < times.size(); i++) {
+            assertEquals(Long.valueOf((10 + i) * MINUTE), times.get(i));
+        }
+    }
+
+    /**
+     * Verifies that a descending query comes out newest first, up to its limit
+     */
+    @Test
+    public void descendingWithLimit() {
+        SimpleDBSegmentedScan scan = new SimpleDBSegmentedScan(domain.sdb, domain.dom, SimpleDBTimeColumn.MILLIS, executor, new SimpleDBQuery()
+                .withTimeRange(0, 100 * MINUTE).orderByTime(true).withLimit(5), 3, 10);
+        List<Long> times = times(scan);
+        assertEquals(5, times.size());
+        assertEquals(Long.valueOf(99 * MINUTE), times.get(0));
+        assertEquals(Long.valueOf(95 * MINUTE), times.get(4));
+    }
+
+    /**
+     * Verifies that segments grow where items are sparse and shrink where they
+     * are dense
+     */
+    @Test
+    public void segmentsAdapt() {
+        long day = 24 * 60 * MINUTE;
+        SimpleDBSegmentedScan sparse = new SimpleDBSegmentedScan(domain.sdb, domain.dom, SimpleDBTimeColumn.MILLIS, executor, new SimpleDBQuery()
+                .withTimeRange(-10 * day, -day), 1, 10);
+        long initial = sparse.getSegmentMillis();
+        assertFalse(sparse.hasNext());
+        assertTrue(sparse.getSegmentMillis() >= initial);
+
+        SimpleDBSegmentedScan dense = new SimpleDBSegmentedScan(domain.sdb, domain.dom, SimpleDBTimeColumn.MILLIS, executor, new SimpleDBQuery()
+                .withTimeRange(0, 100 * MINUTE), 1, 5);
+        initial = dense.getSegmentMillis();
+        dense.next();
+        assertTrue(dense.getSegmentMillis() < initial);
+        assertEquals(100, 1 + times(dense).size());
+    }
+}
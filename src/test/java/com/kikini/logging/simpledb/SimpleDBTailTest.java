@@ -0,0 +1,155 @@
+/*
+ * Copyright 2009-2010 Kikini Limited and contributors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kikini.logging.simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+
+public class SimpleDBTailTest {
+
+    private static final long MINUTE = 60000;
+
+    private InMemoryLogDomain domain;
+
+    private static class Collector implements SimpleDBTailListener {
+
+        private final List<String> msgs = new ArrayList<String>();
+
+        @Override
+        public void recordArrived(SimpleDBRecord record) {
+            msgs.add(record.getMsg());
+        }
+
+        @Override
+        public void pollFailed(AmazonClientException e) {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        domain = new InMemoryLogDomain();
+    }
+
+    @After
+    public void tearDown() {
+        domain.shutdown();
+    }
+
+    /**
+     * Verifies that each item is delivered once, including items written at
+     * the time of the newest one already delivered
+     */
+    @Test
+    public void watermarkDeduplicates() {
+        SimpleDBTail tail = new SimpleDBTail(mock(ScheduledExecutorService.class));
+        Collector collector = new Collector();
+        for (int i = 0; i < 5; i++) {
+            domain.write("msg " + i, i * MINUTE);
+        }
+        SimpleDBTail.Follower follower = tail.follow(domain.reader, new SimpleDBQuery().withTimeRange(MINUTE, 0),
+                collector);
+        assertEquals(4, follower.poll());
+        assertEquals(4 * MINUTE, follower.getWatermark());
+        assertEquals(0, follower.poll());
+
+        domain.write("same time", 4 * MINUTE);
+        domain.write("later", 5 * MINUTE);
+        assertEquals(2, follower.poll());
+        assertEquals(0, follower.poll());
+        assertEquals(6, collector.msgs.size());
+        assertEquals("msg 1", collector.msgs.get(0));
+        assertEquals("later", collector.msgs.get(5));
+    }
+
+    /**
+     * Verifies that items written late, within the look-back, are delivered
+     */
+    @Test
+    public void lookBack() {
+        SimpleDBTail tail = new SimpleDBTail(mock(ScheduledExecutorService.class));
+        tail.setLookBackMillis(MINUTE);
+        Collector collector = new Collector();
+        domain.write("first", 10 * MINUTE);
+        SimpleDBTail.Follower follower = tail.follow(domain.reader, new SimpleDBQuery().withTimeRange(0, 0), collector);
+        assertEquals(1, follower.poll());
+        domain.write("late", 9 * MINUTE + 1);
+        domain.write("too late", 9 * MINUTE - 1);
+        assertEquals(1, follower.poll());
+        assertEquals(0, follower.poll());
+        assertEquals("late", collector.msgs.get(1));
+    }
+
+    /**
+     * Verifies that the interval shrinks while items arrive, and grows while
+     * none do
+     */
+    @Test
+    public void intervalAdapts() {
+        SimpleDBTail tail = new SimpleDBTail(mock(ScheduledExecutorService.class));
+        tail.setMinPollMillis(100);
+        tail.setMaxPollMillis(1000);
+        SimpleDBTail.Follower follower = tail.follow(domain.reader, new SimpleDBQuery().withTimeRange(0, 0),
+                new Collector());
+        follower.poll();
+        assertEquals(200, follower.getIntervalMillis());
+        follower.poll();
+        follower.poll();
+        follower.poll();
+        assertEquals(1000, follower.getIntervalMillis());
+        domain.write("msg", MINUTE);
+        follower.poll();
+        assertEquals(500, follower.getIntervalMillis());
+    }
+
+    /**
+     * Verifies that several domains are followed by one scheduler thread, and
+     * that the iterator blocks until items arrive
+     */
+    @Test
+    public void followsSeveralDomains() throws InterruptedException {
+        InMemoryLogDomain otherDomain = new InMemoryLogDomain(domain.sdb, "other");
+        SimpleDBTail tail = new SimpleDBTail();
+        tail.setMinPollMillis(5);
+        tail.setMaxPollMillis(20);
+        try {
+            SimpleDBTail.TailIterator log = tail.follow(domain.reader, new SimpleDBQuery().withTimeRange(0, 0));
+            SimpleDBTail.TailIterator other = tail.follow(otherDomain.reader, new SimpleDBQuery().withTimeRange(0, 0));
+            domain.write("log", MINUTE);
+            otherDomain.write("other", MINUTE);
+            SimpleDBRecord record = log.poll(5, TimeUnit.SECONDS);
+            assertNotNull(record);
+            assertEquals("log", record.getMsg());
+            assertEquals("other", other.next().getMsg());
+            log.close();
+            other.close();
+        } finally {
+            tail.shutdown();
+            otherDomain.shutdown();
+        }
+    }
+}
@@ -95,10 +95,29 @@ public class SimpleDBWriterTest {
         List<ReplaceableItem> items = argument.getValue().getItems();
         for (ReplaceableItem item : items) {
             List<ReplaceableAttribute> vals = item.getAttributes();
-            assertTrue(vals.size() == 7);
+            assertTrue(vals.size() == 8);
         }
     }
 
+    /**
+     * Verifies that the time is also written as zero-padded milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void timeMillisColumnTest() {
+        SimpleDBRow row1 = new SimpleDBRow("msg", "i-001", "com.kikini.test", "logger", "level", 1000000000000L, 1, ImmutableMap.of("key", "value"));
+        writer.writeRows(Collections.singletonList(row1));
+        verify(sdb).batchPutAttributes(argument.capture());
+        boolean found = false;
+        for (ReplaceableAttribute att : argument.getValue().getItems().get(0).getAttributes()) {
+            if ("timeMillis".equals(att.getName())) {
+                assertTrue("001000000000000".equals(att.getValue()));
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+
     /**
      * Verify nothing happens when an empty list is given as an argument
      */
@@ -155,4 +174,62 @@ public class SimpleDBWriterTest {
         List<ReplaceableItem> items2 = captured.get(1).getItems();
         assertTrue(items2.size() == 5);
     }
+
+    /**
+     * Verifies that aggregated rows carry count and lastTime columns
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void aggregatedRowColumnsTest() {
+        SimpleDBRow row1 = new SimpleDBRow("dup", "i-001", "com.kikini.test", "logger", "level", 1000000000000L, 1, ImmutableMap.of("key", "value"));
+        row1.merge(new SimpleDBRow("dup", "i-001", "com.kikini.test", "logger", "level", 1000000001000L, 1, ImmutableMap.of("key", "value")));
+        writer.writeRows(Collections.singletonList(row1));
+        verify(sdb).batchPutAttributes(argument.capture());
+        List<ReplaceableAttribute> atts = argument.getValue().getItems().get(0).getAttributes();
+        assertTrue(atts.size() == 10);
+        boolean foundCount = false;
+        for (ReplaceableAttribute att : atts) {
+            if ("count".equals(att.getName())) {
+                assertTrue("2".equals(att.getValue()));
+                foundCount = true;
+            }
+        }
+        assertTrue(foundCount);
+    }
+
+    /**
+     * Checks that listeners are told the timing of each batch and of the flush
+     */
+    @Test
+    public void listenerTimingTest() {
+        final List<SimpleDBWriteTiming> batches = new ArrayList<SimpleDBWriteTiming>();
+        final List<SimpleDBWriteTiming> flushes = new ArrayList<SimpleDBWriteTiming>();
+        SimpleDBWriteListener listener = new SimpleDBWriteListener() {
+
+            @Override
+            public void batchWritten(SimpleDBWriteTiming batch) {
+                batches.add(batch);
+            }
+
+            @Override
+            public void flushWritten(SimpleDBWriteTiming flush) {
+                flushes.add(flush);
+            }
+        };
+        writer.addListener(listener);
+        writer.addListener(listener);
+        List<SimpleDBRow> manyRows = new ArrayList<SimpleDBRow>();
+        for (int i = 0; i < 30; i++) {
+            manyRows.add(rows.get(0));
+        }
+        writer.writeRows(manyRows);
+        assertTrue(batches.size() == 2);
+        assertTrue(flushes.size() == 1);
+        SimpleDBWriteTiming flush = flushes.get(0);
+        assertTrue(flush.getBatches() == 2);
+        assertTrue(flush.getItems() == 30);
+        assertTrue(flush.getBuildNanos() >= flush.getTruncateNanos() + flush.getFormatNanos());
+        assertTrue(flush.getRequestNanos() == batches.get(0).getRequestNanos() + batches.get(1).getRequestNanos());
+        assertTrue(dom.equals(flush.getDomain()));
+    }
 }